@@ -0,0 +1,34 @@
+package group.work;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads the benchmark corpora under src/jmh/resources/corpus from the classpath
+public class Corpus {
+    public static String text(String name) {
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name)) {
+            if (in == null) {
+                throw new IllegalArgumentException("missing corpus file " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException err) {
+            throw new UncheckedIOException(err);
+        }
+    }
+
+    // Non-empty lines, '#' comment lines skipped
+    public static List<String> lines(String name) {
+        List<String> out = new ArrayList<>();
+        for (String line : text(name).split("\n")) {
+            line = line.strip();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                out.add(line);
+            }
+        }
+        return out;
+    }
+}
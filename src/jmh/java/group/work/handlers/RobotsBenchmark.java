@@ -0,0 +1,80 @@
+package group.work.handlers;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import group.work.Corpus;
+
+// robots.txt parsing and rule matching over corpus/robots
+// linear_is_allowed is the startsWith scan used before RobotsMatcher, kept as the
+// baseline; it ignores '*' and '$', so it only shows the cost, not the same answers
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RobotsBenchmark {
+    @Param({ "small", "medium", "large" })
+    public String robots;
+
+    private final RobotsService service = new RobotsService();
+    private String body;
+    private RobotsService.Group group;
+    private String[] paths;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        this.body = Corpus.text("robots/" + this.robots + ".txt");
+        this.group = this.service.parse_robots(this.body);
+        this.paths = Corpus.lines("robots/paths.txt").toArray(new String[0]);
+    }
+
+    @Benchmark
+    public RobotsService.Group parse() {
+        return this.service.parse_robots(this.body);
+    }
+
+    @Benchmark
+    public boolean is_allowed() {
+        return this.group.is_allowed(this.next_path());
+    }
+
+    @Benchmark
+    public boolean linear_is_allowed() {
+        String path = this.next_path();
+        return best_prefix_match_len(this.group.allow, path) >= best_prefix_match_len(this.group.disallow, path);
+    }
+
+    private String next_path() {
+        String path = this.paths[this.next];
+        this.next = this.next + 1 == this.paths.length ? 0 : this.next + 1;
+        return path;
+    }
+
+    private static int best_prefix_match_len(List<String> rules, String path) {
+        int best = -1;
+        for (String r : rules) {
+            if (r == null || r.isEmpty()) {
+                continue;
+            }
+            if (path.startsWith(r)) {
+                best = Math.max(best, r.length());
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,91 @@
+package group.work.handlers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import group.work.Corpus;
+import group.work.helpers.CrawlUrl;
+
+// Scope checks with the first N domains of corpus/domains.txt allowed, probed with
+// the links of corpus/urls.txt plus hosts under allowed domains
+// linear_is_in_scope is the equals/endsWith scan ScopePolicy used before the trie
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ScopePolicyBenchmark {
+    @Param({ "1", "100", "10000" })
+    public int domains;
+
+    private ScopePolicy policy;
+    private Set<String> allowed_hosts;
+    private CrawlUrl[] probes;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        List<String> all = Corpus.lines("domains.txt");
+        this.allowed_hosts = new LinkedHashSet<>();
+        this.allowed_hosts.add("toscrape.com");
+        for (String d : all.subList(0, Math.min(this.domains - 1, all.size()))) {
+            this.allowed_hosts.add(d);
+        }
+        ScopePolicy.Rules rules = new ScopePolicy.Rules();
+        rules.allow_domains.addAll(this.allowed_hosts);
+        rules.deny_domains.add("ads.toscrape.com");
+        rules.deny_path_prefixes.add("/private/");
+        this.policy = new ScopePolicy(rules, PublicSuffixes.builtin());
+
+        List<CrawlUrl> probes = new ArrayList<>();
+        for (String url : Corpus.lines("urls.txt")) {
+            CrawlUrl parsed = CrawlUrl.parse(url);
+            if (parsed != null) {
+                probes.add(parsed);
+            }
+        }
+        List<String> allowed = new ArrayList<>(this.allowed_hosts);
+        for (int i = 0; i < 500; i++) {
+            probes.add(CrawlUrl.parse("https://www." + allowed.get(i * 7 % allowed.size()) + "/page/" + i));
+        }
+        this.probes = probes.toArray(new CrawlUrl[0]);
+    }
+
+    @Benchmark
+    public boolean is_in_scope() {
+        return this.policy.is_in_scope(this.next_probe());
+    }
+
+    @Benchmark
+    public boolean linear_is_in_scope() {
+        String host = this.next_probe().host;
+        for (String allowed : this.allowed_hosts) {
+            if (host.equals(allowed) || host.endsWith("." + allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CrawlUrl next_probe() {
+        CrawlUrl url = this.probes[this.next];
+        this.next = this.next + 1 == this.probes.length ? 0 : this.next + 1;
+        return url;
+    }
+}
@@ -0,0 +1,70 @@
+package group.work.helpers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import group.work.Corpus;
+
+// Link extraction from one page of corpus/html: the Jsoup DOM path WorkerTask
+// falls back to against the streaming LinkExtractor it uses by default
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LinkExtractorBenchmark {
+    @Param({ "listing", "product", "quotes", "article" })
+    public String page;
+
+    private String html;
+    // What the crawler hands to the extractor: the page bytes as received
+    private byte[] bytes;
+    private String page_url;
+
+    @Setup
+    public void setup() {
+        this.html = Corpus.text("html/" + this.page + ".html");
+        this.bytes = this.html.getBytes(StandardCharsets.UTF_8);
+        this.page_url = switch (this.page) {
+            case "listing" -> "https://books.toscrape.com/index.html";
+            case "product" -> "https://books.toscrape.com/catalogue/a-light-in-the-attic_1000/index.html";
+            case "quotes" -> "https://quotes.toscrape.com/";
+            default -> "https://en.example.org/wiki/Web_crawler";
+        };
+    }
+
+    @Benchmark
+    public List<String> jsoup() {
+        Document doc = Jsoup.parse(this.html, this.page_url);
+        Elements links = doc.select("a[href]");
+        List<String> out = new ArrayList<>(links.size());
+        for (Element link : links) {
+            out.add(link.attr("abs:href"));
+        }
+        return out;
+    }
+
+    @Benchmark
+    public List<String> streaming() {
+        return LinkExtractor.extract(this.bytes, this.bytes.length, StandardCharsets.UTF_8, this.page_url);
+    }
+}
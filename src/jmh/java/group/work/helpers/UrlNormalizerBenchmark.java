@@ -0,0 +1,50 @@
+package group.work.helpers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import group.work.Corpus;
+
+// Canonicalization of discovered links, one URL of corpus/urls.txt per operation
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UrlNormalizerBenchmark {
+    private String[] urls;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        this.urls = Corpus.lines("urls.txt").toArray(new String[0]);
+    }
+
+    @Benchmark
+    public String normalize() {
+        return UrlNormalizer.normalize(this.next_url());
+    }
+
+    // What WorkerTask calls: the string plus the parsed CrawlUrl fields
+    @Benchmark
+    public CrawlUrl canonicalize() {
+        return UrlNormalizer.canonicalize(this.next_url());
+    }
+
+    private String next_url() {
+        String url = this.urls[this.next];
+        this.next = this.next + 1 == this.urls.length ? 0 : this.next + 1;
+        return url;
+    }
+}
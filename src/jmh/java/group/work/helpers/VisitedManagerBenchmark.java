@@ -0,0 +1,156 @@
+package group.work.helpers;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import group.work.Corpus;
+
+// enqueue_if_new from 8 threads over one shared URL space, as when many workers
+// discover the same links; the visited set is recreated every iteration, so each
+// one starts with mostly new URLs and ends with mostly duplicates
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class VisitedManagerBenchmark {
+    private static final int URLS = 200_000;
+
+    // Accepts and drops everything, so only the visited set is measured
+    private static class DiscardQueue extends AbstractQueue<CrawlUrl> implements BlockingQueue<CrawlUrl> {
+        @Override
+        public boolean offer(CrawlUrl url) {
+            return true;
+        }
+
+        @Override
+        public boolean offer(CrawlUrl url, long timeout, TimeUnit unit) {
+            return true;
+        }
+
+        @Override
+        public void put(CrawlUrl url) {
+        }
+
+        @Override
+        public CrawlUrl poll() {
+            return null;
+        }
+
+        @Override
+        public CrawlUrl poll(long timeout, TimeUnit unit) {
+            return null;
+        }
+
+        @Override
+        public CrawlUrl take() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CrawlUrl peek() {
+            return null;
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super CrawlUrl> c) {
+            return 0;
+        }
+
+        @Override
+        public int drainTo(Collection<? super CrawlUrl> c, int max_elements) {
+            return 0;
+        }
+
+        @Override
+        public Iterator<CrawlUrl> iterator() {
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup
+        public void setup() {
+            this.next = (int) (Thread.currentThread().getId() * 7919 % URLS);
+        }
+    }
+
+    @Param({ "strings", "fingerprints", "fingerprints_bloom", "fingerprints_off_heap" })
+    public String visited_set;
+
+    private CrawlUrl[] urls;
+    private final BlockingQueue<CrawlUrl> queue = new DiscardQueue();
+    private VisitedManager manager;
+
+    @Setup(Level.Trial)
+    public void load() {
+        List<String> base = Corpus.lines("urls.txt");
+        this.urls = new CrawlUrl[URLS];
+        int n = 0;
+        for (int i = 0; n < URLS; i++) {
+            CrawlUrl parsed = UrlNormalizer.canonicalize(base.get(i % base.size()));
+            if (parsed == null) {
+                continue;
+            }
+            int round = i / base.size();
+            if (round > 0) {
+                // Vary the query so every pass over the corpus adds distinct URLs
+                parsed = UrlNormalizer.canonicalize(parsed.url + (parsed.query == null ? "?" : "&") + "v=" + round);
+            }
+            this.urls[n++] = parsed;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        VisitedSet set = switch (this.visited_set) {
+            case "strings" -> new StringVisitedSet();
+            case "fingerprints" -> new FingerprintVisitedSet(URLS, 64, false, false);
+            case "fingerprints_bloom" -> new FingerprintVisitedSet(URLS, 64, false, true);
+            case "fingerprints_off_heap" -> new FingerprintVisitedSet(URLS, 64, true, false);
+            default -> throw new IllegalArgumentException(this.visited_set);
+        };
+        this.manager = new VisitedManager(set);
+    }
+
+    @Benchmark
+    public boolean enqueue_if_new(Cursor cursor) {
+        CrawlUrl url = this.urls[cursor.next];
+        cursor.next = cursor.next + 1 == URLS ? 0 : cursor.next + 1;
+        return this.manager.enqueue_if_new(url, this.queue);
+    }
+}
@@ -0,0 +1,88 @@
+package group.work.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import group.work.Corpus;
+
+// Time per stored page: each operation queues a batch of pages and waits until the
+// writer thread has compressed and written all of them, so the score is the
+// sustained write rate rather than the speed of filling the queue
+// Every iteration writes into a fresh temporary directory that is removed afterwards
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(StorageServiceBenchmark.BATCH)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class StorageServiceBenchmark {
+    static final int BATCH = 200;
+    private static final Map<String, String> HEADERS = Map.of("content-type", "text/html; charset=utf-8");
+
+    @Param({ "listing", "article" })
+    public String page;
+
+    private String html;
+    private Path dir;
+    private StorageService storage;
+    private long queued;
+
+    @Setup(Level.Trial)
+    public void load() {
+        this.html = Corpus.text("html/" + this.page + ".html");
+    }
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        this.dir = Files.createTempDirectory("storage-bench");
+        this.storage = new StorageService(this.dir.toString(), 64L * 1024 * 1024, 16L * 1024 * 1024,
+                StorageService.OverflowPolicy.BLOCK);
+        this.storage.start();
+        this.queued = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        this.storage.stop(60_000);
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    @Benchmark
+    public long store_batch() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            if (this.storage.store_async("https://books.toscrape.com/catalogue/page.html", 200, HEADERS,
+                    this.html)) {
+                this.queued++;
+            }
+        }
+        while (this.storage.get_records_written() < this.queued) {
+            Thread.sleep(1);
+        }
+        return this.queued;
+    }
+}
@@ -0,0 +1,733 @@
+package group.work.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import group.work.helpers.CrawlUrl;
+import group.work.metrics.MetricsRegistry;
+
+// One crawler process of a cluster: it crawls the hosts the HashRing gives it and
+// forwards every other URL to the owner over TCP, so politeness, robots.txt and the
+// visited set of a host all stay on one node
+// A node is named by the host:port it listens on. It is a member from its first
+// HELLO until it sends LEAVE or sends to it keep failing for three heartbeats; every
+// node repeats HELLO to everyone each heartbeat, so a node dropped by mistake comes
+// back. HELLO also says whether the sender is idle, which is how a node knows the
+// whole cluster has run out of work. A node that sees
+// a new member answers with HELLO and MEMBERS, which is how a joining node learns
+// the rest of the cluster from any one configured peer
+// Each membership change builds a new ring and calls the membership listener, which
+// moves the URLs of hosts that changed owner (see CrawlerController.rebalance)
+// URLS frames are only taken from a connection that named a current member in a
+// HELLO, and each URL must pass the URL filter (the crawl scope) before it is
+// queued or routed on; there is no authentication beyond that
+// Frames, each side sending on its own outbound connection, which starts with a HELLO:
+//   HELLO   byte 1, string node, byte idle
+//   MEMBERS byte 2, int n, n x string node
+//   LEAVE   byte 3, string node
+//   URLS    byte 4, int n, n x (byte hops, string url)
+// strings are an int length and UTF-8 bytes
+public class ClusterNode {
+    static final byte HELLO = 1;
+    static final byte MEMBERS = 2;
+    static final byte LEAVE = 3;
+    static final byte URLS = 4;
+    // While rings disagree a URL may bounce; after this many hops it is kept
+    private static final int MAX_HOPS = 3;
+    private static final int MAX_STRING_BYTES = 1 << 20;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long RETRY_DELAY_MS = 200;
+    // URLs waiting for one peer; past it, crawler threads wait for the sender and the
+    // network threads, which must not wait on each other, keep the URL here instead
+    private static final int MAX_PEER_QUEUE = 64 * 1024;
+    private static final long OFFER_WAIT_MS = 100;
+
+    private static class Pending {
+        final String url;
+        final int hops;
+
+        Pending(String url, int hops) {
+            this.url = url;
+            this.hops = hops;
+        }
+    }
+
+    // Outbound side of one member: a bounded queue drained in batches by its own thread
+    private class Peer {
+        final String node;
+        final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>(MAX_PEER_QUEUE);
+        final Thread sender;
+        volatile boolean stopped = false;
+        volatile boolean sending = false;
+        // Last state announced by the node, busy until its first HELLO
+        volatile boolean idle = false;
+        // Start of the current run of failed sends, 0 while sends succeed
+        private long failing_since_ns = 0;
+        private Socket socket;
+        private DataOutputStream out;
+
+        Peer(String node) {
+            this.node = node;
+            this.sender = new Thread(this::send_loop, "cluster-send-" + node);
+            this.sender.setDaemon(true);
+            this.sender.start();
+        }
+
+        synchronized void send_control(byte type, List<String> strings) throws IOException {
+            try {
+                this.connect();
+                this.out.writeByte(type);
+                if (type == MEMBERS) {
+                    this.out.writeInt(strings.size());
+                }
+                for (String s : strings) {
+                    write_string(this.out, s);
+                }
+                if (type == HELLO) {
+                    this.out.writeByte(ClusterNode.this.idle ? 1 : 0);
+                }
+                this.out.flush();
+                this.failing_since_ns = 0;
+            } catch (IOException err) {
+                this.disconnect();
+                throw err;
+            }
+        }
+
+        private synchronized void send_urls(List<Pending> batch) throws IOException {
+            try {
+                this.connect();
+                this.out.writeByte(URLS);
+                this.out.writeInt(batch.size());
+                for (Pending p : batch) {
+                    this.out.writeByte(p.hops);
+                    write_string(this.out, p.url);
+                }
+                this.out.flush();
+                this.failing_since_ns = 0;
+            } catch (IOException err) {
+                this.disconnect();
+                throw err;
+            }
+        }
+
+        // Whether the node has been unreachable for long enough to be dropped; a node
+        // that is still starting or restarting gets failure_timeout_ms to come up
+        synchronized boolean note_failure() {
+            long now = System.nanoTime();
+            if (this.failing_since_ns == 0) {
+                this.failing_since_ns = now;
+            }
+            return now - this.failing_since_ns >= TimeUnit.MILLISECONDS.toNanos(ClusterNode.this.failure_timeout_ms);
+        }
+
+        private void disconnect() {
+            if (this.socket != null) {
+                try {
+                    this.socket.close();
+                } catch (IOException err) {
+                }
+                this.socket = null;
+                this.out = null;
+            }
+        }
+
+        private void connect() throws IOException {
+            if (this.socket != null) {
+                return;
+            }
+            Socket s = new Socket();
+            try {
+                s.connect(address_of(this.node), CONNECT_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+            } catch (IOException err) {
+                s.close();
+                throw err;
+            }
+            this.socket = s;
+            this.out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+            // Names the sender, the receiver drops URLS from a connection that did not
+            this.out.writeByte(HELLO);
+            write_string(this.out, ClusterNode.this.self);
+            this.out.writeByte(ClusterNode.this.idle ? 1 : 0);
+        }
+
+        private void send_loop() {
+            List<Pending> batch = new ArrayList<>(ClusterNode.this.batch_size);
+            while (!this.stopped) {
+                try {
+                    Pending first = this.queue.poll(500, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    this.sending = true;
+                    batch.add(first);
+                    // Linger a little so that links found by several workers share a frame
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ClusterNode.this.linger_ms);
+                    while (batch.size() < ClusterNode.this.batch_size) {
+                        this.queue.drainTo(batch, ClusterNode.this.batch_size - batch.size());
+                        long left = deadline - System.nanoTime();
+                        if (batch.size() >= ClusterNode.this.batch_size || left <= 0) {
+                            break;
+                        }
+                        Pending next = this.queue.poll(left, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    while (true) {
+                        try {
+                            this.send_urls(batch);
+                            break;
+                        } catch (IOException err) {
+                            if (this.stopped || this.note_failure()) {
+                                throw err;
+                            }
+                            Thread.sleep(RETRY_DELAY_MS);
+                        }
+                    }
+                    ClusterNode.this.batches_sent.increment();
+                    ClusterNode.this.urls_sent.add(batch.size());
+                    batch.clear();
+                } catch (InterruptedException err) {
+                    // Stopped after the node left; the ring no longer has it
+                    ClusterNode.this.reroute(batch);
+                    break;
+                } catch (IOException err) {
+                    ClusterNode.this.peer_failed(this, batch, err);
+                    return;
+                } finally {
+                    this.sending = false;
+                }
+            }
+        }
+
+        boolean is_drained() {
+            return this.queue.isEmpty() && !this.sending;
+        }
+
+        synchronized void stop() {
+            this.stopped = true;
+            this.sender.interrupt();
+            this.disconnect();
+        }
+    }
+
+    private final String self;
+    private final List<String> seed_peers;
+    private final int virtual_nodes;
+    private final int batch_size;
+    private final long linger_ms;
+    private final long heartbeat_ms;
+    private final long failure_timeout_ms;
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Object membership_lock = new Object();
+    private volatile HashRing ring;
+    private volatile boolean leaving = false;
+    private volatile boolean closed = false;
+    private volatile boolean idle = false;
+    private volatile Consumer<CrawlUrl> receiver;
+    private volatile Predicate<CrawlUrl> url_filter = url -> true;
+    private volatile Consumer<CrawlUrl> local_queue;
+    private volatile Runnable membership_listener;
+    private volatile long last_received_ns = System.nanoTime();
+    private ServerSocket server;
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cluster-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+    private final LongAdder urls_forwarded = new LongAdder();
+    private final LongAdder urls_sent = new LongAdder();
+    private final LongAdder urls_received = new LongAdder();
+    private final LongAdder batches_sent = new LongAdder();
+    private final LongAdder urls_rebalanced = new LongAdder();
+    private final LongAdder urls_kept_full = new LongAdder();
+    private final LongAdder urls_rejected = new LongAdder();
+    private final LongAdder peer_failures = new LongAdder();
+    private final LongAdder membership_changes = new LongAdder();
+
+    // The configured peers are taken as members right away, so that URLs are
+    // partitioned from the first seed on; peers that are not up yet drop out on the
+    // first failed send and come back with their HELLO
+    public ClusterNode(String self, List<String> seed_peers, int virtual_nodes, int batch_size, long linger_ms,
+            long heartbeat_ms) {
+        this.self = self;
+        this.seed_peers = seed_peers;
+        this.virtual_nodes = virtual_nodes;
+        this.batch_size = batch_size;
+        this.linger_ms = linger_ms;
+        this.heartbeat_ms = heartbeat_ms;
+        this.failure_timeout_ms = 3 * heartbeat_ms;
+        synchronized (this.membership_lock) {
+            for (String peer : seed_peers) {
+                if (!peer.equals(self)) {
+                    this.peers.put(peer, new Peer(peer));
+                }
+            }
+            this.rebuild_ring();
+        }
+    }
+
+    // URLs from other nodes that this node owns; they still need the visited check
+    public void set_receiver(Consumer<CrawlUrl> receiver) {
+        this.receiver = receiver;
+    }
+
+    // URLs received from other nodes that fail it are dropped, e.g. out of scope ones
+    public void set_url_filter(Predicate<CrawlUrl> url_filter) {
+        this.url_filter = url_filter;
+    }
+
+    // Where forward() puts URLs that turn out to be local, already marked as seen
+    public void set_local_queue(Consumer<CrawlUrl> local_queue) {
+        this.local_queue = local_queue;
+    }
+
+    // Called after every membership change, from the thread that noticed it
+    public void set_membership_listener(Runnable listener) {
+        this.membership_listener = listener;
+    }
+
+    public void register_metrics(MetricsRegistry registry) {
+        registry.register_gauge("cluster_members", "Nodes in this node's ring", () -> this.ring.get_nodes().size());
+        registry.register_counter("cluster_urls_forwarded_total", "URLs handed to another node",
+                this.urls_forwarded::sum);
+        registry.register_counter("cluster_urls_sent_total", "URLs written to peer connections", this.urls_sent::sum);
+        registry.register_counter("cluster_urls_received_total", "URLs received from other nodes",
+                this.urls_received::sum);
+        registry.register_counter("cluster_urls_rejected_total",
+                "URLs from other nodes dropped by the URL filter or sent by a non-member", this.urls_rejected::sum);
+        registry.register_counter("cluster_batches_sent_total", "URLS frames written", this.batches_sent::sum);
+        registry.register_counter("cluster_urls_rebalanced_total", "Queued URLs moved after a membership change",
+                this.urls_rebalanced::sum);
+        registry.register_counter("cluster_urls_kept_full_total",
+                "URLs crawled here because the owner's send queue was full", this.urls_kept_full::sum);
+        registry.register_counter("cluster_peer_failures_total", "Peers dropped after a failed send",
+                this.peer_failures::sum);
+        registry.register_counter("cluster_membership_changes_total", "Joins and leaves seen",
+                this.membership_changes::sum);
+        registry.register_gauge("cluster_send_queue_urls", "URLs waiting to be sent to peers", () -> {
+            long n = 0;
+            for (Peer p : this.peers.values()) {
+                n += p.queue.size();
+            }
+            return n;
+        });
+    }
+
+    public void start() throws IOException {
+        this.server = new ServerSocket();
+        this.server.setReuseAddress(true);
+        this.server.bind(address_of(this.self));
+        Thread acceptor = new Thread(this::accept_loop, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        this.heartbeat.scheduleWithFixedDelay(this::send_heartbeat, 0, this.heartbeat_ms, TimeUnit.MILLISECONDS);
+        System.out.println("[Cluster] node " + this.self + " listening, members: " + this.ring.get_nodes());
+    }
+
+    public String get_self() {
+        return this.self;
+    }
+
+    public HashRing get_ring() {
+        return this.ring;
+    }
+
+    public boolean is_local(CrawlUrl url) {
+        return this.is_local_host(url.host);
+    }
+
+    public boolean is_local_host(String host) {
+        String owner = this.ring.owner(host);
+        return owner == null || owner.equals(this.self);
+    }
+
+    // For a URL this node has already marked as seen: sent to its owner, or put in
+    // the local queue when the owner is this node after all
+    // Waits while the owner's send queue is full, so crawler threads slow down to
+    // what the network takes
+    public void forward(CrawlUrl url) {
+        this.route(url, url.url, 0, this.local_queue, true);
+    }
+
+    // Moves URLs taken out of the frontier after a membership change; runs on the
+    // thread that saw the change, so a full send queue keeps the URL here
+    public void rebalance(List<CrawlUrl> urls) {
+        for (CrawlUrl url : urls) {
+            this.route(url, url.url, 0, this.local_queue, false);
+        }
+        this.urls_rebalanced.add(urls.size());
+    }
+
+    // Set by the controller while this node has no queued or in-flight URLs; sent
+    // to the other nodes with the next HELLO
+    public void set_idle(boolean idle) {
+        this.idle = idle;
+    }
+
+    // Nothing waiting to be sent, nothing received for quiet_ms and every other node
+    // idle at its last HELLO; the controller only stops on an empty frontier once
+    // this holds, so that nodes finish together instead of the last busy one
+    // inheriting the hosts of all the others
+    public boolean is_cluster_idle(long quiet_ms) {
+        for (Peer p : this.peers.values()) {
+            if (!p.is_drained() || !p.idle) {
+                return false;
+            }
+        }
+        return System.nanoTime() - this.last_received_ns >= TimeUnit.MILLISECONDS.toNanos(quiet_ms);
+    }
+
+    // Graceful exit: tells the other nodes, hands them the given pending URLs and
+    // waits up to deadline_ms for the send queues to drain
+    // Returns how many URLs were handed over, 0 when no other node is left
+    public int leave(List<String> pending, long deadline_ms) {
+        synchronized (this.membership_lock) {
+            this.leaving = true;
+            this.rebuild_ring();
+        }
+        for (Peer p : new ArrayList<>(this.peers.values())) {
+            this.send_or_fail(p, LEAVE, List.of(this.self));
+        }
+        int handed = 0;
+        if (!this.peers.isEmpty()) {
+            for (String s : pending) {
+                CrawlUrl url = CrawlUrl.parse(s);
+                if (url != null) {
+                    this.route(url, url.url, 0, u -> {
+                    }, true);
+                    handed++;
+                }
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline_ms);
+        while (System.nanoTime() < deadline && !this.peers_drained()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        System.out.println("[Cluster] node " + this.self + " left, handed " + handed + " queued URLs to "
+                + this.peers.size() + " nodes");
+        return handed;
+    }
+
+    public void close() {
+        this.closed = true;
+        this.heartbeat.shutdownNow();
+        if (this.server != null) {
+            try {
+                this.server.close();
+            } catch (IOException err) {
+            }
+        }
+        for (Peer p : this.peers.values()) {
+            p.stop();
+        }
+    }
+
+    private boolean peers_drained() {
+        for (Peer p : this.peers.values()) {
+            if (!p.is_drained()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Retries with the new ring when the owner is dropped in between
+    // With may_block a full send queue is waited for; otherwise (reader, sender and
+    // heartbeat threads, which would deadlock against a peer doing the same) the URL
+    // goes to if_local and is crawled here
+    private void route(CrawlUrl url, String raw, int hops, Consumer<CrawlUrl> if_local, boolean may_block) {
+        while (true) {
+            String owner = this.ring.owner(url.host);
+            boolean local = owner == null || owner.equals(this.self);
+            Peer p = local ? null : this.peers.get(owner);
+            if (p != null && !p.stopped) {
+                Pending pending = new Pending(raw, hops);
+                boolean queued;
+                try {
+                    queued = may_block ? p.queue.offer(pending, OFFER_WAIT_MS, TimeUnit.MILLISECONDS)
+                            : p.queue.offer(pending);
+                } catch (InterruptedException err) {
+                    Thread.currentThread().interrupt();
+                    queued = p.queue.offer(pending);
+                    may_block = false;
+                }
+                if (queued) {
+                    this.urls_forwarded.increment();
+                    return;
+                }
+                if (may_block) {
+                    // Still full; the owner may have changed while waiting
+                    continue;
+                }
+                this.urls_kept_full.increment();
+                local = true;
+            }
+            if (local) {
+                Consumer<CrawlUrl> sink = if_local;
+                if (sink != null) {
+                    sink.accept(url);
+                }
+                return;
+            }
+            synchronized (this.membership_lock) {
+                this.rebuild_ring();
+            }
+        }
+    }
+
+    private void accept_loop() {
+        while (!this.closed) {
+            try {
+                Socket s = this.server.accept();
+                Thread reader = new Thread(() -> this.read_loop(s), "cluster-recv");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException err) {
+                if (!this.closed) {
+                    System.err.println("[Cluster] accept failed: " + err.getMessage());
+                }
+            }
+        }
+    }
+
+    private void read_loop(Socket s) {
+        // Node named by the last HELLO on this connection
+        String sender = null;
+        try (s; DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024))) {
+            while (!this.closed) {
+                byte type = in.readByte();
+                switch (type) {
+                    case HELLO -> {
+                        sender = read_string(in);
+                        this.on_hello(sender, in.readByte() != 0);
+                    }
+                    case MEMBERS -> {
+                        int n = in.readInt();
+                        List<String> nodes = new ArrayList<>(n);
+                        for (int i = 0; i < n; i++) {
+                            nodes.add(read_string(in));
+                        }
+                        this.on_members(nodes);
+                    }
+                    case LEAVE -> this.remove_member(read_string(in), "left");
+                    case URLS -> {
+                        int n = in.readInt();
+                        if (sender == null || !this.peers.containsKey(sender)) {
+                            this.urls_rejected.add(Math.max(0, n));
+                            throw new IOException("URLS frame from " + (sender == null ? "an unnamed node" : sender)
+                                    + ", which is not a member");
+                        }
+                        for (int i = 0; i < n; i++) {
+                            int hops = in.readByte();
+                            this.on_url(read_string(in), hops);
+                        }
+                        this.last_received_ns = System.nanoTime();
+                    }
+                    default -> throw new IOException("unknown frame type " + type);
+                }
+            }
+        } catch (EOFException err) {
+        } catch (IOException err) {
+            if (!this.closed) {
+                System.err.println("[Cluster] connection from " + s.getRemoteSocketAddress() + " failed: "
+                        + err.getMessage());
+            }
+        }
+    }
+
+    private void on_url(String raw, int hops) {
+        this.urls_received.increment();
+        CrawlUrl url = CrawlUrl.parse(raw);
+        if (url == null || !this.url_filter.test(url)) {
+            this.urls_rejected.increment();
+            return;
+        }
+        Consumer<CrawlUrl> receiver = this.receiver;
+        if (hops >= MAX_HOPS) {
+            if (receiver != null) {
+                receiver.accept(url);
+            }
+            return;
+        }
+        this.route(url, raw, hops + 1, receiver, false);
+    }
+
+    private void on_hello(String node, boolean idle) {
+        boolean added = this.add_member(node);
+        Peer p = this.peers.get(node);
+        if (p == null) {
+            return;
+        }
+        p.idle = idle;
+        if (added && this.send_or_fail(p, HELLO, List.of(this.self))) {
+            this.send_or_fail(p, MEMBERS, this.ring.get_nodes());
+        }
+    }
+
+    private void on_members(List<String> nodes) {
+        for (String node : nodes) {
+            if (this.add_member(node)) {
+                Peer p = this.peers.get(node);
+                if (p != null) {
+                    this.send_or_fail(p, HELLO, List.of(this.self));
+                }
+            }
+        }
+    }
+
+    private boolean add_member(String node) {
+        synchronized (this.membership_lock) {
+            if (this.closed || this.leaving || node.equals(this.self) || this.peers.containsKey(node)) {
+                return false;
+            }
+            this.peers.put(node, new Peer(node));
+            this.rebuild_ring();
+        }
+        System.out.println("[Cluster] " + node + " joined, members: " + this.ring.get_nodes());
+        this.membership_changed();
+        return true;
+    }
+
+    private void remove_member(String node, String reason) {
+        Peer p;
+        synchronized (this.membership_lock) {
+            p = this.peers.remove(node);
+            if (p == null) {
+                return;
+            }
+            this.rebuild_ring();
+        }
+        // Outside the lock: stop() waits for a send in progress, which may be stuck connecting
+        p.stop();
+        System.out.println("[Cluster] " + node + " " + reason + ", members: " + this.ring.get_nodes());
+        // URLs still queued for it go to the new owners
+        List<Pending> left = new ArrayList<>();
+        p.queue.drainTo(left);
+        this.reroute(left);
+        this.membership_changed();
+    }
+
+    // A failed control frame only drops the node once it has been failing for failure_timeout_ms
+    private boolean send_or_fail(Peer p, byte type, List<String> strings) {
+        try {
+            p.send_control(type, strings);
+            return true;
+        } catch (IOException err) {
+            if (type == LEAVE || p.note_failure()) {
+                this.peer_failed(p, List.of(), err);
+            }
+            return false;
+        }
+    }
+
+    private void peer_failed(Peer p, List<Pending> unsent, IOException err) {
+        if (this.closed) {
+            return;
+        }
+        this.peer_failures.increment();
+        this.remove_member(p.node, "unreachable (" + err.getMessage() + ")");
+        this.reroute(unsent);
+    }
+
+    private void reroute(List<Pending> pending) {
+        for (Pending p : pending) {
+            CrawlUrl url = CrawlUrl.parse(p.url);
+            if (url != null) {
+                this.urls_forwarded.decrement();
+                this.route(url, p.url, p.hops, this.local_queue, false);
+            }
+        }
+    }
+
+    private void membership_changed() {
+        this.membership_changes.increment();
+        Runnable listener = this.membership_listener;
+        if (listener != null && !this.leaving) {
+            listener.run();
+        }
+    }
+
+    // Caller holds membership_lock
+    private void rebuild_ring() {
+        Set<String> nodes = new LinkedHashSet<>(this.peers.keySet());
+        if (!this.leaving) {
+            nodes.add(this.self);
+        }
+        this.ring = new HashRing(nodes, this.virtual_nodes);
+    }
+
+    private void send_heartbeat() {
+        for (Peer p : new ArrayList<>(this.peers.values())) {
+            this.send_or_fail(p, HELLO, List.of(this.self));
+        }
+        // Configured peers that are not members (not started yet, or restarted) get
+        // a HELLO on a short-lived connection and join once they answer
+        for (String node : this.seed_peers) {
+            if (node.equals(this.self) || this.peers.containsKey(node)) {
+                continue;
+            }
+            try (Socket s = new Socket()) {
+                s.connect(address_of(node), CONNECT_TIMEOUT_MS);
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                out.writeByte(HELLO);
+                write_string(out, this.self);
+                out.writeByte(this.idle ? 1 : 0);
+                out.flush();
+            } catch (IOException err) {
+            }
+        }
+    }
+
+    static InetSocketAddress address_of(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("cluster node must be host:port, got " + node);
+        }
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    private static void write_string(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String read_string(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > MAX_STRING_BYTES) {
+            throw new IOException("bad string length " + len);
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,76 @@
+package group.work.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import group.work.helpers.Hashing;
+
+// Consistent hashing of host names onto nodes
+// Every node is placed at virtual_nodes points of a 64-bit ring and a host belongs
+// to the first point at or after its hash, so adding or removing one node only moves
+// the hosts of that node (about 1/n of them) and every node computes the same owner
+// from the same member list. Immutable, a membership change builds a new ring
+public class HashRing {
+    private final List<String> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    public HashRing(Collection<String> nodes, int virtual_nodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+        int n = this.nodes.size() * virtual_nodes;
+        long[] keys = new long[n];
+        String[] names = new String[n];
+        int i = 0;
+        for (String node : this.nodes) {
+            for (int v = 0; v < virtual_nodes; v++) {
+                keys[i] = Hashing.hash64(node + "#" + v);
+                names[i] = node;
+                i++;
+            }
+        }
+        // Sort points and owners together; ties (practically impossible) go by name
+        Integer[] order = new Integer[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, (a, b) -> keys[a] != keys[b] ? Long.compare(keys[a], keys[b])
+                : names[a].compareTo(names[b]));
+        this.points = new long[n];
+        this.owners = new String[n];
+        for (int k = 0; k < n; k++) {
+            this.points[k] = keys[order[k]];
+            this.owners[k] = names[order[k]];
+        }
+    }
+
+    // null when the ring has no nodes
+    public String owner(String host) {
+        if (this.points.length == 0) {
+            return null;
+        }
+        long h = Hashing.hash64(host);
+        int lo = 0;
+        int hi = this.points.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.points[mid] < h) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return this.owners[lo == this.points.length ? 0 : lo];
+    }
+
+    public List<String> get_nodes() {
+        return this.nodes;
+    }
+
+    public boolean contains(String node) {
+        return this.nodes.contains(node);
+    }
+}
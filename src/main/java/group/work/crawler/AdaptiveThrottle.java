@@ -0,0 +1,219 @@
+package group.work.crawler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import group.work.helpers.CrawlUrl;
+import group.work.helpers.HostFrontier;
+import group.work.metrics.MetricsRegistry;
+
+// AIMD control of each host's request rate through the frontier's per-host delay and
+// in-flight limit: healthy answers grow the window by one per window of answers and
+// shorten the delay a step, while 429/503, other 5xx, network errors and latency far
+// above the host's baseline halve the window and double the delay, at most once per
+// round trip. The window stays within [1, max_concurrency] and the delay within
+// [floor, max_delay_ms]; the floor is never below the robots Crawl-delay
+public class AdaptiveThrottle {
+    private static class HostState {
+        final String host;
+        double window = 1;
+        long delay_ms;
+        long crawl_delay_ms = 0;
+        double latency_ewma_us = -1;
+        long baseline_us = -1;
+        long samples = 0;
+        long last_decrease_ns = 0;
+        int applied_window = -1;
+        long applied_delay_ms = -1;
+
+        HostState(String host, long delay_ms) {
+            this.host = host;
+            this.delay_ms = delay_ms;
+        }
+    }
+
+    // First delay after a decrease from (almost) no delay
+    private static final long MIN_BACKOFF_DELAY_MS = 250;
+    // Latency rises smaller than this are jitter, not congestion
+    private static final long MIN_LATENCY_SIGNAL_US = 50_000;
+    // Samples needed before latency counts as a signal
+    private static final int MIN_LATENCY_SAMPLES = 8;
+
+    private final HostFrontier frontier;
+    private final ConcurrentHashMap<String, HostState> hosts = new ConcurrentHashMap<>();
+    private final long initial_delay_ms;
+    private final long min_delay_ms;
+    private final long max_delay_ms;
+    private final long delay_step_ms;
+    private final int max_concurrency;
+    private final double latency_factor;
+    private final MetricsRegistry metrics;
+    private final int metrics_max_hosts;
+    private final AtomicInteger hosts_with_gauges = new AtomicInteger(0);
+    private final LongAdder increases = new LongAdder();
+    private final LongAdder decreases_throttled;
+    private final LongAdder decreases_server_error;
+    private final LongAdder decreases_network_error;
+    private final LongAdder decreases_latency;
+
+    public AdaptiveThrottle(HostFrontier frontier, CrawlerConfig config, MetricsRegistry metrics) {
+        this.frontier = frontier;
+        this.min_delay_ms = config.host_min_delay_ms < 0 ? config.default_host_delay_ms
+                : Math.min(config.host_min_delay_ms, config.default_host_delay_ms);
+        this.initial_delay_ms = config.default_host_delay_ms;
+        this.max_delay_ms = Math.max(config.host_max_delay_ms, this.initial_delay_ms);
+        this.delay_step_ms = config.host_delay_step_ms;
+        this.max_concurrency = Math.max(1, config.host_max_concurrency);
+        this.latency_factor = config.host_latency_factor;
+        this.metrics = metrics;
+        this.metrics_max_hosts = config.metrics_max_hosts;
+        this.decreases_throttled = this.decrease_counter("throttled");
+        this.decreases_server_error = this.decrease_counter("server_error");
+        this.decreases_network_error = this.decrease_counter("network_error");
+        this.decreases_latency = this.decrease_counter("latency");
+        metrics.register_counter("throttle_increases_total", "Additive increases of a host's rate",
+                this.increases::sum);
+        metrics.register_gauge("throttle_hosts_backed_off", "Hosts whose delay is above their floor",
+                this::count_backed_off);
+    }
+
+    private LongAdder decrease_counter(String reason) {
+        return this.metrics.counter("throttle_decreases_total{reason=\"" + reason + "\"}",
+                "Multiplicative decreases of a host's rate, by signal");
+    }
+
+    // Called with the robots Crawl-delay (0 when none) before each fetch
+    public void set_crawl_delay(CrawlUrl url, long crawl_delay_ms) {
+        HostState st = this.state(url.host);
+        synchronized (st) {
+            if (st.crawl_delay_ms == crawl_delay_ms && st.applied_window >= 0) {
+                return;
+            }
+            st.crawl_delay_ms = crawl_delay_ms;
+            st.delay_ms = Math.max(st.delay_ms, this.floor(st));
+            this.apply(st);
+        }
+    }
+
+    // HttpFetcher.AttemptListener, called for every request attempt
+    public void on_attempt(String host, int status, long latency_us, Long retry_after_ms) {
+        HostState st = this.state(host);
+        synchronized (st) {
+            if (status < 0) {
+                this.decrease(st, this.decreases_network_error, true);
+            } else if (status == 429 || status == 503) {
+                this.decrease(st, this.decreases_throttled, true);
+            } else if (status >= 500) {
+                this.decrease(st, this.decreases_server_error, true);
+            } else if (status >= 400) {
+                // 404s and the like are about the URL, not the host's load
+                this.observe_latency(st, latency_us);
+            } else {
+                this.observe_latency(st, latency_us);
+                if (st.samples >= MIN_LATENCY_SAMPLES
+                        && st.latency_ewma_us > this.latency_factor * st.baseline_us
+                        && st.latency_ewma_us - st.baseline_us > MIN_LATENCY_SIGNAL_US) {
+                    this.decrease(st, this.decreases_latency, st.window < 2);
+                } else {
+                    this.increase(st);
+                }
+            }
+            this.apply(st);
+        }
+        if (retry_after_ms != null && retry_after_ms > 0 && (status == 429 || status == 503)) {
+            this.frontier.pause_host(host, Math.min(retry_after_ms, this.max_delay_ms));
+        }
+    }
+
+    private void observe_latency(HostState st, long latency_us) {
+        st.samples++;
+        st.latency_ewma_us = st.latency_ewma_us < 0 ? latency_us : st.latency_ewma_us * 0.8 + latency_us * 0.2;
+        // The baseline follows drops at once and rises slowly, so a host that became
+        // slower for good is not treated as congested forever
+        if (st.baseline_us < 0 || latency_us < st.baseline_us) {
+            st.baseline_us = latency_us;
+        } else {
+            st.baseline_us += (latency_us - st.baseline_us) / 256;
+        }
+    }
+
+    private void increase(HostState st) {
+        st.window = Math.min(this.max_concurrency, st.window + 1.0 / st.window);
+        if (st.delay_ms > 0) {
+            double rate = 1000.0 / st.delay_ms + this.delay_step_ms / 1000.0;
+            st.delay_ms = Math.max(this.floor(st), Math.min(st.delay_ms - 1, (long) (1000.0 / rate)));
+        }
+        this.increases.increment();
+    }
+
+    private void decrease(HostState st, LongAdder reason, boolean slow_down) {
+        long now = System.nanoTime();
+        long round_trip_ns = Math.max((long) st.latency_ewma_us * 1000, st.delay_ms * 1_000_000);
+        if (st.last_decrease_ns != 0 && now - st.last_decrease_ns < round_trip_ns) {
+            return;
+        }
+        st.last_decrease_ns = now;
+        st.window = Math.max(1, st.window / 2);
+        reason.increment();
+        if (!slow_down) {
+            return;
+        }
+        long doubled = Math.max(st.delay_ms * 2, MIN_BACKOFF_DELAY_MS);
+        st.delay_ms = Math.max(this.floor(st), Math.min(this.max_delay_ms, doubled));
+    }
+
+    private long floor(HostState st) {
+        return Math.max(this.min_delay_ms, st.crawl_delay_ms);
+    }
+
+    // Caller holds the state's monitor; the frontier is only told about real changes
+    private void apply(HostState st) {
+        int window = (int) st.window;
+        if (window == st.applied_window && st.delay_ms == st.applied_delay_ms) {
+            return;
+        }
+        st.applied_window = window;
+        st.applied_delay_ms = st.delay_ms;
+        this.frontier.set_host_limits(st.host, st.delay_ms, window);
+    }
+
+    private HostState state(String host) {
+        HostState st = this.hosts.get(host);
+        if (st != null) {
+            return st;
+        }
+        HostState created = new HostState(host, this.initial_delay_ms);
+        st = this.hosts.putIfAbsent(host, created);
+        if (st != null) {
+            return st;
+        }
+        if (this.hosts_with_gauges.getAndIncrement() < this.metrics_max_hosts) {
+            this.register_host_gauges(created);
+        }
+        return created;
+    }
+
+    // Only for the first metrics_max_hosts hosts, one series per host would not scale
+    private void register_host_gauges(HostState st) {
+        String label = "{host=\"" + st.host + "\"}";
+        this.metrics.register_gauge("host_concurrency_limit" + label, "In-flight requests allowed for the host",
+                () -> (int) st.window);
+        this.metrics.register_gauge("host_in_flight" + label, "URLs of the host being worked on",
+                () -> this.frontier.get_host_in_flight(st.host));
+        this.metrics.register_gauge("host_delay_seconds" + label, "Current delay between requests to the host",
+                () -> st.delay_ms / 1000.0);
+        this.metrics.register_gauge("host_latency_ewma_seconds" + label, "Smoothed request latency of the host",
+                () -> Math.max(0, st.latency_ewma_us) / 1e6);
+    }
+
+    private double count_backed_off() {
+        int n = 0;
+        for (HostState st : this.hosts.values()) {
+            if (st.delay_ms > this.floor(st)) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,186 @@
+package group.work.crawler;
+
+import java.util.Locale;
+
+import group.work.storage.StorageService;
+
+// Tunables of a crawl run
+// Defaults keep the politeness of the values that used to be hard-coded in Main and
+// CrawlerController (one request per host per second); features that change what is
+// fetched or stored are opt-in
+public class CrawlerConfig {
+    public enum ExecutionMode {
+        // One platform thread per worker, concurrency bounded by num_threads
+        FIXED_POOL,
+        // One virtual thread per worker, so num_threads can go to thousands (needs JDK 21+)
+        VIRTUAL_THREADS
+    }
+
+    public int max_pages = 50;
+    public int num_threads = 10;
+    public ExecutionMode execution_mode = ExecutionMode.FIXED_POOL;
+    // Gap between two requests to the same host when robots.txt sets no Crawl-delay;
+    // with adaptive_politeness it is the starting delay of every host
+    public long default_host_delay_ms = 1000;
+    // Adapt each host's delay and concurrency to its latency, 429/503s and errors
+    // (see AdaptiveThrottle); the delay never goes below the robots Crawl-delay
+    // With the default limits below it can only slow a host down
+    public boolean adaptive_politeness = true;
+    // Lowest delay without Crawl-delay, capped by default_host_delay_ms; -1 keeps it at
+    // default_host_delay_ms, a lower value lets healthy hosts speed up
+    public long host_min_delay_ms = -1;
+    public long host_max_delay_ms = 60_000;
+    // Requests per second (divided by 1000) a healthy answer adds to the host's rate,
+    // about this many ms off a 1 s delay
+    public long host_delay_step_ms = 50;
+    // Above 1 lets healthy hosts have several requests in flight
+    public int host_max_concurrency = 1;
+    // Smoothed latency above this multiple of the host's baseline is a slow-down signal
+    public double host_latency_factor = 4.0;
+    // Requests the fetcher has in flight at once, -1 for max(256, num_threads) so that
+    // every worker can have its fetch out; up to 64 times as many wait for a slot
+    public int fetch_max_in_flight = -1;
+    // Store 64-bit fingerprints instead of URL strings in the visited set
+    public boolean visited_fingerprints = false;
+    public long visited_expected_urls = 1_000_000;
+    public boolean visited_off_heap = false;
+    public boolean visited_bloom = false;
+    // Directory of the compressed record segments written by StorageService
+    public String output_dir = "crawled_data";
+    public long segment_max_bytes = 256L * 1024 * 1024;
+    // Bytes of page content the storage queue may hold before producers block or shed
+    public long storage_max_pending_bytes = 64L * 1024 * 1024;
+    public StorageService.OverflowPolicy storage_overflow_policy = StorageService.OverflowPolicy.BLOCK;
+    public long storage_stop_deadline_ms = 10_000;
+    // Segments are forced to disk after this long or this many bytes, whichever comes first
+    public long storage_sync_interval_ms = 1000;
+    public long storage_sync_bytes = 16L * 1024 * 1024;
+    // URL canonicalization applied to seeds and discovered links
+    public boolean sort_query_params = false;
+    public boolean strip_tracking_params = true;
+    // Extra allow/deny/path rules for the scope (see ScopePolicy.Rules.load), null for none
+    public String scope_rules_file = null;
+    // public_suffix_list.dat to use instead of the short built-in list, null for none
+    public String public_suffix_file = null;
+    // Widen each seed host to its registrable domain (www.example.co.uk -> example.co.uk)
+    public boolean scope_registrable_domain = false;
+    // Extract links with the streaming LinkExtractor instead of a full Jsoup DOM
+    public boolean streaming_links = true;
+    // Follow the Sitemap: lines of robots.txt and queue the URLs the sitemaps list
+    public boolean sitemaps = false;
+    // Sitemap files fetched per run at most, indexes and their children together
+    public int sitemap_max_files = 1000;
+    // Pages whose SimHash is within this many bits of a stored page are not stored,
+    // -1 (the default) disables the check and 0 only catches exact text duplicates (max 3)
+    public int near_duplicate_distance = -1;
+    public boolean follow_duplicate_links = true;
+    // Persistent ETag/Last-Modified cache for conditional recrawls, null disables it
+    // A later run then skips storing pages that did not change; the file is saved with
+    // every checkpoint and at shutdown
+    public String validator_cache_path = null;
+    // Directory for crawl checkpoints, null disables checkpointing and resume
+    public String checkpoint_dir = null;
+    public long checkpoint_interval_ms = 60_000;
+    // Print a line for every fetched, disallowed or failed URL; the crawler_urls_total
+    // counters cover the same outcomes without a shared System.out lock per page
+    public boolean log_urls = false;
+    // Interval of the [Controller] status line, 0 disables it
+    public long status_interval_ms = 10_000;
+    // Registers the metrics as the group.work:type=CrawlerMetrics JMX bean
+    public boolean metrics_jmx = true;
+    // Port of the Prometheus /metrics endpoint on 127.0.0.1, -1 disables it, 0 picks a free one
+    public int metrics_port = -1;
+    // Hosts that get their own throttle gauges, the others only count in the totals
+    public int metrics_max_hosts = 32;
+    // host:port this node listens on for other crawler nodes, null crawls alone;
+    // hosts are then split across the nodes by a HashRing (see ClusterNode)
+    public String cluster_listen = null;
+    // Nodes to join, comma separated host:port; the rest are learned from them
+    public String cluster_peers = "";
+    // URLs per frame and how long a sender waits to fill one
+    public int cluster_batch_size = 256;
+    public long cluster_linger_ms = 50;
+    public int cluster_virtual_nodes = 128;
+    public long cluster_heartbeat_ms = 2000;
+
+    // Reads overrides such as -Dcrawler.threads=2000 -Dcrawler.mode=virtual_threads
+    public static CrawlerConfig from_system_properties() {
+        CrawlerConfig config = new CrawlerConfig();
+        config.max_pages = Integer.getInteger("crawler.max_pages", config.max_pages);
+        config.num_threads = Integer.getInteger("crawler.threads", config.num_threads);
+        config.default_host_delay_ms = Long.getLong("crawler.host_delay_ms", config.default_host_delay_ms);
+        config.adaptive_politeness = Boolean.parseBoolean(
+                System.getProperty("crawler.host.adaptive", String.valueOf(config.adaptive_politeness)));
+        config.host_min_delay_ms = Long.getLong("crawler.host.min_delay_ms", config.host_min_delay_ms);
+        config.host_max_delay_ms = Long.getLong("crawler.host.max_delay_ms", config.host_max_delay_ms);
+        config.host_delay_step_ms = Long.getLong("crawler.host.delay_step_ms", config.host_delay_step_ms);
+        config.host_max_concurrency = Integer.getInteger("crawler.host.max_concurrency",
+                config.host_max_concurrency);
+        String latency_factor = System.getProperty("crawler.host.latency_factor");
+        if (latency_factor != null) {
+            config.host_latency_factor = Double.parseDouble(latency_factor.trim());
+        }
+        config.fetch_max_in_flight = Integer.getInteger("crawler.fetch.max_in_flight", config.fetch_max_in_flight);
+        config.visited_fingerprints = Boolean.getBoolean("crawler.visited.fingerprints");
+        config.visited_expected_urls = Long.getLong("crawler.visited.expected_urls", config.visited_expected_urls);
+        config.visited_off_heap = Boolean.getBoolean("crawler.visited.off_heap");
+        config.visited_bloom = Boolean.getBoolean("crawler.visited.bloom");
+        config.output_dir = System.getProperty("crawler.output_dir", config.output_dir);
+        config.segment_max_bytes = Long.getLong("crawler.segment_max_bytes", config.segment_max_bytes);
+        config.storage_max_pending_bytes = Long.getLong("crawler.storage.max_pending_bytes",
+                config.storage_max_pending_bytes);
+        String overflow = System.getProperty("crawler.storage.overflow");
+        if (overflow != null) {
+            config.storage_overflow_policy = StorageService.OverflowPolicy
+                    .valueOf(overflow.trim().toUpperCase(Locale.ROOT));
+        }
+        config.storage_stop_deadline_ms = Long.getLong("crawler.storage.stop_deadline_ms",
+                config.storage_stop_deadline_ms);
+        config.storage_sync_interval_ms = Long.getLong("crawler.storage.sync_interval_ms",
+                config.storage_sync_interval_ms);
+        config.storage_sync_bytes = Long.getLong("crawler.storage.sync_bytes", config.storage_sync_bytes);
+        config.sort_query_params = Boolean.getBoolean("crawler.url.sort_query");
+        config.strip_tracking_params = Boolean.parseBoolean(System.getProperty("crawler.url.strip_tracking",
+                String.valueOf(config.strip_tracking_params)));
+        config.scope_rules_file = System.getProperty("crawler.scope.rules", config.scope_rules_file);
+        config.public_suffix_file = System.getProperty("crawler.scope.public_suffix_file",
+                config.public_suffix_file);
+        config.scope_registrable_domain = Boolean.getBoolean("crawler.scope.registrable_domain");
+        config.streaming_links = Boolean.parseBoolean(
+                System.getProperty("crawler.streaming_links", String.valueOf(config.streaming_links)));
+        config.sitemaps = Boolean.getBoolean("crawler.sitemaps");
+        config.sitemap_max_files = Integer.getInteger("crawler.sitemap.max_files", config.sitemap_max_files);
+        config.near_duplicate_distance = Integer.getInteger("crawler.dedup.distance",
+                config.near_duplicate_distance);
+        config.follow_duplicate_links = Boolean.parseBoolean(System.getProperty("crawler.dedup.follow_links",
+                String.valueOf(config.follow_duplicate_links)));
+        config.validator_cache_path = System.getProperty("crawler.validator_cache", config.validator_cache_path);
+        if (config.validator_cache_path != null && config.validator_cache_path.isBlank()) {
+            config.validator_cache_path = null;
+        }
+        config.checkpoint_dir = System.getProperty("crawler.checkpoint.dir", config.checkpoint_dir);
+        config.checkpoint_interval_ms = Long.getLong("crawler.checkpoint.interval_ms",
+                config.checkpoint_interval_ms);
+        config.log_urls = Boolean.getBoolean("crawler.log.urls");
+        config.status_interval_ms = Long.getLong("crawler.log.status_interval_ms", config.status_interval_ms);
+        config.metrics_jmx = Boolean.parseBoolean(
+                System.getProperty("crawler.metrics.jmx", String.valueOf(config.metrics_jmx)));
+        config.metrics_port = Integer.getInteger("crawler.metrics.port", config.metrics_port);
+        config.metrics_max_hosts = Integer.getInteger("crawler.metrics.max_hosts", config.metrics_max_hosts);
+        config.cluster_listen = System.getProperty("crawler.cluster.listen", config.cluster_listen);
+        if (config.cluster_listen != null && config.cluster_listen.isBlank()) {
+            config.cluster_listen = null;
+        }
+        config.cluster_peers = System.getProperty("crawler.cluster.peers", config.cluster_peers);
+        config.cluster_batch_size = Integer.getInteger("crawler.cluster.batch_size", config.cluster_batch_size);
+        config.cluster_linger_ms = Long.getLong("crawler.cluster.linger_ms", config.cluster_linger_ms);
+        config.cluster_virtual_nodes = Integer.getInteger("crawler.cluster.virtual_nodes",
+                config.cluster_virtual_nodes);
+        config.cluster_heartbeat_ms = Long.getLong("crawler.cluster.heartbeat_ms", config.cluster_heartbeat_ms);
+        String mode = System.getProperty("crawler.mode");
+        if (mode != null) {
+            config.execution_mode = ExecutionMode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        }
+        return config;
+    }
+}
@@ -1,75 +1,375 @@
 package group.work.crawler;
 
-import java.net.URI;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+import group.work.cluster.ClusterNode;
 import group.work.handlers.HttpFetcher;
+import group.work.handlers.PublicSuffixes;
 import group.work.handlers.RobotsService;
 import group.work.handlers.ScopePolicy;
-import group.work.helpers.RateLimiter;
+import group.work.handlers.SitemapService;
+import group.work.helpers.CrawlUrl;
+import group.work.helpers.FingerprintVisitedSet;
+import group.work.helpers.HostFrontier;
+import group.work.helpers.LatencyHistogram;
+import group.work.helpers.SimHashIndex;
+import group.work.helpers.StringVisitedSet;
 import group.work.helpers.UrlNormalizer;
 import group.work.helpers.VisitedManager;
+import group.work.metrics.MetricsEndpoint;
+import group.work.metrics.MetricsMBean;
+import group.work.metrics.MetricsRegistry;
+import group.work.storage.CheckpointService;
 import group.work.storage.StorageService;
+import group.work.storage.ValidatorCache;
 
-// We run x crawler workers in a fixed thread pool
+// We run x crawler workers in a fixed thread pool, or on virtual threads when configured
 // Each worker is submitted as a Callable, so we can track failures via Future.get();
 public class CrawlerController {
-    private final BlockingQueue<String> url_queue = new LinkedBlockingQueue<>();
+    private final HostFrontier url_queue;
     private final ExecutorService executor_service;
     private final ScheduledExecutorService monitor_service = Executors.newSingleThreadScheduledExecutor(r -> {
         Thread t = new Thread(r, "crawler-monitor");
         t.setDaemon(true);
         return t;
     });
-    private final VisitedManager visited_manager = new VisitedManager();
-    private final StorageService storage_service = new StorageService("crawled_data.txt");
+    private final VisitedManager visited_manager;
+    private final StorageService storage_service;
+    private final long storage_stop_deadline_ms;
     private final RobotsService robots_service = new RobotsService();
-    private final RateLimiter rate_limiter = new RateLimiter(1000);
-    private final HttpFetcher http_fetcher = new HttpFetcher("Crawler/1.0");
+    private final HttpFetcher http_fetcher;
+    private final SitemapService sitemap_service;
     private final ScopePolicy scope_policy;
+    // Per controller, several controllers can run in one JVM with different options
+    private final UrlNormalizer.Options url_options;
+    private final CheckpointService checkpoint_service;
+    private final ValidatorCache validator_cache;
+    private final SimHashIndex near_duplicates;
+    private final boolean follow_duplicate_links;
+    private final long checkpoint_interval_ms;
     private final int max_pages;
     private final int num_threads;
+    private final long default_host_delay_ms;
+    private final boolean streaming_links;
+    private final boolean log_urls;
+    private final long status_interval_ms;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final AdaptiveThrottle throttle;
+    private final ClusterNode cluster;
+    private final MetricsMBean metrics_bean;
+    private final MetricsEndpoint metrics_endpoint;
+    private final int metrics_port;
+    private final int metrics_max_hosts;
+    private final LongAdder sitemap_urls_queued = new LongAdder();
+    private final LongAdder sitemap_urls_unchanged = new LongAdder();
+    private final LongAdder sitemap_urls_rejected = new LongAdder();
     private final AtomicInteger pages_stored = new AtomicInteger(0);
     private final AtomicInteger in_flight = new AtomicInteger(0);
     private final AtomicBoolean stop_req = new AtomicBoolean(false);
     private final AtomicBoolean shutdown_started = new AtomicBoolean(false);
     private final List<Future<Void>> worker_futures = new CopyOnWriteArrayList<>();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private long start_ns;
 
     public CrawlerController(List<String> seeds, int max_pages, int num_threads) {
-        this.max_pages = max_pages;
-        this.num_threads = num_threads;
-        Set<String> allowed_hosts = new HashSet<>();
+        this(seeds, with_limits(max_pages, num_threads));
+    }
+
+    public CrawlerController(List<String> seeds, CrawlerConfig config) {
+        this.max_pages = config.max_pages;
+        this.num_threads = config.num_threads;
+        this.default_host_delay_ms = config.default_host_delay_ms;
+        this.url_queue = new HostFrontier(config.default_host_delay_ms);
+        // The frontier paces each host, the fetcher's per-host cap only has to stay
+        // out of the way of a raised host_max_concurrency
+        int max_in_flight = config.fetch_max_in_flight > 0 ? config.fetch_max_in_flight
+                : Math.max(256, config.num_threads);
+        this.http_fetcher = new HttpFetcher("Crawler/1.0", max_in_flight, Math.max(4, config.host_max_concurrency));
+        if (config.adaptive_politeness) {
+            this.url_queue.set_default_max_in_flight(1);
+            this.throttle = new AdaptiveThrottle(this.url_queue, config, this.metrics);
+            this.http_fetcher.set_attempt_listener(this.throttle::on_attempt);
+        } else {
+            this.throttle = null;
+        }
+        this.streaming_links = config.streaming_links;
+        this.storage_service = new StorageService(config.output_dir, config.segment_max_bytes,
+                config.storage_max_pending_bytes, config.storage_overflow_policy, config.storage_sync_interval_ms,
+                config.storage_sync_bytes);
+        // Pages lost after store_async() accepted them do not count as stored
+        this.storage_service.set_drop_listener(url -> this.pages_stored.decrementAndGet());
+        this.storage_stop_deadline_ms = config.storage_stop_deadline_ms;
+        this.visited_manager = new VisitedManager(config.visited_fingerprints
+                ? new FingerprintVisitedSet(config.visited_expected_urls, 64, config.visited_off_heap,
+                        config.visited_bloom)
+                : new StringVisitedSet());
+        this.url_options = new UrlNormalizer.Options();
+        this.url_options.sort_query = config.sort_query_params;
+        this.url_options.strip_tracking = config.strip_tracking_params;
+        this.scope_policy = create_scope_policy(seeds, config, this.url_options);
+        this.executor_service = create_executor(config);
+        this.url_queue.set_new_host_listener(this.robots_service::prefetch);
+        this.validator_cache = config.validator_cache_path != null
+                ? new ValidatorCache(Path.of(config.validator_cache_path))
+                : null;
+        if (this.validator_cache != null) {
+            this.validator_cache.load();
+        }
+        this.near_duplicates = config.near_duplicate_distance >= 0
+                ? new SimHashIndex(config.near_duplicate_distance)
+                : null;
+        this.follow_duplicate_links = config.follow_duplicate_links;
+        this.checkpoint_interval_ms = config.checkpoint_interval_ms;
+        this.checkpoint_service = config.checkpoint_dir != null
+                ? new CheckpointService(Path.of(config.checkpoint_dir))
+                : null;
+        if (this.checkpoint_service != null) {
+            this.resume_from_checkpoint();
+        }
+        this.log_urls = config.log_urls;
+        this.status_interval_ms = config.status_interval_ms;
+        this.metrics_max_hosts = config.metrics_max_hosts;
+        this.cluster = config.cluster_listen != null ? this.create_cluster_node(config) : null;
+        if (config.sitemaps) {
+            this.sitemap_service = new SitemapService("Crawler/1.0", config.sitemap_max_files);
+            this.sitemap_service.set_sink(new SitemapService.Sink() {
+                @Override
+                public void on_url(String loc, long lastmod_ms) {
+                    CrawlerController.this.on_sitemap_url(loc, lastmod_ms);
+                }
+
+                @Override
+                public boolean on_sitemap(String loc) {
+                    return CrawlerController.this.is_sitemap_in_scope(loc);
+                }
+            });
+            this.sitemap_service.set_host_delay(this.url_queue::get_host_delay);
+            this.robots_service.set_sitemap_listener(this::on_sitemap);
+        } else {
+            this.sitemap_service = null;
+        }
+        this.register_metrics();
+        this.metrics_bean = config.metrics_jmx ? new MetricsMBean(this.metrics) : null;
+        this.metrics_port = config.metrics_port;
+        this.metrics_endpoint = config.metrics_port >= 0 ? new MetricsEndpoint(this.metrics) : null;
         for (String seed : seeds) {
-            String normalized = UrlNormalizer.normalize(seed);
+            CrawlUrl normalized = UrlNormalizer.canonicalize(seed, this.url_options);
             if (normalized != null) {
-                try {
-                    String host = new URI(normalized).getHost();
-                    if (host != null) {
-                        allowed_hosts.add(host.toLowerCase());
-                    }
-                } catch (Exception err) {
-                }
+                this.enqueue(normalized);
+            }
+        }
+    }
+
+    // New URLs go to the local frontier, or to their owner in a cluster
+    private boolean enqueue(CrawlUrl url) {
+        if (this.cluster != null && !this.cluster.is_local(url)) {
+            return this.visited_manager.enqueue_if_new(url, this.cluster::forward);
+        }
+        return this.visited_manager.enqueue_if_new(url, this.url_queue);
+    }
+
+    // Sitemaps are only read when they are in scope themselves, the ones listed in a
+    // sitemap index included
+    private void on_sitemap(String sitemap_url) {
+        if (this.is_sitemap_in_scope(sitemap_url)) {
+            this.sitemap_service.submit(sitemap_url);
+        }
+    }
+
+    private boolean is_sitemap_in_scope(String sitemap_url) {
+        CrawlUrl url = UrlNormalizer.canonicalize(sitemap_url, this.url_options);
+        return url != null && this.scope_policy.is_in_scope(url);
+    }
+
+    // Sitemap URLs take the same path as extracted links; a <lastmod> no newer than
+    // the last fetch in the validator cache means the page has not changed since,
+    // and it is left out (a link to it still gets it crawled, conditionally)
+    private void on_sitemap_url(String loc, long lastmod_ms) {
+        if (this.stop_req.get()) {
+            return;
+        }
+        CrawlUrl url = UrlNormalizer.canonicalize(loc, this.url_options);
+        if (url == null || !this.scope_policy.is_in_scope(url)) {
+            this.sitemap_urls_rejected.increment();
+            return;
+        }
+        if (lastmod_ms >= 0 && this.validator_cache != null) {
+            ValidatorCache.Entry cached = this.validator_cache.get(url.url);
+            if (cached != null && cached.fetched_at_ms >= lastmod_ms) {
+                this.sitemap_urls_unchanged.increment();
+                return;
+            }
+        }
+        if (this.enqueue(url)) {
+            this.sitemap_urls_queued.increment();
+        }
+    }
+
+    // Every node gets the same seeds and scope; each one keeps the seeds it owns and
+    // forwards the others, and the owners drop the copies through their visited sets
+    private ClusterNode create_cluster_node(CrawlerConfig config) {
+        List<String> peers = new ArrayList<>();
+        for (String peer : Arrays.asList(config.cluster_peers.split(","))) {
+            if (!peer.isBlank()) {
+                peers.add(peer.trim());
+            }
+        }
+        ClusterNode node = new ClusterNode(config.cluster_listen.trim(), peers, config.cluster_virtual_nodes,
+                config.cluster_batch_size, config.cluster_linger_ms, config.cluster_heartbeat_ms);
+        // Frames come from the network: only in-scope URLs are queued or passed on
+        node.set_url_filter(this.scope_policy::is_in_scope);
+        node.set_receiver(url -> this.visited_manager.enqueue_if_new(url, this.url_queue));
+        node.set_local_queue(this.url_queue::offer);
+        node.set_membership_listener(this::rebalance);
+        return node;
+    }
+
+    // Hosts that changed owner take their queued URLs along, spilled ones included;
+    // the ones a worker already holds are checked by WorkerTask
+    private void rebalance() {
+        List<CrawlUrl> moved = this.url_queue.remove_hosts(host -> !this.cluster.is_local_host(host));
+        if (!moved.isEmpty()) {
+            this.cluster.rebalance(moved);
+            System.out.println("[Controller] moved " + moved.size() + " queued URLs to their new owners");
+        }
+    }
+
+    // Seed hosts are always allowed, the rules file can add domains and deny hosts or paths
+    private static ScopePolicy create_scope_policy(List<String> seeds, CrawlerConfig config,
+            UrlNormalizer.Options url_options) {
+        PublicSuffixes suffixes = PublicSuffixes.builtin();
+        if (config.public_suffix_file != null) {
+            try {
+                suffixes = PublicSuffixes.load(Path.of(config.public_suffix_file));
+            } catch (IOException err) {
+                System.err.println("[Controller] could not read public suffix list, using built-in one: "
+                        + err.getMessage());
+            }
+        }
+        ScopePolicy.Rules rules = new ScopePolicy.Rules();
+        for (String seed : seeds) {
+            CrawlUrl normalized = UrlNormalizer.canonicalize(seed, url_options);
+            if (normalized == null) {
+                continue;
+            }
+            String domain = config.scope_registrable_domain ? suffixes.registrable_domain(normalized.host) : null;
+            rules.seed_domains.add(domain != null ? domain : normalized.host);
+        }
+        if (config.scope_rules_file != null) {
+            // Crawling without rules that were asked for could fetch what they deny
+            try {
+                rules.load(Path.of(config.scope_rules_file));
+            } catch (IOException err) {
+                System.err.println("[Controller] could not read scope rules: " + err.getMessage());
+                throw new UncheckedIOException(err);
+            }
+        }
+        ScopePolicy policy = new ScopePolicy(rules, suffixes);
+        System.out.println("[Controller] scope: " + policy.get_domain_count() + " domain rules");
+        return policy;
+    }
+
+    private void register_metrics() {
+        this.http_fetcher.register_metrics(this.metrics, this.metrics_max_hosts);
+        this.robots_service.register_metrics(this.metrics);
+        this.url_queue.register_metrics(this.metrics);
+        this.storage_service.register_metrics(this.metrics);
+        if (this.cluster != null) {
+            this.cluster.register_metrics(this.metrics);
+        }
+        if (this.sitemap_service != null) {
+            this.sitemap_service.register_metrics(this.metrics);
+            this.metrics.register_counter("sitemap_urls_total{result=\"queued\"}",
+                    "Sitemap URLs, by what the crawler did with them", this.sitemap_urls_queued::sum);
+            this.metrics.register_counter("sitemap_urls_total{result=\"unchanged\"}",
+                    "Sitemap URLs, by what the crawler did with them", this.sitemap_urls_unchanged::sum);
+            this.metrics.register_counter("sitemap_urls_total{result=\"rejected\"}",
+                    "Sitemap URLs, by what the crawler did with them", this.sitemap_urls_rejected::sum);
+        }
+        this.metrics.register_gauge("crawler_pages_stored", "Pages handed to storage", this.pages_stored::get);
+        this.metrics.register_gauge("crawler_in_flight", "URLs a worker is busy with", this.in_flight::get);
+        this.metrics.register_gauge("crawler_workers", "Live worker tasks", this.worker_futures::size);
+        this.metrics.register_gauge("crawler_seen_urls", "URLs in the visited set",
+                this.visited_manager::get_seen_count);
+        if (this.near_duplicates != null) {
+            this.metrics.register_counter("crawler_near_duplicates_total", "Pages matched in the SimHash index",
+                    this.near_duplicates::get_duplicates);
+        }
+    }
+
+    // Seeds are still enqueued afterwards, the restored visited set turns them into no-ops
+    private void resume_from_checkpoint() {
+        if (this.checkpoint_service.exists()) {
+            try {
+                this.pages_stored.set(this.checkpoint_service.restore(this.visited_manager, this.url_queue));
+            } catch (IOException err) {
+                System.err.println("[Controller] could not restore checkpoint, starting from seeds: "
+                        + err.getMessage());
+            }
+        }
+        // URLs stay in the frontier snapshot from dispatch until they are done, stored
+        // pages only once they are on disk
+        this.url_queue.track_taken();
+        this.visited_manager.set_journal(url -> {
+            this.url_queue.finish(url);
+            this.checkpoint_service.journal_completed(url);
+        });
+        this.storage_service.set_durable_listener(url -> {
+            this.url_queue.finish(url);
+            this.checkpoint_service.journal_stored(url);
+        });
+    }
+
+    private void write_checkpoint() {
+        try {
+            this.checkpoint_service.write(this.url_queue);
+        } catch (IOException err) {
+            System.err.println("[Controller] checkpoint failed: " + err.getMessage());
+        }
+        if (this.validator_cache != null) {
+            this.validator_cache.save();
+        }
+    }
+
+    private static CrawlerConfig with_limits(int max_pages, int num_threads) {
+        CrawlerConfig config = new CrawlerConfig();
+        config.max_pages = max_pages;
+        config.num_threads = num_threads;
+        return config;
+    }
+
+    private static ExecutorService create_executor(CrawlerConfig config) {
+        Thread.UncaughtExceptionHandler on_uncaught = (th, ex) -> System.err
+                .println("[Crawler-worker] uncaught exception in " + th.getName() + ": " + ex);
+        if (config.execution_mode == CrawlerConfig.ExecutionMode.VIRTUAL_THREADS) {
+            ExecutorService virtual = create_virtual_executor(on_uncaught);
+            if (virtual != null) {
+                return virtual;
             }
+            System.err.println("[Controller] virtual threads are not available on this JVM, "
+                    + "falling back to a fixed pool");
         }
-        this.scope_policy = new ScopePolicy(allowed_hosts);
-        this.executor_service = Executors.newFixedThreadPool(num_threads, new ThreadFactory() {
+        return Executors.newFixedThreadPool(config.num_threads, new ThreadFactory() {
             private final ThreadFactory default_fac = Executors.defaultThreadFactory();
             private final AtomicInteger idx = new AtomicInteger(1);
 
@@ -77,17 +377,28 @@ public class CrawlerController {
             public Thread newThread(Runnable r) {
                 Thread t = default_fac.newThread(r);
                 t.setName("crawler-worker-" + idx.getAndIncrement());
-                t.setUncaughtExceptionHandler(
-                        (th, ex) -> System.err
-                                .println("[Crawler-worker] uncaught exception in " + th.getName() + ": " + ex));
+                t.setUncaughtExceptionHandler(on_uncaught);
                 return t;
             }
         });
-        for (String seed : seeds) {
-            String normalized = UrlNormalizer.normalize(seed);
-            if (normalized != null) {
-                this.visited_manager.enqueue_if_new(normalized, url_queue);
-            }
+    }
+
+    // The project targets Java 17, so the JDK 21 virtual thread API is looked up
+    // reflectively: Thread.ofVirtual().name(..).uncaughtExceptionHandler(..).factory()
+    // and Executors.newThreadPerTaskExecutor(factory)
+    private static ExecutorService create_virtual_executor(Thread.UncaughtExceptionHandler on_uncaught) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builder_type = Class.forName("java.lang.Thread$Builder");
+            builder = builder_type.getMethod("name", String.class, long.class)
+                    .invoke(builder, "crawler-worker-", 1L);
+            builder = builder_type.getMethod("uncaughtExceptionHandler", Thread.UncaughtExceptionHandler.class)
+                    .invoke(builder, on_uncaught);
+            ThreadFactory factory = (ThreadFactory) builder_type.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException err) {
+            return null;
         }
     }
 
@@ -96,17 +407,38 @@ public class CrawlerController {
     // Completion: stop when the queue stays empty
     // If a worker crashes, we log the root cause and optionally respawn a worker
     public void start() {
+        this.start_ns = System.nanoTime();
         this.storage_service.start();
+        if (this.cluster != null) {
+            try {
+                this.cluster.start();
+            } catch (IOException err) {
+                System.err.println("[Controller] could not listen on " + this.cluster.get_self()
+                        + ", crawling without the cluster: " + err.getMessage());
+            }
+        }
         for (int i = 0; i < this.num_threads; i++) {
             spawn_worker();
         }
+        if (this.metrics_bean != null) {
+            this.metrics_bean.register("group.work:type=CrawlerMetrics");
+        }
+        if (this.metrics_endpoint != null) {
+            try {
+                this.metrics_endpoint.start(this.metrics_port);
+                System.out.println("[Controller] metrics on http://127.0.0.1:" + this.metrics_endpoint.get_port()
+                        + "/metrics");
+            } catch (IOException err) {
+                System.err.println("[Controller] could not start the metrics endpoint: " + err.getMessage());
+            }
+        }
         final AtomicInteger empty_stable_ticks = new AtomicInteger(0);
+        final long[] last_status = { System.nanoTime(), 0 };
         this.monitor_service.scheduleAtFixedRate(() -> {
-            System.out.println("[Controller] stop = " + this.stop_req.get()
-                    + " stored = " + this.pages_stored.get()
-                    + " queue = " + this.url_queue.size()
-                    + " inFlight = " + this.in_flight.get()
-                    + " futures = " + this.worker_futures.size());
+            if (this.status_interval_ms > 0
+                    && System.nanoTime() - last_status[0] >= TimeUnit.MILLISECONDS.toNanos(this.status_interval_ms)) {
+                this.print_status(last_status);
+            }
             if (this.stop_req.get()) {
                 shutdown();
                 return;
@@ -122,7 +454,14 @@ public class CrawlerController {
                     shutdown();
                     return;
                 }
-                if (this.url_queue.isEmpty() && this.in_flight.get() == 0) {
+                boolean idle = this.url_queue.isEmpty() && this.in_flight.get() == 0
+                        && (this.sitemap_service == null || this.sitemap_service.is_idle());
+                if (this.cluster != null) {
+                    this.cluster.set_idle(idle);
+                    // Other nodes may still send work, so a cluster node waits for all of them
+                    idle = idle && this.cluster.is_cluster_idle(3000);
+                }
+                if (idle) {
                     int ticks = empty_stable_ticks.incrementAndGet();
                     if (ticks >= 6) {
                         System.out.println("[Controller] queue empty and no in-flight work, stopping");
@@ -153,6 +492,10 @@ public class CrawlerController {
                 }
             }
         }, 500, 500, TimeUnit.MILLISECONDS);
+        if (this.checkpoint_service != null) {
+            this.monitor_service.scheduleWithFixedDelay(this::write_checkpoint, this.checkpoint_interval_ms,
+                    this.checkpoint_interval_ms, TimeUnit.MILLISECONDS);
+        }
         Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
     }
 
@@ -160,26 +503,54 @@ public class CrawlerController {
         WorkerTask task = new WorkerTask(
                 this.url_queue,
                 this.visited_manager,
-                this.rate_limiter,
                 this.storage_service,
                 this.robots_service,
                 this.http_fetcher,
                 this.scope_policy,
+                this.url_options,
                 this.pages_stored,
                 this.in_flight,
                 this.stop_req,
-                this.max_pages);
+                this.max_pages,
+                this.streaming_links,
+                this.validator_cache,
+                this.near_duplicates,
+                this.follow_duplicate_links,
+                this.default_host_delay_ms,
+                this.metrics,
+                this.log_urls,
+                this.throttle,
+                this.cluster);
         Future<Void> future = this.executor_service.submit(task);
         this.worker_futures.add(future);
     }
 
+    // last_status holds the time and pages_stored of the previous line
+    private void print_status(long[] last_status) {
+        long now = System.nanoTime();
+        int stored = this.pages_stored.get();
+        double rate = (stored - last_status[1]) / Math.max((now - last_status[0]) / 1e9, 0.001);
+        last_status[0] = now;
+        last_status[1] = stored;
+        LatencyHistogram latency = this.http_fetcher.get_fetch_latency_us();
+        System.out.println(String.format("[Controller] stored=%d (%.1f/s) frontier=%d hosts=%d inFlight=%d "
+                + "storeQueue=%d fetch p50=%.1fms p99=%.1fms", stored, rate, this.url_queue.size(),
+                this.url_queue.get_host_count(), this.in_flight.get(), this.storage_service.get_queue_depth(),
+                latency.get_percentile(0.50) / 1000.0, latency.get_percentile(0.99) / 1000.0));
+    }
+
     public void shutdown() {
         if (!this.shutdown_started.compareAndSet(false, true)) {
             return;
         }
         this.stop_req.set(true);
         System.out.println("[Controller] shutting down crawler");
-        this.monitor_service.shutdownNow();
+        // Not shutdownNow(): shutdown usually runs on the monitor thread itself, and
+        // interrupting it would cut the waits for the workers and storage below short
+        this.monitor_service.shutdown();
+        if (this.sitemap_service != null) {
+            this.sitemap_service.close();
+        }
         for (Future<Void> f : new ArrayList<>(this.worker_futures)) {
             f.cancel(true);
         }
@@ -189,8 +560,80 @@ public class CrawlerController {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
-        this.storage_service.stop();
+        // Storage drains first, so the final checkpoint counts the pages it wrote as done
+        this.storage_service.stop(this.storage_stop_deadline_ms);
+        if (this.checkpoint_service != null) {
+            this.write_checkpoint();
+        }
+        if (this.cluster != null) {
+            // Hands the pending URLs to the remaining nodes; the checkpoint above
+            // still holds them in case this node is started again alone
+            List<String> pending = new ArrayList<>();
+            this.url_queue.for_each(pending::add);
+            this.cluster.leave(pending, 5000);
+            this.cluster.close();
+        }
+        this.url_queue.close();
+        // With checkpoints the final one above has saved it
+        if (this.validator_cache != null && this.checkpoint_service == null) {
+            this.validator_cache.save();
+        }
+        if (this.metrics_endpoint != null) {
+            this.metrics_endpoint.stop();
+        }
+        if (this.metrics_bean != null) {
+            this.metrics_bean.unregister();
+        }
+        double elapsed_s = (System.nanoTime() - this.start_ns) / 1e9;
+        if (this.visited_manager.get_visited_set() instanceof FingerprintVisitedSet fps) {
+            System.out.println(String.format("[Controller] visited fingerprints: %d MiB, bloom fp rate=%.4f, "
+                    + "collision rate=%.2e", fps.get_table_bytes() >> 20, fps.get_bloom_false_positive_rate(),
+                    fps.get_fingerprint_false_positive_rate()));
+        }
+        System.out.println(String.format("[Controller] page bodies: %d KiB decoded from %d KiB received",
+                this.http_fetcher.get_decoded_bytes() >> 10, this.http_fetcher.get_wire_bytes() >> 10));
+        if (this.near_duplicates != null) {
+            System.out.println("[Controller] skipped " + this.near_duplicates.get_duplicates()
+                    + " near-duplicate pages");
+        }
         System.out.println("[Controller] stopped; pages stored=" + this.pages_stored.get()
-                + ", seen URLs=" + this.visited_manager.get_seen_count());
+                + ", seen URLs=" + this.visited_manager.get_seen_count()
+                + String.format(", %.1f pages/s over %.1f s, rss=%s",
+                        this.pages_stored.get() / Math.max(elapsed_s, 0.001), elapsed_s, resident_set_size()));
+        this.terminated.countDown();
+    }
+
+    // Blocks until shutdown() has finished, whoever triggered it
+    public boolean await_termination(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.terminated.await(timeout, unit);
+    }
+
+    public int get_pages_stored() {
+        return this.pages_stored.get();
+    }
+
+    public int get_seen_count() {
+        return this.visited_manager.get_seen_count();
+    }
+
+    public LatencyHistogram get_fetch_latency_us() {
+        return this.http_fetcher.get_fetch_latency_us();
+    }
+
+    public MetricsRegistry get_metrics() {
+        return this.metrics;
+    }
+
+    // Resident set size as reported by the kernel, only available on Linux
+    private static String resident_set_size() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return line.substring("VmRSS:".length()).trim();
+                }
+            }
+        } catch (Exception err) {
+        }
+        return "n/a";
     }
 }
\ No newline at end of file
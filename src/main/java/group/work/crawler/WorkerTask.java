@@ -5,63 +5,145 @@ import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
+import group.work.cluster.ClusterNode;
 import group.work.handlers.HttpFetcher;
 import group.work.handlers.RobotsService;
 import group.work.handlers.ScopePolicy;
-import group.work.helpers.RateLimiter;
+import group.work.helpers.CrawlUrl;
+import group.work.helpers.Hashing;
+import group.work.helpers.HostFrontier;
+import group.work.helpers.LatencyHistogram;
+import group.work.helpers.LinkExtractor;
+import group.work.helpers.SimHash;
+import group.work.helpers.SimHashIndex;
 import group.work.helpers.UrlNormalizer;
 import group.work.helpers.VisitedManager;
+import group.work.metrics.MetricsRegistry;
 import group.work.storage.StorageService;
+import group.work.storage.ValidatorCache;
 
-import java.util.concurrent.BlockingQueue;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class WorkerTask implements Callable<Void> {
-    private final BlockingQueue<String> url_queue;
+    // Pause of a worker whose fetch the fetcher refused, before it polls again
+    private static final long REFUSED_BACKOFF_MS = 100;
+
+    private final HostFrontier url_queue;
     private final VisitedManager visited_manager;
-    private final RateLimiter rate_limiter;
     private final StorageService storage_service;
     private final RobotsService robots_service;
     private final HttpFetcher http_fetcher;
     private final ScopePolicy scope_policy;
+    private final UrlNormalizer.Options url_options;
     private final AtomicInteger pages_stored;
     private final AtomicInteger in_flight;
     private final AtomicBoolean stop_requested;
     private final int max_pages;
+    private final boolean streaming_links;
+    private final ValidatorCache validator_cache;
+    private final SimHashIndex near_duplicates;
+    private final boolean follow_duplicate_links;
+    private final long default_host_delay_ms;
+    private final boolean log_urls;
+    // null when every host keeps the fixed delay
+    private final AdaptiveThrottle throttle;
+    // null when crawling alone, otherwise links of hosts owned elsewhere go there
+    private final ClusterNode cluster;
+    // Shared by all workers: the registry hands out the same instance for a name
+    private final LongAdder stored;
+    private final LongAdder disallowed;
+    private final LongAdder failed;
+    private final LongAdder http_errors;
+    private final LongAdder not_html;
+    private final LongAdder not_modified;
+    private final LongAdder unchanged;
+    private final LongAdder near_duplicate;
+    private final LongAdder shed;
+    private final LongAdder refused;
+    private final LatencyHistogram parse_us;
 
     public WorkerTask(
-            BlockingQueue<String> url_queue,
+            HostFrontier url_queue,
             VisitedManager visited_manager,
-            RateLimiter rate_limiter,
             StorageService storage_service,
             RobotsService robots_service,
             HttpFetcher http_fetcher,
             ScopePolicy scope_policy,
+            UrlNormalizer.Options url_options,
             AtomicInteger pages_stored,
             AtomicInteger in_flight,
             AtomicBoolean stop_requested,
-            int max_pages) {
+            int max_pages,
+            boolean streaming_links,
+            ValidatorCache validator_cache,
+            SimHashIndex near_duplicates,
+            boolean follow_duplicate_links,
+            long default_host_delay_ms,
+            MetricsRegistry metrics,
+            boolean log_urls,
+            AdaptiveThrottle throttle,
+            ClusterNode cluster) {
         this.url_queue = url_queue;
         this.visited_manager = visited_manager;
-        this.rate_limiter = rate_limiter;
         this.storage_service = storage_service;
         this.robots_service = robots_service;
         this.http_fetcher = http_fetcher;
         this.scope_policy = scope_policy;
+        this.url_options = url_options;
         this.pages_stored = pages_stored;
         this.in_flight = in_flight;
         this.stop_requested = stop_requested;
         this.max_pages = max_pages;
+        this.streaming_links = streaming_links;
+        this.validator_cache = validator_cache;
+        this.near_duplicates = near_duplicates;
+        this.follow_duplicate_links = follow_duplicate_links;
+        this.default_host_delay_ms = default_host_delay_ms;
+        this.log_urls = log_urls;
+        this.throttle = throttle;
+        this.cluster = cluster;
+        this.stored = outcome(metrics, "stored");
+        this.disallowed = outcome(metrics, "disallowed");
+        this.failed = outcome(metrics, "failed");
+        this.http_errors = outcome(metrics, "http_error");
+        this.not_html = outcome(metrics, "not_html");
+        this.not_modified = outcome(metrics, "not_modified");
+        this.unchanged = outcome(metrics, "unchanged");
+        this.near_duplicate = outcome(metrics, "near_duplicate");
+        this.shed = outcome(metrics, "shed");
+        this.refused = outcome(metrics, "refused");
+        this.parse_us = metrics.histogram("page_parse_seconds",
+                "Link extraction, normalization and scope checks of one page");
+    }
+
+    private static LongAdder outcome(MetricsRegistry metrics, String outcome) {
+        return metrics.counter("crawler_urls_total{outcome=\"" + outcome + "\"}",
+                "URLs taken from the frontier, by what became of them");
     }
 
     @Override
     public Void call() {
         while (!Thread.currentThread().isInterrupted() && !stop_requested.get()) {
-            String url = null;
+            CrawlUrl url = null;
             boolean counted_in_flight = false;
+            // Left set when the URL is not done with here: storage completes the pages
+            // it takes, and a URL cut short by a stop is fetched again after a resume
+            boolean incomplete = true;
             try {
                 if (this.pages_stored.get() >= this.max_pages) {
                     this.stop_requested.set(true);
@@ -74,59 +156,126 @@ public class WorkerTask implements Callable<Void> {
                 if (this.stop_requested.get() || Thread.currentThread().isInterrupted()) {
                     break;
                 }
+                incomplete = false;
+                // Spilled URLs, and ones queued just before their host moved, reach here
+                // after a membership change; they are already marked as seen
+                if (this.cluster != null && !this.cluster.is_local(url)) {
+                    this.cluster.forward(url);
+                    continue;
+                }
                 this.in_flight.incrementAndGet();
                 counted_in_flight = true;
                 RobotsService.RobotsCheck check = this.robots_service.check(url);
                 if (!check.allowed) {
-                    System.out.println(
-                            "[Worker " + Thread.currentThread().getName() + "] disallowed by robots.txt: " + url);
+                    this.disallowed.increment();
+                    if (this.log_urls) {
+                        System.out.println("[Worker " + Thread.currentThread().getName()
+                                + "] disallowed by robots.txt: " + url);
+                    }
                     continue;
                 }
-                long per_host_delay = (check.crawler_delay_ms > 0) ? check.crawler_delay_ms : 1000;
-                this.rate_limiter.acquire(url, per_host_delay);
-                if (this.stop_requested.get() || Thread.currentThread().isInterrupted()) {
-                    break;
+                if (this.throttle != null) {
+                    this.throttle.set_crawl_delay(url, check.crawler_delay_ms);
+                } else {
+                    long per_host_delay = (check.crawler_delay_ms > 0) ? check.crawler_delay_ms
+                            : this.default_host_delay_ms;
+                    this.url_queue.set_host_delay(url, per_host_delay);
+                }
+                if (this.log_urls) {
+                    System.out.println("[Worker " + Thread.currentThread().getName() + "] fetching: " + url);
+                }
+                ValidatorCache.Entry cached = this.validator_cache != null ? this.validator_cache.get(url.url) : null;
+                HttpFetcher.FetchResult res;
+                try {
+                    res = this.fetch(url, cached);
+                } catch (RejectedExecutionException err) {
+                    // The fetcher is saturated, not the host: the URL goes back to the
+                    // frontier and stays incomplete until a later try fetches it
+                    this.refused.increment();
+                    incomplete = true;
+                    this.url_queue.offer(url);
+                    Thread.sleep(REFUSED_BACKOFF_MS);
+                    continue;
                 }
-                System.out.println("[Worker " + Thread.currentThread().getName()
-                        + "] fetching: " + url);
-                HttpFetcher.FetchResult res = this.http_fetcher.fetch_with_retries(url, 3);
                 if (res == null) {
+                    this.failed.increment();
+                    continue;
+                }
+                if (res.is_not_modified() && cached != null) {
+                    this.not_modified.increment();
+                    // Unchanged since the last crawl: no parsing or storage, but the page
+                    // still feeds link discovery through its cached links
+                    incomplete = !this.enqueue_cached_links(cached.links());
                     continue;
                 }
                 if (res.status_code < 200 || res.status_code >= 300) {
-                    System.err.println("[Worker " + Thread.currentThread().getName()
-                            + "] error for " + url + ": " + res.status_code);
+                    this.http_errors.increment();
+                    if (this.log_urls) {
+                        System.err.println("[Worker " + Thread.currentThread().getName()
+                                + "] error for " + url + ": " + res.status_code);
+                    }
                     continue;
                 }
-                if (!res.is_html()) {
+                if (!res.is_html() || res.body == null) {
+                    this.not_html.increment();
                     continue;
                 }
-                this.storage_service.store_async(url, res.body);
-                int stored = this.pages_stored.incrementAndGet();
-                if (stored >= this.max_pages) {
-                    this.stop_requested.set(true);
-                    break;
+                long content_hash = Hashing.hash64(res.body, 0, res.body.length);
+                if (cached != null && cached.content_hash == content_hash) {
+                    // Servers without validators still send the same bytes for an unchanged page
+                    this.unchanged.increment();
+                    this.validator_cache.put(url.url, new ValidatorCache.Entry(res.etag, res.last_modified,
+                            content_hash, System.currentTimeMillis(), cached));
+                    incomplete = !this.enqueue_cached_links(cached.links());
+                    continue;
                 }
-                Document doc = Jsoup.parse(res.body, url);
-                Elements links = doc.select("a[href]");
-                for (Element link : links) {
-                    if (this.stop_requested.get() || Thread.currentThread().isInterrupted()) {
-                        break;
+                long simhash = this.near_duplicates != null
+                        ? SimHash.of_html(res.body, res.body.length, res.charset)
+                        : SimHash.NONE;
+                if (simhash != SimHash.NONE && this.near_duplicates.find(simhash) >= 0) {
+                    // Same content under another URL: keep the page budget for unique pages
+                    this.near_duplicate.increment();
+                    if (this.follow_duplicate_links) {
+                        incomplete = !this.enqueue_links(this.extract_scoped_links(res, url));
+                    }
+                    continue;
+                }
+                // Links are queued before the page goes to storage, which may report it
+                // done as soon as it is on disk
+                List<CrawlUrl> links = this.extract_scoped_links(res, url);
+                incomplete = !this.enqueue_links(links);
+                if (incomplete) {
+                    continue;
+                }
+                if (this.storage_service.store_async(url.url, res.status_code, stored_headers(res), res.body,
+                        res.charset)) {
+                    incomplete = true;
+                    // A shed page is not remembered, or the next run would skip storing it,
+                    // and does not make later copies of itself near duplicates
+                    this.remember(url, res, content_hash, to_strings(links));
+                    if (simhash != SimHash.NONE) {
+                        this.near_duplicates.add(simhash);
                     }
-                    String abs_url = link.attr("abs:href");
-                    String normalized = UrlNormalizer.normalize(abs_url);
-                    if (normalized != null && this.scope_policy.is_in_scope(normalized)) {
-                        this.visited_manager.enqueue_if_new(normalized, url_queue);
+                    this.stored.increment();
+                    int stored = this.pages_stored.incrementAndGet();
+                    if (stored >= this.max_pages) {
+                        this.stop_requested.set(true);
+                        break;
                     }
+                } else {
+                    this.shed.increment();
                 }
             } catch (InterruptedException err) {
+                incomplete = true;
                 Thread.currentThread().interrupt();
                 break;
             } catch (RuntimeException err) {
+                incomplete = true;
                 System.err.println(
                         "[Worker " + Thread.currentThread().getName() + "] runtime exception: " + err);
                 throw err;
             } catch (Exception err) {
+                incomplete = true;
                 System.err.println("[Worker " + Thread.currentThread().getName()
                         + "] fatal exception: " + err);
                 throw new RuntimeException(err);
@@ -134,8 +283,130 @@ public class WorkerTask implements Callable<Void> {
                 if (counted_in_flight) {
                     this.in_flight.decrementAndGet();
                 }
+                if (url != null) {
+                    this.url_queue.release(url);
+                    if (!incomplete && !Thread.currentThread().isInterrupted()) {
+                        this.visited_manager.complete(url);
+                    }
+                }
             }
         }
         return null;
     }
+
+    // Goes through fetch_async so the fetcher's in-flight caps apply; retries wait on
+    // its timer, and a stopping worker cancels the remaining attempts
+    // Throws RejectedExecutionException when the fetcher refused the request
+    private HttpFetcher.FetchResult fetch(CrawlUrl url, ValidatorCache.Entry cached) throws InterruptedException {
+        CompletableFuture<HttpFetcher.FetchResult> pending = cached != null
+                ? this.http_fetcher.fetch_async(url.url, 3, cached.etag, cached.last_modified)
+                : this.http_fetcher.fetch_async(url.url, 3);
+        try {
+            return pending.get();
+        } catch (InterruptedException err) {
+            pending.cancel(true);
+            throw err;
+        } catch (ExecutionException err) {
+            if (err.getCause() instanceof RejectedExecutionException refused) {
+                throw refused;
+            }
+            return null;
+        }
+    }
+
+    private static Map<String, String> stored_headers(HttpFetcher.FetchResult res) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (res.content_type != null) {
+            headers.put("content-type", res.content_type);
+        }
+        if (res.etag != null) {
+            headers.put("etag", res.etag);
+        }
+        if (res.last_modified != null) {
+            headers.put("last-modified", res.last_modified);
+        }
+        return headers;
+    }
+
+    // False when a stop cut the list short
+    private boolean enqueue_links(List<CrawlUrl> links) {
+        for (CrawlUrl link : links) {
+            if (this.stop_requested.get() || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            if (this.cluster != null && !this.cluster.is_local(link)) {
+                this.visited_manager.enqueue_if_new(link, this.cluster::forward);
+            } else {
+                this.visited_manager.enqueue_if_new(link, url_queue);
+            }
+        }
+        return true;
+    }
+
+    // Cached links were canonical when stored, parsing them back only splits them
+    // The scope is checked again, it may have narrowed since the cache was written
+    private boolean enqueue_cached_links(List<String> links) {
+        List<CrawlUrl> parsed = new ArrayList<>(links.size());
+        for (String link : links) {
+            CrawlUrl url = CrawlUrl.parse(link);
+            if (url != null && this.scope_policy.is_in_scope(url)) {
+                parsed.add(url);
+            }
+        }
+        return this.enqueue_links(parsed);
+    }
+
+    private static List<String> to_strings(List<CrawlUrl> links) {
+        List<String> out = new ArrayList<>(links.size());
+        for (CrawlUrl link : links) {
+            out.add(link.url);
+        }
+        return out;
+    }
+
+    private void remember(CrawlUrl url, HttpFetcher.FetchResult res, long content_hash, List<String> links) {
+        if (this.validator_cache != null) {
+            this.validator_cache.put(url.url, new ValidatorCache.Entry(res.etag, res.last_modified, content_hash,
+                    System.currentTimeMillis(), links));
+        }
+    }
+
+    private List<CrawlUrl> extract_scoped_links(HttpFetcher.FetchResult res, CrawlUrl url) {
+        long start = System.nanoTime();
+        List<CrawlUrl> links = new ArrayList<>();
+        for (String abs_url : this.extract_links(res.body, res.charset, url.url)) {
+            CrawlUrl normalized = UrlNormalizer.canonicalize(abs_url, this.url_options);
+            if (normalized != null && this.scope_policy.is_in_scope(normalized)) {
+                links.add(normalized);
+            }
+        }
+        this.parse_us.record((System.nanoTime() - start) / 1000);
+        return links;
+    }
+
+    // The streaming extractor avoids building a DOM for every page, Jsoup stays as
+    // the fallback when it is disabled or fails on odd markup; both read the page bytes
+    private List<String> extract_links(byte[] body, Charset charset, String url) {
+        if (this.streaming_links) {
+            try {
+                return LinkExtractor.extract(body, body.length, charset, url);
+            } catch (RuntimeException err) {
+                System.err.println("[Worker " + Thread.currentThread().getName()
+                        + "] streaming link extraction failed, using Jsoup: " + err);
+            }
+        }
+        Document doc;
+        try {
+            doc = Jsoup.parse(new ByteArrayInputStream(body), charset.name(), url);
+        } catch (IOException err) {
+            // Not thrown for an in-memory stream
+            throw new UncheckedIOException(err);
+        }
+        Elements links = doc.select("a[href]");
+        List<String> out = new ArrayList<>(links.size());
+        for (Element link : links) {
+            out.add(link.attr("abs:href"));
+        }
+        return out;
+    }
 }
\ No newline at end of file
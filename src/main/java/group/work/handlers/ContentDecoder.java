@@ -0,0 +1,274 @@
+package group.work.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Push-style decoder for gzip and deflate response bodies, fed with the chunks the
+// HttpClient hands to a body subscriber and inflating straight into the caller's buffer
+// GZIPInputStream would need a blocking InputStream over the body; here the gzip
+// header and trailer are parsed by hand around a raw Inflater, so nothing blocks and
+// nothing is copied. Inflaters hold native memory and are pooled
+// Only the first gzip member is decoded, bytes after it are ignored
+final class ContentDecoder {
+    enum Format {
+        GZIP,
+        // zlib-wrapped as RFC 9110 says, raw deflate from broken servers is accepted too
+        DEFLATE
+    }
+
+    private enum State {
+        HEADER,
+        BODY,
+        TRAILER,
+        DONE
+    }
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    // Guards against a header that never ends (FNAME without its terminating 0)
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final ConcurrentLinkedQueue<Inflater> RAW_POOL = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> ZLIB_POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger(0);
+    private static final int MAX_POOLED = 64;
+
+    private final Format format;
+    private State state = State.HEADER;
+    private Inflater inflater;
+    private boolean raw;
+    // Header bytes (gzip header, or the first two deflate bytes) and trailer bytes
+    // collected across chunks
+    private byte[] pending = new byte[16];
+    private int pending_len = 0;
+    private final CRC32 crc = new CRC32();
+    private long total_out = 0;
+
+    ContentDecoder(Format format) {
+        this.format = format;
+    }
+
+    // null for identity, the format for gzip and deflate, and an exception for
+    // encodings that are not supported (br needs a native or third-party decoder)
+    static Format format_of(String content_encoding) throws IOException {
+        if (content_encoding == null) {
+            return null;
+        }
+        String enc = content_encoding.trim().toLowerCase(Locale.ROOT);
+        switch (enc) {
+            case "", "identity":
+                return null;
+            case "gzip", "x-gzip":
+                return Format.GZIP;
+            case "deflate":
+                return Format.DEFLATE;
+            default:
+                throw new IOException("unsupported content encoding " + enc);
+        }
+    }
+
+    // Takes as much of in as the decoder currently accepts; call inflate() until
+    // needs_input(), and feed in again while it has bytes left, because the Inflater
+    // reads the chunk in place
+    void feed(ByteBuffer in) throws IOException {
+        if (this.state == State.HEADER) {
+            this.read_header(in);
+            if (this.state == State.BODY && !this.inflater.needsInput()) {
+                // The peeked deflate bytes go first, in is fed again after them
+                return;
+            }
+        }
+        if (this.state == State.BODY) {
+            this.inflater.setInput(in);
+        }
+        if (this.state == State.TRAILER) {
+            this.read_trailer(in);
+        }
+        if (this.state == State.DONE) {
+            in.position(in.limit());
+        }
+    }
+
+    boolean needs_input() {
+        return this.state != State.BODY || this.inflater.needsInput() || this.inflater.finished();
+    }
+
+    // Inflates into out[off, off + len), returns the number of bytes written
+    // The input chunk is the one last given to feed(), which is finished off with
+    // another feed() once this returns 0 at the end of the deflate stream
+    int inflate(byte[] out, int off, int len, ByteBuffer in) throws IOException {
+        if (this.state != State.BODY) {
+            return 0;
+        }
+        int n;
+        try {
+            n = this.inflater.inflate(out, off, len);
+        } catch (DataFormatException err) {
+            throw new IOException("corrupt " + this.format.name().toLowerCase(Locale.ROOT) + " body: "
+                    + err.getMessage());
+        }
+        if (n == 0 && this.inflater.needsDictionary()) {
+            throw new IOException("deflate body needs a preset dictionary");
+        }
+        if (this.format == Format.GZIP) {
+            this.crc.update(out, off, n);
+        }
+        this.total_out += n;
+        if (this.inflater.finished()) {
+            this.state = this.format == Format.GZIP ? State.TRAILER : State.DONE;
+            this.pending_len = 0;
+            // What the Inflater did not consume is trailer or garbage after the stream
+            this.feed(in);
+        }
+        return n;
+    }
+
+    // Whether the whole compressed stream was seen, a body that ends before that was cut off
+    boolean is_complete() {
+        return this.state == State.DONE;
+    }
+
+    void release() {
+        Inflater inf = this.inflater;
+        this.inflater = null;
+        if (inf == null) {
+            return;
+        }
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            inf.end();
+            return;
+        }
+        inf.reset();
+        (this.raw ? RAW_POOL : ZLIB_POOL).offer(inf);
+    }
+
+    private void read_header(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            this.append_pending(in.get());
+            int header_len = this.format == Format.GZIP ? this.gzip_header_length() : this.deflate_header_length();
+            if (header_len > 0) {
+                this.start_body();
+                return;
+            }
+            if (this.pending_len > MAX_HEADER_BYTES) {
+                throw new IOException("gzip header too long");
+            }
+        }
+    }
+
+    // 0 while the header is incomplete
+    private int gzip_header_length() throws IOException {
+        if (this.pending_len < 10) {
+            return 0;
+        }
+        byte[] h = this.pending;
+        if ((h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b) {
+            throw new IOException("not a gzip body");
+        }
+        if (h[2] != 8) {
+            throw new IOException("unsupported gzip compression method " + h[2]);
+        }
+        int flags = h[3] & 0xff;
+        int pos = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (this.pending_len < pos + 2) {
+                return 0;
+            }
+            pos += 2 + ((h[pos] & 0xff) | (h[pos + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            pos = this.skip_zero_terminated(pos);
+            if (pos < 0) {
+                return 0;
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = this.skip_zero_terminated(pos);
+            if (pos < 0) {
+                return 0;
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        return this.pending_len >= pos ? pos : 0;
+    }
+
+    private int skip_zero_terminated(int pos) {
+        for (int i = pos; i < this.pending_len; i++) {
+            if (this.pending[i] == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // Looks at the first two bytes to tell a zlib header from raw deflate data; the
+    // bytes stay in pending and are handed to the Inflater in start_body()
+    private int deflate_header_length() {
+        if (this.pending_len < 2) {
+            return 0;
+        }
+        int cmf = this.pending[0] & 0xff;
+        int flg = this.pending[1] & 0xff;
+        this.raw = (cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0;
+        return 2;
+    }
+
+    private void start_body() {
+        if (this.format == Format.GZIP) {
+            this.raw = true;
+        }
+        Inflater inf = (this.raw ? RAW_POOL : ZLIB_POOL).poll();
+        if (inf != null) {
+            POOLED.decrementAndGet();
+        } else {
+            inf = new Inflater(this.raw);
+        }
+        this.inflater = inf;
+        this.state = State.BODY;
+        if (this.format == Format.DEFLATE) {
+            // The two peeked bytes belong to the stream
+            this.inflater.setInput(this.pending, 0, this.pending_len);
+        }
+        this.pending_len = 0;
+    }
+
+    private void read_trailer(ByteBuffer in) throws IOException {
+        while (in.hasRemaining() && this.pending_len < 8) {
+            this.append_pending(in.get());
+        }
+        if (this.pending_len < 8) {
+            return;
+        }
+        byte[] t = this.pending;
+        long crc = le32(t, 0);
+        long size = le32(t, 4);
+        if (crc != this.crc.getValue() || size != (this.total_out & 0xffffffffL)) {
+            throw new IOException("gzip trailer does not match the body");
+        }
+        this.state = State.DONE;
+    }
+
+    private void append_pending(byte b) {
+        if (this.pending_len == this.pending.length) {
+            byte[] bigger = new byte[this.pending.length * 2];
+            System.arraycopy(this.pending, 0, bigger, 0, this.pending_len);
+            this.pending = bigger;
+        }
+        this.pending[this.pending_len++] = b;
+    }
+
+    private static long le32(byte[] b, int off) {
+        return (b[off] & 0xffL) | (b[off + 1] & 0xffL) << 8 | (b[off + 2] & 0xffL) << 16 | (b[off + 3] & 0xffL) << 24;
+    }
+}
@@ -0,0 +1,341 @@
+package group.work.handlers;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import group.work.helpers.PageCharsets;
+
+// Body handler that decides from the status line and headers whether the body is
+// worth reading at all
+// Only 2xx text/html bodies are read, anything else is cancelled before the first
+// byte of the body is consumed, which also closes the connection
+// Bodies are read incrementally into pooled buffers and abandoned once they go over
+// max_body_bytes or take longer than time_budget_ms; a timer armed when the body starts
+// aborts it even if no more bytes arrive
+// gzip and deflate bodies are inflated chunk by chunk straight into the pooled buffer
+// (see ContentDecoder); max_body_bytes applies to the inflated size, which also stops
+// compression bombs. Other content encodings are skipped like non-HTML bodies
+// The body is handed on as the bytes received (after content decoding), with the
+// charset from its BOM, Content-Type or <meta> (see PageCharsets); nothing is decoded here
+public class HtmlBodyHandler implements HttpResponse.BodyHandler<HtmlBodyHandler.Body> {
+    public static class Body {
+        // Exactly the body bytes, null when the body was not read
+        public final byte[] bytes;
+        public final Charset charset;
+        // null when the body was read completely
+        public final String abort_reason;
+        // Bytes received and bytes after decoding, equal without a content encoding
+        public final long wire_bytes;
+        public final long decoded_bytes;
+
+        Body(String abort_reason) {
+            this(null, null, abort_reason, 0, 0);
+        }
+
+        Body(byte[] bytes, Charset charset, String abort_reason, long wire_bytes, long decoded_bytes) {
+            this.bytes = bytes;
+            this.charset = charset;
+            this.abort_reason = abort_reason;
+            this.wire_bytes = wire_bytes;
+            this.decoded_bytes = decoded_bytes;
+        }
+    }
+
+    // Keeps a few read buffers around so that every page does not allocate a new one
+    private static class BufferPool {
+        private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger free_count = new AtomicInteger(0);
+        private final int buffer_size;
+        private final int max_free;
+
+        BufferPool(int buffer_size, int max_free) {
+            this.buffer_size = buffer_size;
+            this.max_free = max_free;
+        }
+
+        byte[] acquire() {
+            byte[] b = this.free.poll();
+            if (b == null) {
+                return new byte[this.buffer_size];
+            }
+            this.free_count.decrementAndGet();
+            return b;
+        }
+
+        void release(byte[] b) {
+            if (b.length != this.buffer_size) {
+                return;
+            }
+            if (this.free_count.incrementAndGet() > this.max_free) {
+                this.free_count.decrementAndGet();
+                return;
+            }
+            this.free.offer(b);
+        }
+    }
+
+    private class CappedSubscriber implements HttpResponse.BodySubscriber<Body> {
+        private final CompletableFuture<Body> result = new CompletableFuture<>();
+        private final String content_type;
+        // null for an identity body
+        private final ContentDecoder.Format format;
+        private final long started_ns = System.nanoTime();
+        private Flow.Subscription subscription;
+        private ScheduledFuture<?> deadline;
+        private ContentDecoder decoder;
+        private byte[] buf;
+        private int len = 0;
+        private long wire_bytes = 0;
+
+        CappedSubscriber(String content_type, ContentDecoder.Format format) {
+            this.content_type = content_type;
+            this.format = format;
+        }
+
+        @Override
+        public CompletionStage<Body> getBody() {
+            return this.result;
+        }
+
+        @Override
+        public synchronized void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            this.buf = HtmlBodyHandler.this.pool.acquire();
+            if (this.format != null) {
+                this.decoder = new ContentDecoder(this.format);
+            }
+            // onNext only runs when bytes arrive, so a stalled body needs its own deadline
+            this.deadline = DEADLINES.schedule(this::on_deadline, HtmlBodyHandler.this.time_budget_ms,
+                    TimeUnit.MILLISECONDS);
+            subscription.request(1);
+        }
+
+        private synchronized void on_deadline() {
+            if (this.result.isDone()) {
+                return;
+            }
+            long elapsed_ms = (System.nanoTime() - this.started_ns) / 1_000_000;
+            this.abort("body not complete after " + elapsed_ms + " ms");
+        }
+
+        @Override
+        public synchronized void onNext(List<ByteBuffer> items) {
+            if (this.result.isDone()) {
+                return;
+            }
+            for (ByteBuffer item : items) {
+                int n = item.remaining();
+                this.wire_bytes += n;
+                HtmlBodyHandler.this.bytes_read.add(n);
+                if (this.decoder == null) {
+                    if (!this.ensure_capacity((long) this.len + n)) {
+                        return;
+                    }
+                    item.get(this.buf, this.len, n);
+                    this.len += n;
+                    HtmlBodyHandler.this.bytes_decoded.add(n);
+                } else if (!this.decode(item)) {
+                    return;
+                }
+            }
+            long elapsed_ms = (System.nanoTime() - this.started_ns) / 1_000_000;
+            if (elapsed_ms > HtmlBodyHandler.this.time_budget_ms) {
+                this.abort("body not complete after " + elapsed_ms + " ms");
+                return;
+            }
+            this.subscription.request(1);
+        }
+
+        // false once the body was abandoned
+        private boolean decode(ByteBuffer item) {
+            int before = this.len;
+            try {
+                do {
+                    this.decoder.feed(item);
+                    while (!this.decoder.needs_input()) {
+                        if (this.len == this.buf.length && !this.ensure_capacity(this.len + 1L)) {
+                            return false;
+                        }
+                        this.len += this.decoder.inflate(this.buf, this.len, this.buf.length - this.len, item);
+                    }
+                } while (item.hasRemaining() && !this.decoder.is_complete());
+            } catch (IOException err) {
+                this.abort(err.getMessage());
+                return false;
+            } finally {
+                HtmlBodyHandler.this.bytes_decoded.add(this.len - before);
+            }
+            return true;
+        }
+
+        // Grows the buffer to hold needed bytes, false (after aborting) over max_body_bytes
+        private boolean ensure_capacity(long needed) {
+            if (needed > HtmlBodyHandler.this.max_body_bytes) {
+                this.abort("body larger than " + HtmlBodyHandler.this.max_body_bytes + " bytes");
+                return false;
+            }
+            if (needed > this.buf.length) {
+                byte[] bigger = new byte[(int) Math.min(HtmlBodyHandler.this.max_body_bytes,
+                        Math.max(this.buf.length * 2L, needed))];
+                System.arraycopy(this.buf, 0, bigger, 0, this.len);
+                HtmlBodyHandler.this.pool.release(this.buf);
+                this.buf = bigger;
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized void onError(Throwable err) {
+            this.release();
+            this.result.completeExceptionally(err);
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            if (this.result.isDone()) {
+                return;
+            }
+            if (this.decoder != null && !this.decoder.is_complete()) {
+                this.release();
+                this.result.complete(new Body(null, null, "compressed body ended early", this.wire_bytes,
+                        this.len));
+                return;
+            }
+            byte[] bytes = Arrays.copyOf(this.buf, this.len);
+            this.release();
+            Charset charset = PageCharsets.detect(bytes, bytes.length, this.content_type);
+            this.result.complete(new Body(bytes, charset, null, this.wire_bytes, this.len));
+        }
+
+        private void abort(String reason) {
+            this.subscription.cancel();
+            this.release();
+            this.result.complete(new Body(null, null, reason, this.wire_bytes, this.len));
+        }
+
+        private void release() {
+            if (this.deadline != null) {
+                this.deadline.cancel(false);
+                this.deadline = null;
+            }
+            if (this.buf != null) {
+                HtmlBodyHandler.this.pool.release(this.buf);
+                this.buf = null;
+            }
+            if (this.decoder != null) {
+                this.decoder.release();
+                this.decoder = null;
+            }
+        }
+    }
+
+    // Completes right away and cancels the body, used for content we never keep
+    private static class SkippingSubscriber implements HttpResponse.BodySubscriber<Body> {
+        private final CompletableFuture<Body> result = new CompletableFuture<>();
+        private final String reason;
+
+        SkippingSubscriber(String reason) {
+            this.reason = reason;
+        }
+
+        @Override
+        public CompletionStage<Body> getBody() {
+            return this.result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.cancel();
+            this.result.complete(new Body(this.reason));
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+        }
+
+        @Override
+        public void onError(Throwable err) {
+            this.result.complete(new Body(this.reason));
+        }
+
+        @Override
+        public void onComplete() {
+            this.result.complete(new Body(this.reason));
+        }
+    }
+
+    // Shared by every handler, the deadline tasks only cancel a subscription; cancelled
+    // deadlines are removed right away so that finished bodies do not pile up in the queue
+    private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "body-deadline-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        DEADLINES.setRemoveOnCancelPolicy(true);
+    }
+
+    private final int max_body_bytes;
+    private final long time_budget_ms;
+    private final BufferPool pool;
+    private final LongAdder bytes_read = new LongAdder();
+    private final LongAdder bytes_decoded = new LongAdder();
+
+    public HtmlBodyHandler(int max_body_bytes, long time_budget_ms) {
+        this.max_body_bytes = max_body_bytes;
+        this.time_budget_ms = time_budget_ms;
+        this.pool = new BufferPool(Math.min(max_body_bytes, 64 * 1024), 64);
+    }
+
+    @Override
+    public HttpResponse.BodySubscriber<Body> apply(HttpResponse.ResponseInfo info) {
+        int status = info.statusCode();
+        if (status < 200 || status >= 300) {
+            return new SkippingSubscriber("status " + status);
+        }
+        String ct = info.headers().firstValue("content-type").orElse(null);
+        if (!is_html(ct)) {
+            return new SkippingSubscriber("content type " + ct);
+        }
+        long declared = info.headers().firstValueAsLong("content-length").orElse(-1);
+        if (declared > this.max_body_bytes) {
+            return new SkippingSubscriber("content length " + declared);
+        }
+        ContentDecoder.Format format;
+        try {
+            format = ContentDecoder.format_of(info.headers().firstValue("content-encoding").orElse(null));
+        } catch (IOException err) {
+            return new SkippingSubscriber(err.getMessage());
+        }
+        return new CappedSubscriber(ct, format);
+    }
+
+    // Body bytes consumed by every subscriber so far, as received; skipped bodies count as 0
+    public long get_bytes_read() {
+        return this.bytes_read.sum();
+    }
+
+    // The same bodies after gzip/deflate decoding
+    public long get_bytes_decoded() {
+        return this.bytes_decoded.sum();
+    }
+
+    static boolean is_html(String content_type) {
+        return content_type != null && content_type.toLowerCase(Locale.ROOT).contains("text/html");
+    }
+}
@@ -5,53 +5,256 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
 import java.time.Duration;
-import java.util.Locale;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import group.work.helpers.LatencyHistogram;
+import group.work.helpers.PageCharsets;
+import group.work.metrics.MetricsRegistry;
 
 public class HttpFetcher {
     public static class FetchResult {
         public final int status_code;
-        public final String body;
+        // The page bytes as received (after content decoding) and their charset
+        public final byte[] body;
+        public final Charset charset;
         public final String content_type;
         public final Long retry_after_ms;
+        // Why the body was not read (non-HTML, too large, too slow), null otherwise
+        public final String abort_reason;
+        // Validators for the next conditional request, null when the server sent none
+        public final String etag;
+        public final String last_modified;
+
+        public FetchResult(int status_code, byte[] body, Charset charset, String content_type,
+                Long retry_after_ms) {
+            this(status_code, body, charset, content_type, retry_after_ms, null, null, null);
+        }
 
-        public FetchResult(int status_code, String body, String content_type, Long retry_after_ms) {
+        public FetchResult(int status_code, byte[] body, Charset charset, String content_type,
+                Long retry_after_ms, String abort_reason, String etag, String last_modified) {
             this.status_code = status_code;
             this.body = body;
+            this.charset = charset;
             this.content_type = content_type;
             this.retry_after_ms = retry_after_ms;
+            this.abort_reason = abort_reason;
+            this.etag = etag;
+            this.last_modified = last_modified;
+        }
+
+        public boolean is_not_modified() {
+            return this.status_code == 304;
         }
 
         public boolean is_html() {
-            if (this.content_type == null) {
+            return HtmlBodyHandler.is_html(this.content_type);
+        }
+
+        // Decodes the body, for code that needs it as text; null without a body
+        public String text() {
+            return this.body == null ? null : PageCharsets.decode(this.body, this.body.length, this.charset);
+        }
+    }
+
+    // Told about every attempt, e.g. to adapt the request rate of the host
+    // status is -1 when the attempt got no response, retry_after_ms null when absent
+    public interface AttemptListener {
+        void on_attempt(String host, int status, long latency_us, Long retry_after_ms);
+    }
+
+    private static class HostTransfer {
+        final LongAdder wire = new LongAdder();
+        final LongAdder decoded = new LongAdder();
+    }
+
+    // Caps the number of requests in flight, globally and per host
+    // Requests over the cap wait in a pending list and are started when a slot is
+    // released, so callers never block on it; once max_pending requests wait, new
+    // ones are refused
+    // A started request must call release() exactly once, whatever happens to it
+    private static class InFlightLimiter {
+        private static class Pending {
+            final String host;
+            final Runnable start;
+
+            Pending(String host, Runnable start) {
+                this.host = host;
+                this.start = start;
+            }
+        }
+
+        private final int max_total;
+        private final int max_per_host;
+        private final int max_pending;
+        private final Map<String, Integer> per_host = new HashMap<>();
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private int total = 0;
+
+        InFlightLimiter(int max_total, int max_per_host, int max_pending) {
+            this.max_total = max_total;
+            this.max_per_host = max_per_host;
+            this.max_pending = max_pending;
+        }
+
+        // False when the request was refused because too many are waiting
+        boolean submit(String host, Runnable start) {
+            synchronized (this) {
+                if (!this.try_acquire(host)) {
+                    if (this.pending.size() >= this.max_pending) {
+                        return false;
+                    }
+                    this.pending.addLast(new Pending(host, start));
+                    return true;
+                }
+            }
+            start.run();
+            return true;
+        }
+
+        void release(String host) {
+            Runnable next = null;
+            synchronized (this) {
+                this.total--;
+                this.per_host.computeIfPresent(host, (h, n) -> n > 1 ? n - 1 : null);
+                for (Iterator<Pending> it = this.pending.iterator(); it.hasNext();) {
+                    Pending p = it.next();
+                    if (this.try_acquire(p.host)) {
+                        it.remove();
+                        next = p.start;
+                        break;
+                    }
+                }
+            }
+            if (next != null) {
+                next.run();
+            }
+        }
+
+        private boolean try_acquire(String host) {
+            if (this.total >= this.max_total || this.per_host.getOrDefault(host, 0) >= this.max_per_host) {
                 return false;
             }
-            return this.content_type.toLowerCase(Locale.ROOT).contains("text/html");
+            this.total++;
+            this.per_host.merge(host, 1, Integer::sum);
+            return true;
         }
     }
 
     private final HttpClient client;
     private final String user_agent;
     private final Random random = new Random();
+    private final InFlightLimiter in_flight_limiter;
+    private final HtmlBodyHandler body_handler;
+    // Request start to body read, in microseconds, one sample per attempt
+    private final LatencyHistogram fetch_latency_us = new LatencyHistogram();
+    // Same samples split by status class; index 0 holds attempts that got no response
+    private static final String[] STATUS_CLASSES = { "error", "1xx", "2xx", "3xx", "4xx", "5xx" };
+    private final LatencyHistogram[] latency_by_class = new LatencyHistogram[STATUS_CLASSES.length];
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder backoff_ns = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private volatile AttemptListener attempt_listener;
+    private final ConcurrentHashMap<String, HostTransfer> transfer_by_host = new ConcurrentHashMap<>();
+    private final AtomicInteger hosts_with_transfer_series = new AtomicInteger(0);
+    private volatile MetricsRegistry metrics;
+    private volatile int metrics_max_hosts = 32;
+    private final ScheduledExecutorService retry_timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fetch-retry-timer");
+        t.setDaemon(true);
+        return t;
+    });
 
     public HttpFetcher(String user_agent) {
+        this(user_agent, 256, 4);
+    }
+
+    public HttpFetcher(String user_agent, int max_in_flight, int max_in_flight_per_host) {
+        this(user_agent, max_in_flight, max_in_flight_per_host, 5 * 1024 * 1024, 15_000);
+    }
+
+    public HttpFetcher(String user_agent, int max_in_flight, int max_in_flight_per_host, int max_body_bytes,
+            long body_time_budget_ms) {
         this.user_agent = user_agent;
+        this.in_flight_limiter = new InFlightLimiter(max_in_flight, max_in_flight_per_host, max_in_flight * 64);
+        this.body_handler = new HtmlBodyHandler(max_body_bytes, body_time_budget_ms);
         this.client = HttpClient.newBuilder()
                 .followRedirects(HttpClient.Redirect.NORMAL)
                 .connectTimeout(Duration.ofSeconds(5))
                 .build();
+        for (int i = 0; i < this.latency_by_class.length; i++) {
+            this.latency_by_class[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram get_fetch_latency_us() {
+        return this.fetch_latency_us;
+    }
+
+    // Response body bytes as received and after decoding, over all hosts
+    public long get_wire_bytes() {
+        return this.body_handler.get_bytes_read();
+    }
+
+    public long get_decoded_bytes() {
+        return this.body_handler.get_bytes_decoded();
+    }
+
+    public void set_attempt_listener(AttemptListener listener) {
+        this.attempt_listener = listener;
+    }
+
+    // max_hosts is the number of hosts that get their own byte counters
+    public void register_metrics(MetricsRegistry registry, int max_hosts) {
+        this.metrics_max_hosts = max_hosts;
+        this.metrics = registry;
+        for (int i = 0; i < STATUS_CLASSES.length; i++) {
+            registry.register_histogram("fetch_duration_seconds{class=\"" + STATUS_CLASSES[i] + "\"}",
+                    "Request start to end of body per attempt, by status class", this.latency_by_class[i]);
+        }
+        registry.register_counter("fetch_body_bytes_total", "Response body bytes read, as received",
+                this.body_handler::get_bytes_read);
+        registry.register_counter("fetch_body_decoded_bytes_total", "Response body bytes after gzip/deflate decoding",
+                this.body_handler::get_bytes_decoded);
+        registry.register_counter("fetch_retries_total", "Attempts repeated after 429, 5xx or a network error",
+                this.retries::sum);
+        registry.register_counter("fetch_backoff_seconds_total", "Time spent waiting between retries",
+                () -> this.backoff_ns.sum() / 1e9);
+        registry.register_counter("fetch_refused_total", "Requests refused because too many were waiting for a slot",
+                this.refused::sum);
     }
 
     // We retry failures like HTTP 429, HTTP 5xx and network or timeouts problems
     // We use a backoff with jitter to avoid synchronized retry storms
     // If Retry-After is provided, we respect it
     public FetchResult fetch_with_retries(String url, int maxAttempts) {
+        return this.fetch_with_retries(url, maxAttempts, null, null);
+    }
+
+    // Conditional variant: with a cached ETag or Last-Modified the server may answer
+    // 304, which is returned as is
+    public FetchResult fetch_with_retries(String url, int maxAttempts, String etag, String last_modified) {
         long backoff = 250;
         for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (attempt > 1) {
+                this.retries.increment();
+            }
             try {
-                FetchResult res = this.fetch_once(url);
+                FetchResult res = this.fetch_once(url, etag, last_modified);
                 if (res == null)
                     return null;
                 if (res.status_code >= 200 && res.status_code < 300) {
@@ -84,18 +287,180 @@ public class HttpFetcher {
         return null;
     }
 
-    private FetchResult fetch_once(String url) throws IOException, InterruptedException {
-        HttpRequest req = HttpRequest.newBuilder()
+    // Same retry policy as fetch_with_retries, but nothing blocks: requests go through
+    // sendAsync and backoff waits are scheduled on a timer
+    // Every attempt goes through the in-flight limiter; the future completes with null
+    // when every attempt failed, like the blocking API, and with a
+    // RejectedExecutionException when the limiter refused an attempt
+    // Cancelling the future stops further attempts
+    public CompletableFuture<FetchResult> fetch_async(String url, int max_attempts) {
+        return this.fetch_async(url, max_attempts, null, null);
+    }
+
+    public CompletableFuture<FetchResult> fetch_async(String url, int max_attempts, String etag,
+            String last_modified) {
+        CompletableFuture<FetchResult> result = new CompletableFuture<>();
+        HttpRequest req;
+        try {
+            req = this.build_request(url, etag, last_modified);
+        } catch (RuntimeException err) {
+            result.complete(null);
+            return result;
+        }
+        this.attempt_async(req, 1, max_attempts, 250, result);
+        return result;
+    }
+
+    private void attempt_async(HttpRequest req, int attempt, int max_attempts, long backoff,
+            CompletableFuture<FetchResult> result) {
+        if (result.isDone()) {
+            return;
+        }
+        String host = req.uri().getHost();
+        boolean accepted = this.in_flight_limiter.submit(host, () -> {
+            if (result.isDone()) {
+                this.in_flight_limiter.release(host);
+                return;
+            }
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<HtmlBodyHandler.Body>> sent;
+            try {
+                sent = this.client.sendAsync(req, this.body_handler);
+            } catch (RuntimeException err) {
+                // Thrown before the request left, retrying would not help
+                this.in_flight_limiter.release(host);
+                result.complete(null);
+                return;
+            }
+            sent.whenComplete((res, err) -> {
+                this.in_flight_limiter.release(host);
+                try {
+                    this.on_attempt_done(req, attempt, max_attempts, backoff, start, res, err, result);
+                } catch (RuntimeException failure) {
+                    result.complete(null);
+                }
+            });
+        });
+        if (!accepted) {
+            this.refused.increment();
+            result.completeExceptionally(new RejectedExecutionException("too many fetches waiting"));
+        }
+    }
+
+    private void on_attempt_done(HttpRequest req, int attempt, int max_attempts, long backoff, long start,
+            HttpResponse<HtmlBodyHandler.Body> res, Throwable err, CompletableFuture<FetchResult> result) {
+        String host = req.uri().getHost();
+        long next_backoff = Math.min(backoff * 2, 2000);
+        if (err != null) {
+            this.record_attempt(host, start, -1, null);
+            this.retry_later(req, attempt, max_attempts, next_backoff, backoff + this.random.nextInt(120), result);
+            return;
+        }
+        FetchResult fr = this.to_result(res);
+        this.record_attempt(host, start, fr.status_code, fr.retry_after_ms);
+        if (fr.status_code == 429 || (fr.status_code >= 500 && fr.status_code <= 599)) {
+            this.retry_later(req, attempt, max_attempts, next_backoff, this.compute_wait_ms(fr, backoff), result);
+            return;
+        }
+        result.complete(fr);
+    }
+
+    private void retry_later(HttpRequest req, int attempt, int max_attempts, long backoff, long wait_ms,
+            CompletableFuture<FetchResult> result) {
+        if (attempt >= max_attempts || result.isDone()) {
+            result.complete(null);
+            return;
+        }
+        this.retries.increment();
+        this.backoff_ns.add(TimeUnit.MILLISECONDS.toNanos(wait_ms));
+        this.retry_timer.schedule(() -> this.attempt_async(req, attempt + 1, max_attempts, backoff, result),
+                wait_ms, TimeUnit.MILLISECONDS);
+    }
+
+    private FetchResult fetch_once(String url, String etag, String last_modified)
+            throws IOException, InterruptedException {
+        HttpRequest req = this.build_request(url, etag, last_modified);
+        long start = System.nanoTime();
+        FetchResult res = null;
+        try {
+            res = this.to_result(client.send(req, this.body_handler));
+            return res;
+        } finally {
+            this.record_attempt(req.uri().getHost(), start, res != null ? res.status_code : -1,
+                    res != null ? res.retry_after_ms : null);
+        }
+    }
+
+    // Per-host counters; only the first metrics_max_hosts hosts get their own series
+    private void record_transfer(String host, HtmlBodyHandler.Body body) {
+        if (host == null) {
+            return;
+        }
+        HostTransfer t = this.transfer_by_host.get(host);
+        if (t == null) {
+            HostTransfer created = new HostTransfer();
+            t = this.transfer_by_host.putIfAbsent(host, created);
+            if (t == null) {
+                t = created;
+                MetricsRegistry registry = this.metrics;
+                if (registry != null && this.hosts_with_transfer_series.getAndIncrement() < this.metrics_max_hosts) {
+                    String label = "{host=\"" + host + "\"}";
+                    registry.register_counter("fetch_host_wire_bytes_total" + label,
+                            "Body bytes received from the host, compressed or not", t.wire::sum);
+                    registry.register_counter("fetch_host_decoded_bytes_total" + label,
+                            "Body bytes from the host after content decoding", t.decoded::sum);
+                }
+            }
+        }
+        t.wire.add(body.wire_bytes);
+        t.decoded.add(body.decoded_bytes);
+    }
+
+    // Received and decoded body bytes of one host, {wire, decoded}
+    public long[] get_host_transfer(String host) {
+        HostTransfer t = this.transfer_by_host.get(host);
+        return t != null ? new long[] { t.wire.sum(), t.decoded.sum() } : new long[] { 0, 0 };
+    }
+
+    // status -1 when the attempt failed without a response
+    private void record_attempt(String host, long start_ns, int status, Long retry_after_ms) {
+        long us = (System.nanoTime() - start_ns) / 1000;
+        this.fetch_latency_us.record(us);
+        int cls = status >= 100 && status <= 599 ? status / 100 : 0;
+        this.latency_by_class[cls].record(us);
+        AttemptListener listener = this.attempt_listener;
+        if (listener != null && host != null) {
+            listener.on_attempt(host, status, us, retry_after_ms);
+        }
+    }
+
+    private HttpRequest build_request(String url, String etag, String last_modified) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(URI.create(url))
                 .timeout(Duration.ofSeconds(8))
                 .header("User-Agent", this.user_agent)
                 .header("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
-                .GET()
-                .build();
-        HttpResponse<String> res = client.send(req, HttpResponse.BodyHandlers.ofString());
+                // HttpClient does not decode bodies itself, HtmlBodyHandler inflates these
+                .header("Accept-Encoding", "gzip, deflate");
+        if (etag != null) {
+            builder.header("If-None-Match", etag);
+        }
+        if (last_modified != null) {
+            builder.header("If-Modified-Since", last_modified);
+        }
+        return builder.GET().build();
+    }
+
+    private FetchResult to_result(HttpResponse<HtmlBodyHandler.Body> res) {
         String ct = res.headers().firstValue("content-type").orElse(null);
         Long retryAfterMs = this.parse_retry_after(res.headers().firstValue("retry-after"));
-        return new FetchResult(res.statusCode(), res.body(), ct, retryAfterMs);
+        HtmlBodyHandler.Body body = res.body();
+        if (body.wire_bytes > 0) {
+            this.record_transfer(res.uri().getHost(), body);
+        }
+        return new FetchResult(res.statusCode(), body.bytes, body.charset, ct, retryAfterMs, body.abort_reason,
+                res.headers().firstValue("etag").orElse(null),
+                res.headers().firstValue("last-modified").orElse(null));
     }
 
     private long compute_wait_ms(FetchResult res, long backoff) {
@@ -123,6 +488,11 @@ public class HttpFetcher {
         if (ms <= 0) {
             return;
         }
-        Thread.sleep(ms);
+        long start = System.nanoTime();
+        try {
+            Thread.sleep(ms);
+        } finally {
+            this.backoff_ns.add(System.nanoTime() - start);
+        }
     }
 }
@@ -0,0 +1,124 @@
+package group.work.handlers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+// Public suffixes (com, co.uk, github.io, ...) under which unrelated parties register
+// their own sites, so scope rules must never cover one as a whole
+// Matching follows the publicsuffix.org algorithm: the longest matching rule wins,
+// "*.x" rules match any single label before x, "!y" exceptions cut one label off and
+// an unlisted TLD is a public suffix by default
+public class PublicSuffixes {
+    // Common multi-label suffixes, used when no list file is configured
+    private static final String[] BUILTIN = {
+            "co.uk", "org.uk", "ac.uk", "gov.uk", "me.uk", "net.uk", "ltd.uk", "plc.uk",
+            "com.au", "net.au", "org.au", "edu.au", "gov.au", "co.nz", "org.nz", "net.nz",
+            "co.jp", "ne.jp", "or.jp", "ac.jp", "go.jp", "co.kr", "or.kr",
+            "com.br", "net.br", "org.br", "com.ar", "com.mx", "com.tr", "com.cn", "net.cn", "org.cn",
+            "com.hk", "com.tw", "com.sg", "co.in", "net.in", "org.in", "co.za", "co.il",
+            "github.io", "gitlab.io", "blogspot.com", "herokuapp.com", "appspot.com", "cloudfront.net",
+            "azurewebsites.net", "netlify.app", "vercel.app", "pages.dev", "workers.dev",
+    };
+
+    private final Set<String> rules = new HashSet<>();
+    // Stored without the leading "*."
+    private final Set<String> wildcards = new HashSet<>();
+    // Stored without the leading "!"
+    private final Set<String> exceptions = new HashSet<>();
+
+    public static PublicSuffixes builtin() {
+        PublicSuffixes suffixes = new PublicSuffixes();
+        for (String rule : BUILTIN) {
+            suffixes.add_rule(rule);
+        }
+        return suffixes;
+    }
+
+    // Reads a file in the public_suffix_list.dat format
+    public static PublicSuffixes load(Path path) throws IOException {
+        PublicSuffixes suffixes = new PublicSuffixes();
+        try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("//")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                suffixes.add_rule(space < 0 ? line : line.substring(0, space));
+            }
+        }
+        return suffixes;
+    }
+
+    public boolean is_public_suffix(String host) {
+        return !is_literal(host) && this.public_suffix(host).length() == host.length();
+    }
+
+    // The public suffix plus one label, null when the host is itself a public suffix
+    // IP addresses and localhost are returned unchanged
+    public String registrable_domain(String host) {
+        if (is_literal(host)) {
+            return host;
+        }
+        String suffix = this.public_suffix(host);
+        if (suffix.length() == host.length()) {
+            return null;
+        }
+        int dot = host.lastIndexOf('.', host.length() - suffix.length() - 2);
+        return host.substring(dot + 1);
+    }
+
+    // Candidates are tried from the whole host down to the TLD, so the first hit is
+    // the longest rule
+    private String public_suffix(String host) {
+        int start = 0;
+        while (true) {
+            String candidate = host.substring(start);
+            int dot = candidate.indexOf('.');
+            if (this.exceptions.contains(candidate)) {
+                return candidate.substring(dot + 1);
+            }
+            if (this.rules.contains(candidate)) {
+                return candidate;
+            }
+            if (dot < 0) {
+                return candidate;
+            }
+            if (this.wildcards.contains(candidate.substring(dot + 1))) {
+                return candidate;
+            }
+            start += dot + 1;
+        }
+    }
+
+    private static boolean is_literal(String host) {
+        if (host.equals("localhost") || host.startsWith("[")) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add_rule(String rule) {
+        rule = rule.toLowerCase(Locale.ROOT);
+        if (rule.startsWith("!")) {
+            this.exceptions.add(rule.substring(1));
+        } else if (rule.startsWith("*.")) {
+            this.wildcards.add(rule.substring(2));
+        } else {
+            this.rules.add(rule);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package group.work.handlers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+// Allow/Disallow rules of one robots.txt group, compiled once when the group is parsed
+// Follows RFC 9309: the matching rule with the most characters wins and Allow wins a
+// tie; '*' matches any sequence and a trailing '$' anchors the rule at the end
+// Plain prefix rules go into a character trie walked once along the path, rules with
+// wildcards are compiled into their literal pieces and tried longest first
+public class RobotsMatcher {
+    private static class TrieNode {
+        final HashMap<Character, TrieNode> children = new HashMap<>(4);
+        boolean allow_end = false;
+        boolean disallow_end = false;
+    }
+
+    private static class WildcardRule {
+        final int length;
+        final boolean allow;
+        final boolean anchored_end;
+        // Literal pieces between the '*'; the first one is anchored at the start
+        final String[] pieces;
+
+        WildcardRule(String pattern, boolean allow) {
+            this.length = pattern.length();
+            this.allow = allow;
+            this.anchored_end = pattern.endsWith("$");
+            String body = this.anchored_end ? pattern.substring(0, pattern.length() - 1) : pattern;
+            this.pieces = body.split("\\*", -1);
+        }
+
+        boolean matches(String path) {
+            String first = this.pieces[0];
+            if (!path.startsWith(first)) {
+                return false;
+            }
+            int pos = first.length();
+            int last = this.pieces.length - 1;
+            if (last == 0) {
+                return !this.anchored_end || pos == path.length();
+            }
+            for (int i = 1; i < last; i++) {
+                int found = path.indexOf(this.pieces[i], pos);
+                if (found < 0) {
+                    return false;
+                }
+                pos = found + this.pieces[i].length();
+            }
+            String tail = this.pieces[last];
+            if (this.anchored_end) {
+                return path.length() - tail.length() >= pos && path.endsWith(tail);
+            }
+            return path.indexOf(tail, pos) >= 0;
+        }
+    }
+
+    private final TrieNode root = new TrieNode();
+    private final List<WildcardRule> wildcards = new ArrayList<>();
+
+    public RobotsMatcher(List<String> allow, List<String> disallow) {
+        for (String rule : allow) {
+            this.add(rule, true);
+        }
+        for (String rule : disallow) {
+            this.add(rule, false);
+        }
+        // Longest first, Allow before Disallow of the same length
+        this.wildcards.sort(Comparator.<WildcardRule>comparingInt(r -> -r.length)
+                .thenComparing(r -> !r.allow));
+    }
+
+    public boolean is_allowed(String path) {
+        int best_len = -1;
+        boolean best_allow = true;
+        TrieNode node = this.root;
+        for (int i = 0; i <= path.length() && node != null; i++) {
+            if (node.allow_end) {
+                best_len = i;
+                best_allow = true;
+            } else if (node.disallow_end) {
+                best_len = i;
+                best_allow = false;
+            }
+            node = i < path.length() ? node.children.get(path.charAt(i)) : null;
+        }
+        for (WildcardRule r : this.wildcards) {
+            if (r.length < best_len || (r.length == best_len && (best_allow || !r.allow))) {
+                break;
+            }
+            if (r.matches(path)) {
+                best_len = r.length;
+                best_allow = r.allow;
+                break;
+            }
+        }
+        return best_len < 0 || best_allow;
+    }
+
+    private void add(String rule, boolean allow) {
+        if (rule == null || rule.isEmpty()) {
+            return;
+        }
+        if (rule.indexOf('*') >= 0 || rule.endsWith("$")) {
+            this.wildcards.add(new WildcardRule(rule, allow));
+            return;
+        }
+        TrieNode node = this.root;
+        for (int i = 0; i < rule.length(); i++) {
+            node = node.children.computeIfAbsent(rule.charAt(i), c -> new TrieNode());
+        }
+        if (allow) {
+            node.allow_end = true;
+        } else {
+            node.disallow_end = true;
+        }
+    }
+}
@@ -3,7 +3,6 @@ package group.work.handlers;
 import java.io.BufferedReader;
 import java.io.StringReader;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpClient;
@@ -13,7 +12,19 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import group.work.helpers.CrawlUrl;
+import group.work.helpers.LatencyHistogram;
+import group.work.metrics.MetricsRegistry;
 
 public class RobotsService {
     public static class RobotsCheck {
@@ -26,28 +37,23 @@ public class RobotsService {
         }
     }
 
-    private static class Group {
+    // Package-private, together with parse_robots, for the benchmarks
+    static class Group {
         final List<String> allow = new ArrayList<>();
         final List<String> disallow = new ArrayList<>();
         long crawl_delay_s = -1;
+        // Sitemap: lines are not part of any group, every group of the file gets them
+        List<String> sitemaps = List.of();
+        RobotsMatcher matcher;
 
-        private int best_prefix_match_len(List<String> rules, String path) {
-            int best = -1;
-            for (String r : rules) {
-                if (r == null || r.isEmpty()) {
-                    continue;
-                }
-                if (path.startsWith(r)) {
-                    best = Math.max(best, r.length());
-                }
-            }
-            return best;
+        // Called once parsing of the file is done
+        Group compile() {
+            this.matcher = new RobotsMatcher(this.allow, this.disallow);
+            return this;
         }
 
         boolean is_allowed(String path) {
-            int best_allow = best_prefix_match_len(allow, path);
-            int best_disallow = best_prefix_match_len(disallow, path);
-            return best_allow >= best_disallow;
+            return this.matcher.is_allowed(path);
         }
     }
 
@@ -72,34 +78,155 @@ public class RobotsService {
             .connectTimeout(Duration.ofSeconds(5))
             .build();
     private final ConcurrentHashMap<String, RobotsRules> cache = new ConcurrentHashMap<>();
+    // Both maps are keyed by host[:port], robots.txt only covers its own port
+    // One in-progress fetch per authority, shared by every caller that needs it
+    private final ConcurrentHashMap<String, CompletableFuture<RobotsRules>> loading = new ConcurrentHashMap<>();
+    // Bounded, so a burst of new hosts cannot queue up robots.txt loads without limit;
+    // prefetches and background refreshes are dropped when it is full (check() loads
+    // on demand anyway) and a load that check() waits for runs on the caller's thread
+    private static final int MAX_QUEUED_LOADS = 256;
+    private final ThreadPoolExecutor fetch_pool = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_LOADS), r -> {
+                Thread t = new Thread(r, "robots-fetcher");
+                t.setDaemon(true);
+                return t;
+            });
     private final String user_agent = "Crawler";
     private final long cache_ttl_ms = 6L * 60L * 60L * 1000L; // 6 [h]
+    // Missing or unreachable robots.txt is remembered too, for a shorter time
+    private final long negative_ttl_ms = 30L * 60L * 1000L; // 30 [min]
+    private final LongAdder cache_hits = new LongAdder();
+    private final LongAdder cache_stale = new LongAdder();
+    private final LongAdder cache_misses = new LongAdder();
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder loads_dropped = new LongAdder();
+    // How long check() blocked on a miss, in microseconds
+    private final LatencyHistogram miss_wait_us = new LatencyHistogram();
+    private volatile Consumer<String> sitemap_listener;
 
-    public RobotsCheck check(String url) {
-        String host = host(url);
-        if (host == null)
-            return new RobotsCheck(true, 0);
+    public void register_metrics(MetricsRegistry registry) {
+        registry.register_counter("robots_cache_lookups_total{result=\"hit\"}",
+                "robots.txt lookups by check(), by cache result", this.cache_hits::sum);
+        registry.register_counter("robots_cache_lookups_total{result=\"stale\"}",
+                "robots.txt lookups by check(), by cache result", this.cache_stale::sum);
+        registry.register_counter("robots_cache_lookups_total{result=\"miss\"}",
+                "robots.txt lookups by check(), by cache result", this.cache_misses::sum);
+        registry.register_counter("robots_fetches_total", "robots.txt loads started", this.fetches::sum);
+        registry.register_counter("robots_loads_dropped_total",
+                "Prefetches and refreshes of robots.txt skipped because the load queue was full",
+                this.loads_dropped::sum);
+        registry.register_histogram("robots_miss_wait_seconds", "Time check() waited for robots.txt on a miss",
+                this.miss_wait_us);
+        registry.register_gauge("robots_cached_hosts", "Authorities with cached robots rules", this.cache::size);
+    }
 
-        RobotsRules rules = cache.get(host);
-        if (rules == null || rules.is_expired()) {
-            rules = this.fetch_and_parse(host);
-            if (rules != null)
-                cache.put(host, rules);
+    // Told about the Sitemap: URLs of every robots.txt loaded, refreshes included
+    public void set_sitemap_listener(Consumer<String> listener) {
+        this.sitemap_listener = listener;
+    }
+
+    // Only blocks when the host has never been loaded; an expired entry keeps being
+    // used while its refresh runs in the background
+    public RobotsCheck check(CrawlUrl url) {
+        String authority = url.authority();
+        RobotsRules rules = cache.get(authority);
+        if (rules == null) {
+            this.cache_misses.increment();
+            long start = System.nanoTime();
+            try {
+                rules = this.load(url.scheme, authority, true).get();
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                return new RobotsCheck(true, 0);
+            } catch (ExecutionException err) {
+                rules = null;
+            } finally {
+                this.miss_wait_us.record((System.nanoTime() - start) / 1000);
+            }
+        } else if (rules.is_expired()) {
+            this.cache_stale.increment();
+            this.load(url.scheme, authority, false);
+        } else {
+            this.cache_hits.increment();
         }
         if (rules == null || rules.group == null) {
             return new RobotsCheck(true, 0);
         }
-        String path = path(url);
-        boolean allowed = rules.group.is_allowed(path);
+        // Rules apply to the path and the query, as in RFC 9309
+        boolean allowed = rules.group.is_allowed(url.path_and_query());
         long delay_ms = rules.group.crawl_delay_s > 0 ? rules.group.crawl_delay_s * 1000L : 0;
         return new RobotsCheck(allowed, delay_ms);
     }
 
-    // In this way, it supports User-agent, Allow, Disallow and Crawl-delay
+    // Starts loading robots.txt for a host that just entered the frontier, so the
+    // first check() for it finds the rules already cached
+    public void prefetch(CrawlUrl url) {
+        String authority = url.authority();
+        RobotsRules rules = cache.get(authority);
+        if (rules == null || rules.is_expired()) {
+            this.load(url.scheme, authority, false);
+        }
+    }
+
+    // null when the load was not needed right away and the queue was full
+    private CompletableFuture<RobotsRules> load(String scheme, String authority, boolean needed) {
+        CompletableFuture<RobotsRules> existing = this.loading.get(authority);
+        if (existing != null) {
+            return existing;
+        }
+        if (!needed && this.fetch_pool.getQueue().remainingCapacity() == 0) {
+            this.loads_dropped.increment();
+            return null;
+        }
+        CompletableFuture<RobotsRules> created = new CompletableFuture<>();
+        existing = this.loading.putIfAbsent(authority, created);
+        if (existing != null) {
+            return existing;
+        }
+        this.fetches.increment();
+        CompletableFuture<RobotsRules> fetched;
+        try {
+            fetched = CompletableFuture.supplyAsync(() -> this.fetch_and_parse(scheme, authority), this.fetch_pool);
+        } catch (RejectedExecutionException err) {
+            // Queue filled up since the check above, load it here rather than lose it
+            fetched = new CompletableFuture<>();
+            try {
+                fetched.complete(this.fetch_and_parse(scheme, authority));
+            } catch (RuntimeException fetch_err) {
+                fetched.completeExceptionally(fetch_err);
+            }
+        }
+        fetched.whenComplete((rules, err) -> {
+                    if (rules != null) {
+                        cache.put(authority, rules);
+                        this.announce_sitemaps(rules);
+                    }
+                    this.loading.remove(authority, created);
+                    if (err != null) {
+                        created.completeExceptionally(err);
+                    } else {
+                        created.complete(rules);
+                    }
+                });
+        return created;
+    }
+
+    private void announce_sitemaps(RobotsRules rules) {
+        Consumer<String> listener = this.sitemap_listener;
+        if (listener == null || rules.group == null) {
+            return;
+        }
+        for (String sitemap : rules.group.sitemaps) {
+            listener.accept(sitemap);
+        }
+    }
+
+    // In this way, it supports User-agent, Allow, Disallow, Crawl-delay and Sitemap
     // It chooses the most appropiate group for the crawler
-    // Uses longest match wins login between Allow and Disallow
-    private Group parse_robots(String body) {
+    // Uses longest match wins login between Allow and Disallow, with * and $ patterns
+    Group parse_robots(String body) {
         Map<String, Group> groups = new LinkedHashMap<>();
+        List<String> sitemaps = new ArrayList<>();
         String current_agent = null;
         try (BufferedReader br = new BufferedReader(new StringReader(body))) {
             String line;
@@ -114,6 +241,12 @@ public class RobotsService {
                 }
                 String key = line.substring(0, idx).trim().toLowerCase(Locale.ROOT);
                 String val = line.substring(idx + 1).trim();
+                if ("sitemap".equals(key)) {
+                    if (!val.isEmpty()) {
+                        sitemaps.add(val);
+                    }
+                    continue;
+                }
                 if ("user-agent".equals(key)) {
                     current_agent = val.toLowerCase(Locale.ROOT);
                     groups.computeIfAbsent(current_agent, k -> new Group());
@@ -141,13 +274,15 @@ public class RobotsService {
         } catch (Exception err) {
         }
         String user_agent = this.user_agent.toLowerCase(Locale.ROOT);
-        if (groups.containsKey(user_agent)) {
-            return groups.get(user_agent);
+        Group chosen = groups.get(user_agent);
+        if (chosen == null) {
+            chosen = groups.get("*");
         }
-        if (groups.containsKey("*")) {
-            return groups.get("*");
+        if (chosen == null) {
+            chosen = new Group();
         }
-        return new Group();
+        chosen.sitemaps = sitemaps;
+        return chosen.compile();
     }
 
     private RobotsRules try_fetch(String robots_url) {
@@ -168,34 +303,18 @@ public class RobotsService {
         }
     }
 
-    private RobotsRules fetch_and_parse(String host) {
-        RobotsRules https = this.try_fetch("https://" + host + "/robots.txt");
-        if (https != null)
-            return https;
-        RobotsRules http = this.try_fetch("http://" + host + "/robots.txt");
-        return http;
+    // Tries the scheme of the URL that triggered the load first, then the other one
+    private RobotsRules fetch_and_parse(String scheme, String authority) {
+        String other = scheme.equals("https") ? "http" : "https";
+        RobotsRules first = this.try_fetch(scheme + "://" + authority + "/robots.txt");
+        if (first != null)
+            return first;
+        RobotsRules second = this.try_fetch(other + "://" + authority + "/robots.txt");
+        if (second != null)
+            return second;
+        return new RobotsRules(System.currentTimeMillis(), negative_ttl_ms, null);
     }
 
-    private String host(String url) {
-        try {
-            return new URI(url).getHost();
-        } catch (URISyntaxException err) {
-            return null;
-        }
-    }
-
-    private String path(String url) {
-        try {
-            URI u = new URI(url);
-            String p = u.getRawPath();
-            if (p == null || p.isEmpty()) {
-                return "/";
-            }
-            return p;
-        } catch (URISyntaxException err) {
-            return null;
-        }
-    }
 
     private String strip_comment(String line) {
         int idx = line.indexOf('#');
@@ -1,34 +1,208 @@
 package group.work.handlers;
 
-import java.net.URI;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import group.work.helpers.CrawlUrl;
+
+// We restrict discovered links to a whitelist of allowed hosts
+// Without this limitation, the crawler would cause unbouded queue growth or
+// unpredictable runtimes
+// Domains are stored in a trie of reversed labels (com -> example -> www), so a
+// lookup walks the labels of one host and costs the same for 1 or 100k domains
+// The deepest matching rule wins, deny wins over allow for the same domain
 public class ScopePolicy {
-    private final Set<String> allowed_hosts;
+    // Scope rules; every domain rule also covers its subdomains
+    public static class Rules {
+        // Seed hosts (or their registrable domains), always allowed
+        public final Set<String> seed_domains = new LinkedHashSet<>();
+        public final Set<String> allow_domains = new LinkedHashSet<>();
+        public final Set<String> deny_domains = new LinkedHashSet<>();
+        // Path prefixes in robots.txt syntax, '*' and a trailing '$' are supported
+        public final List<String> deny_path_prefixes = new ArrayList<>();
+        // Regular expressions searched in the path and query
+        public final List<String> deny_patterns = new ArrayList<>();
+
+        // Reads one rule per line, lines starting with '#' are comments:
+        // allow example.com | deny ads.example.com | deny-path /private/ | deny-regex \.pdf$
+        // The rules are only added once the whole file parsed, a bad line adds none
+        public void load(Path path) throws IOException {
+            Rules loaded = new Rules();
+            try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                int line_no = 0;
+                while ((line = br.readLine()) != null) {
+                    line_no++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    int space = line.indexOf(' ');
+                    if (space < 0) {
+                        throw new IOException(path + ":" + line_no + ": rule without a value");
+                    }
+                    String value = line.substring(space + 1).trim();
+                    switch (line.substring(0, space).toLowerCase(Locale.ROOT)) {
+                        case "allow" -> loaded.allow_domains.add(value.toLowerCase(Locale.ROOT));
+                        case "deny" -> loaded.deny_domains.add(value.toLowerCase(Locale.ROOT));
+                        case "deny-path" -> loaded.deny_path_prefixes.add(value);
+                        case "deny-regex" -> {
+                            try {
+                                Pattern.compile(value);
+                            } catch (PatternSyntaxException err) {
+                                throw new IOException(path + ":" + line_no + ": bad regex " + err.getDescription());
+                            }
+                            loaded.deny_patterns.add(value);
+                        }
+                        default -> throw new IOException(path + ":" + line_no + ": unknown rule " + line);
+                    }
+                }
+            }
+            this.allow_domains.addAll(loaded.allow_domains);
+            this.deny_domains.addAll(loaded.deny_domains);
+            this.deny_path_prefixes.addAll(loaded.deny_path_prefixes);
+            this.deny_patterns.addAll(loaded.deny_patterns);
+        }
+    }
+
+    private static final byte NONE = 0;
+    private static final byte ALLOW = 1;
+    private static final byte DENY = 2;
+
+    private static class Node {
+        HashMap<String, Node> children;
+        byte verdict = NONE;
+    }
+
+    private final Node root = new Node();
+    private final RobotsMatcher path_rules;
+    private final Pattern deny_pattern;
+    private int domain_count = 0;
 
     public ScopePolicy(Set<String> allowed_hosts) {
-        this.allowed_hosts = allowed_hosts;
+        this(allowed_only(allowed_hosts), PublicSuffixes.builtin());
     }
 
-    // We restrict discovered links to a whitelist of allowed hosts
-    // Without this limitation, the crawler would cause unbouded queue growth or
-    // unpredictable runtimes
-    public boolean is_in_scope(String url) {
-        try {
-            String host = new URI(url).getHost();
-            if (host == null) {
-                return false;
-            }
-            host = host.toLowerCase(Locale.ROOT);
-            for (String allowed : this.allowed_hosts) {
-                if (host.equals(allowed) || host.endsWith("." + allowed)) {
-                    return true;
-                }
+    // Rules are compiled once here, the policy is immutable and thread-safe afterwards
+    public ScopePolicy(Rules rules, PublicSuffixes suffixes) {
+        for (String domain : rules.seed_domains) {
+            this.add(domain, ALLOW);
+        }
+        for (String domain : rules.allow_domains) {
+            if (suffixes.is_public_suffix(domain)) {
+                // Allowing co.uk or github.io would put every site under it in scope
+                System.err.println("[ScopePolicy] ignoring allow rule for public suffix " + domain);
+                continue;
             }
+            this.add(domain, ALLOW);
+        }
+        for (String domain : rules.deny_domains) {
+            this.add(domain, DENY);
+        }
+        this.path_rules = rules.deny_path_prefixes.isEmpty()
+                ? null
+                : new RobotsMatcher(List.of(), rules.deny_path_prefixes);
+        this.deny_pattern = compile_patterns(rules.deny_patterns);
+    }
+
+    public boolean is_in_scope(CrawlUrl url) {
+        if (this.host_verdict(url.host) != ALLOW) {
             return false;
-        } catch (Exception err) {
+        }
+        if (this.path_rules == null && this.deny_pattern == null) {
+            return true;
+        }
+        String path = url.path_and_query();
+        if (this.path_rules != null && !this.path_rules.is_allowed(path)) {
             return false;
         }
+        return this.deny_pattern == null || !this.deny_pattern.matcher(path).find();
+    }
+
+    public int get_domain_count() {
+        return this.domain_count;
+    }
+
+    // The host of a CrawlUrl is already lowercase and has no trailing dot
+    private byte host_verdict(String host) {
+        byte verdict = NONE;
+        Node node = this.root;
+        int end = host.length();
+        while (end > 0) {
+            if (node.children == null) {
+                break;
+            }
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) {
+                break;
+            }
+            if (node.verdict != NONE) {
+                verdict = node.verdict;
+            }
+            end = dot;
+        }
+        return verdict;
+    }
+
+    private void add(String domain, byte verdict) {
+        if (domain.startsWith("*.")) {
+            domain = domain.substring(2);
+        }
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        if (domain.isEmpty()) {
+            return;
+        }
+        Node node = this.root;
+        int end = domain.length();
+        while (end > 0) {
+            int dot = domain.lastIndexOf('.', end - 1);
+            if (node.children == null) {
+                node.children = new HashMap<>(4);
+            }
+            node = node.children.computeIfAbsent(domain.substring(dot + 1, end), k -> new Node());
+            end = dot;
+        }
+        if (node.verdict == NONE) {
+            this.domain_count++;
+        }
+        if (node.verdict != DENY) {
+            node.verdict = verdict;
+        }
+    }
+
+    private static Pattern compile_patterns(List<String> patterns) {
+        if (patterns.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String p : patterns) {
+            // Compiled alone first so a bad rule is reported by itself
+            Pattern.compile(p);
+            if (sb.length() > 0) {
+                sb.append('|');
+            }
+            sb.append("(?:").append(p).append(')');
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    private static Rules allowed_only(Set<String> allowed_hosts) {
+        Rules rules = new Rules();
+        rules.seed_domains.addAll(allowed_hosts);
+        return rules;
     }
 }
@@ -0,0 +1,354 @@
+package group.work.handlers;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import group.work.metrics.MetricsRegistry;
+
+// Fetches sitemaps (usually the ones robots.txt lists) and streams their <url>
+// entries to a sink, sitemap indexes are followed to the sitemaps they list
+// The body is parsed with StAX straight off the response stream, gunzipped on the
+// way for .xml.gz files and gzip responses, so memory stays the same whatever the
+// size of the file. sitemaps.org limits a file to 50,000 URLs and 50 MB
+// uncompressed, reading stops there
+// Sitemaps are fetched on their own threads, one at a time per host and the host's
+// current delay apart (see set_host_delay); they do not take the frontier's slots
+public class SitemapService {
+    public interface Sink {
+        // lastmod_ms is -1 when the entry has no (readable) <lastmod>
+        void on_url(String loc, long lastmod_ms);
+
+        // A sitemap listed by an index; it is only read when this returns true, so
+        // the owner applies the same checks as to the sitemaps it submits
+        boolean on_sitemap(String loc);
+    }
+
+    // Only stops reading once the limit is reached, what was parsed so far is kept
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                this.remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, this.remaining));
+            if (n > 0) {
+                this.remaining -= n;
+            }
+            return n;
+        }
+    }
+
+    private static final int MAX_URLS_PER_FILE = 50_000;
+    private static final long MAX_FILE_BYTES = 50L * 1024 * 1024;
+    // Indexes must not list other indexes; one extra level is tolerated
+    private static final int MAX_DEPTH = 2;
+    private static final XMLInputFactory XML = create_xml_factory();
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final ScheduledExecutorService fetch_pool = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "sitemap-fetcher");
+        t.setDaemon(true);
+        return t;
+    });
+    // Sitemaps waiting per host, a host is in the map while one of its sitemaps is
+    // being read or scheduled; guarded by itself
+    private final Map<String, ArrayDeque<Runnable>> waiting = new HashMap<>();
+    private volatile ToLongFunction<String> host_delay = host -> 0;
+    private final String user_agent;
+    private final int max_files;
+    // Every sitemap is read at most once per run, also when robots.txt is refreshed
+    private final Set<String> submitted = ConcurrentHashMap.newKeySet();
+    // Submitted and not finished yet
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final LongAdder files_fetched = new LongAdder();
+    private final LongAdder files_failed = new LongAdder();
+    private final LongAdder files_skipped = new LongAdder();
+    private final LongAdder urls_found = new LongAdder();
+    private volatile Sink sink;
+    private volatile boolean closed = false;
+
+    public SitemapService(String user_agent, int max_files) {
+        this.user_agent = user_agent;
+        this.max_files = max_files;
+    }
+
+    public void set_sink(Sink sink) {
+        this.sink = sink;
+    }
+
+    // Delay in ms between two sitemap fetches of a host, e.g. the frontier's current one
+    public void set_host_delay(ToLongFunction<String> host_delay) {
+        this.host_delay = host_delay;
+    }
+
+    public void submit(String sitemap_url) {
+        this.submit(sitemap_url, 0);
+    }
+
+    // No sitemap is waiting or being read; the crawl is not over while one is
+    public boolean is_idle() {
+        return this.pending.get() == 0;
+    }
+
+    public void register_metrics(MetricsRegistry registry) {
+        registry.register_counter("sitemap_files_total{result=\"fetched\"}", "Sitemap files, by outcome",
+                this.files_fetched::sum);
+        registry.register_counter("sitemap_files_total{result=\"failed\"}", "Sitemap files, by outcome",
+                this.files_failed::sum);
+        registry.register_counter("sitemap_files_total{result=\"skipped\"}", "Sitemap files, by outcome",
+                this.files_skipped::sum);
+        registry.register_counter("sitemap_urls_found_total", "<url> entries read from sitemaps",
+                this.urls_found::sum);
+        registry.register_gauge("sitemap_pending_files", "Sitemap files queued or being read", this.pending::get);
+    }
+
+    public void close() {
+        this.closed = true;
+        this.fetch_pool.shutdownNow();
+    }
+
+    private void submit(String sitemap_url, int depth) {
+        if (this.closed || !this.submitted.add(sitemap_url)) {
+            return;
+        }
+        if (depth > MAX_DEPTH || this.submitted.size() > this.max_files) {
+            this.files_skipped.increment();
+            return;
+        }
+        String host;
+        try {
+            host = URI.create(sitemap_url).getHost();
+        } catch (IllegalArgumentException err) {
+            host = null;
+        }
+        if (host == null) {
+            this.files_skipped.increment();
+            return;
+        }
+        this.pending.incrementAndGet();
+        Runnable task = () -> {
+            try {
+                this.fetch(sitemap_url, depth);
+            } finally {
+                this.pending.decrementAndGet();
+            }
+        };
+        synchronized (this.waiting) {
+            ArrayDeque<Runnable> queue = this.waiting.get(host);
+            if (queue != null) {
+                queue.add(task);
+                return;
+            }
+            this.waiting.put(host, new ArrayDeque<>());
+        }
+        this.run_for_host(host, task, 0);
+    }
+
+    // Runs the task after delay_ms, then the next sitemap of the same host, if any,
+    // the host's delay after this one finished
+    private void run_for_host(String host, Runnable task, long delay_ms) {
+        try {
+            this.fetch_pool.schedule(() -> {
+                try {
+                    task.run();
+                } finally {
+                    Runnable next;
+                    synchronized (this.waiting) {
+                        next = this.waiting.get(host).poll();
+                        if (next == null) {
+                            this.waiting.remove(host);
+                        }
+                    }
+                    if (next != null) {
+                        this.run_for_host(host, next, this.host_delay.applyAsLong(host));
+                    }
+                }
+            }, delay_ms, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException err) {
+            // Closed; nothing of this host runs any more
+            synchronized (this.waiting) {
+                ArrayDeque<Runnable> queue = this.waiting.remove(host);
+                this.pending.addAndGet(-1 - (queue != null ? queue.size() : 0));
+            }
+        }
+    }
+
+    private void fetch(String sitemap_url, int depth) {
+        try {
+            URI uri = URI.create(sitemap_url);
+            if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+                this.files_skipped.increment();
+                return;
+            }
+            HttpRequest req = HttpRequest.newBuilder().uri(uri).timeout(Duration.ofSeconds(30))
+                    .header("User-Agent", this.user_agent)
+                    .header("Accept-Encoding", "gzip")
+                    .GET().build();
+            HttpResponse<InputStream> res = this.client.send(req, HttpResponse.BodyHandlers.ofInputStream());
+            InputStream in = res.body();
+            try {
+                if (res.statusCode() < 200 || res.statusCode() >= 300) {
+                    this.files_failed.increment();
+                    return;
+                }
+                String encoding = res.headers().firstValue("content-encoding").orElse("");
+                if (encoding.trim().toLowerCase(Locale.ROOT).endsWith("gzip")) {
+                    in = new GZIPInputStream(in, 16 * 1024);
+                }
+                // .xml.gz files are often served without Content-Encoding
+                in = gunzip_if_compressed(new BufferedInputStream(in, 16 * 1024));
+                this.parse(new LimitedInputStream(in, MAX_FILE_BYTES), depth);
+                this.files_fetched.increment();
+            } finally {
+                // Also ends the Inflater of a GZIPInputStream
+                in.close();
+            }
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | XMLStreamException | IllegalArgumentException err) {
+            this.files_failed.increment();
+            System.err.println("[SitemapService] could not read " + sitemap_url + ": " + err.getMessage());
+        }
+    }
+
+    private void parse(InputStream in, int depth) throws XMLStreamException {
+        XMLStreamReader r = XML.createXMLStreamReader(in);
+        try {
+            // <urlset>/<sitemapindex> is level 1, <url>/<sitemap> level 2 and their
+            // <loc>/<lastmod> level 3; extensions such as <image:loc> are deeper
+            int level = 0;
+            String loc = null;
+            long lastmod_ms = -1;
+            int urls = 0;
+            while (r.hasNext() && !this.closed) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    level++;
+                    String name = r.getLocalName();
+                    if (level == 2) {
+                        loc = null;
+                        lastmod_ms = -1;
+                    } else if (level == 3 && name.equals("loc")) {
+                        loc = r.getElementText().trim();
+                        level--;
+                    } else if (level == 3 && name.equals("lastmod")) {
+                        lastmod_ms = parse_lastmod(r.getElementText().trim());
+                        level--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (level == 2 && loc != null && !loc.isEmpty()) {
+                        String name = r.getLocalName();
+                        if (name.equals("url")) {
+                            this.urls_found.increment();
+                            Sink s = this.sink;
+                            if (s != null) {
+                                s.on_url(loc, lastmod_ms);
+                            }
+                            if (++urls >= MAX_URLS_PER_FILE) {
+                                return;
+                            }
+                        } else if (name.equals("sitemap")) {
+                            // The <lastmod> of an index entry would need the time this
+                            // run read the child before, which is not kept across runs
+                            Sink s = this.sink;
+                            if (s != null && s.on_sitemap(loc)) {
+                                this.submit(loc, depth + 1);
+                            } else {
+                                this.files_skipped.increment();
+                            }
+                        }
+                    }
+                    level--;
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    // W3C datetime as sitemaps.org uses it: a date, or a date and time with a zone
+    // (seconds and fractions optional); -1 for anything else
+    static long parse_lastmod(String value) {
+        try {
+            if (value.length() <= 10) {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            }
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        } catch (DateTimeParseException err) {
+            return -1;
+        }
+    }
+
+    private static InputStream gunzip_if_compressed(BufferedInputStream in) throws IOException {
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return new GZIPInputStream(in, 16 * 1024);
+        }
+        return in;
+    }
+
+    // Sitemaps come from the sites being crawled: no DTDs, so no external entities
+    // and no entity expansion
+    private static XMLInputFactory create_xml_factory() {
+        XMLInputFactory f = XMLInputFactory.newFactory();
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return f;
+    }
+}
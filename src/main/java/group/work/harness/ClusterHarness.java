@@ -0,0 +1,172 @@
+package group.work.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jsoup.Jsoup;
+
+import group.work.crawler.CrawlerConfig;
+import group.work.crawler.CrawlerController;
+
+// Offline multi-node test: one SyntheticWeb with several sites in this JVM and
+// harness.nodes crawler JVMs (ClusterHarness.Node) forming a cluster on loopback
+// Optionally the last node joins harness.join_delay_ms late, and node 1 is stopped
+// with SIGTERM after harness.stop_after_ms, to see hosts move on join and leave.
+// repeats in the server summary counts pages fetched more than once across the cluster
+// e.g. -Dharness.nodes=3 -Dharness.sites=12 -Dharness.pages=500 -Dharness.join_delay_ms=2000
+public class ClusterHarness {
+    private static final Pattern STOPPED = Pattern.compile("pages stored=(\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        SyntheticWeb.Options web = LoadHarness.web_options();
+        web.sites = Integer.getInteger("harness.sites", 8);
+        int nodes = Integer.getInteger("harness.nodes", 3);
+        int threads = Integer.getInteger("harness.threads", 8);
+        long join_delay_ms = Long.getLong("harness.join_delay_ms", 0);
+        long stop_after_ms = Long.getLong("harness.stop_after_ms", -1);
+        long timeout_s = Long.getLong("harness.timeout_s", 600);
+
+        SyntheticWeb site = new SyntheticWeb(web);
+        site.start();
+        Path work = Files.createTempDirectory("cluster-harness");
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            addresses.add("127.0.0.1:" + free_port());
+        }
+        System.out.println("[Harness] " + web.sites + " sites of " + web.pages + " pages, " + nodes
+                + " nodes " + addresses + ", logs in " + work);
+
+        List<Process> processes = new ArrayList<>();
+        long start_ns = System.nanoTime();
+        try {
+            for (int i = 0; i < nodes; i++) {
+                if (i == nodes - 1 && join_delay_ms > 0 && nodes > 1) {
+                    Thread.sleep(join_delay_ms);
+                    System.out.println("[Harness] starting late node " + addresses.get(i));
+                }
+                processes.add(start_node(i, addresses, site.get_seed_urls(), threads, work));
+            }
+            if (stop_after_ms >= 0 && nodes > 1) {
+                long left_ms = stop_after_ms - (System.nanoTime() - start_ns) / 1_000_000;
+                if (left_ms > 0) {
+                    Thread.sleep(left_ms);
+                }
+                System.out.println("[Harness] stopping node " + addresses.get(1));
+                processes.get(1).destroy();
+            }
+            for (Process p : processes) {
+                if (!p.waitFor(timeout_s, TimeUnit.SECONDS)) {
+                    p.destroyForcibly();
+                }
+            }
+        } finally {
+            for (Process p : processes) {
+                p.destroyForcibly();
+            }
+            site.stop();
+        }
+        double total_s = (System.nanoTime() - start_ns) / 1e9;
+
+        System.out.println();
+        System.out.println(String.format("%-22s %8s %6s", "node", "pages", "exit"));
+        long total_pages = 0;
+        for (int i = 0; i < nodes; i++) {
+            long pages = read_pages_stored(work.resolve("node-" + i + ".log"));
+            total_pages += Math.max(0, pages);
+            System.out.println(String.format("%-22s %8d %6d", addresses.get(i), pages, processes.get(i).exitValue()));
+        }
+        System.out.println(String.format(Locale.ROOT, "[Harness] %d pages in %.1f s (%.1f pages/s), %s", total_pages,
+                total_s, total_pages / Math.max(total_s, 0.001), site.get_summary()));
+        System.exit(0);
+    }
+
+    // One cluster node: crawls the comma separated harness.seeds and exits when the cluster is idle
+    public static class Node {
+        public static void main(String[] args) throws InterruptedException {
+            List<String> seeds = new ArrayList<>();
+            for (String seed : System.getProperty("harness.seeds", "").split(",")) {
+                if (!seed.isBlank()) {
+                    seeds.add(seed.trim());
+                }
+            }
+            CrawlerController controller = new CrawlerController(seeds, CrawlerConfig.from_system_properties());
+            controller.start();
+            controller.await_termination(Long.MAX_VALUE, TimeUnit.DAYS);
+            System.exit(0);
+        }
+    }
+
+    private static Process start_node(int index, List<String> addresses, List<String> seeds, int threads, Path work)
+            throws IOException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-cp");
+        cmd.add(node_class_path());
+        // crawler.* settings given to the harness apply to every node
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("crawler.")) {
+                cmd.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        cmd.add("-Dcrawler.cluster.listen=" + addresses.get(index));
+        cmd.add("-Dcrawler.cluster.peers=" + String.join(",", addresses));
+        cmd.add("-Dharness.seeds=" + String.join(",", seeds));
+        cmd.add("-Dcrawler.threads=" + threads);
+        cmd.add("-Dcrawler.output_dir=" + work.resolve("node-" + index + "-data"));
+        cmd.add("-Dcrawler.validator_cache=");
+        if (System.getProperty("crawler.max_pages") == null) {
+            cmd.add("-Dcrawler.max_pages=" + Integer.MAX_VALUE);
+        }
+        if (System.getProperty("crawler.host_delay_ms") == null) {
+            cmd.add("-Dcrawler.host_delay_ms=0");
+        }
+        cmd.add(Node.class.getName());
+        File log = work.resolve("node-" + index + ".log").toFile();
+        return new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    // Where the crawler and jsoup were loaded from; java.class.path is Maven's own
+    // when the harness runs under exec:java
+    private static String node_class_path() {
+        try {
+            List<String> entries = new ArrayList<>();
+            for (Class<?> c : List.of(CrawlerController.class, Jsoup.class)) {
+                entries.add(Path.of(c.getProtectionDomain().getCodeSource().getLocation().toURI()).toString());
+            }
+            return String.join(File.pathSeparator, entries);
+        } catch (URISyntaxException | RuntimeException err) {
+            return System.getProperty("java.class.path");
+        }
+    }
+
+    // -1 when the node did not get to print its final line
+    private static long read_pages_stored(Path log) throws IOException {
+        long pages = -1;
+        for (String line : Files.readAllLines(log)) {
+            if (line.startsWith("[Controller] stopped;")) {
+                Matcher m = STOPPED.matcher(line);
+                if (m.find()) {
+                    pages = Long.parseLong(m.group(1));
+                }
+            }
+        }
+        return pages;
+    }
+
+    private static int free_port() throws IOException {
+        try (ServerSocket s = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package group.work.harness;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import group.work.crawler.CrawlerConfig;
+import group.work.crawler.CrawlerController;
+import group.work.helpers.LatencyHistogram;
+
+// Offline end-to-end load test: crawls a SyntheticWeb once per thread count and
+// prints pages/s, client-side fetch latency, heap high-water mark and completion time
+// Settings come from system properties, e.g.
+// -Dharness.threads=1,4,16,64 -Dharness.pages=5000 -Dharness.rate_5xx=0.01
+public class LoadHarness {
+    private static class RunResult {
+        int threads;
+        int pages;
+        double completion_s;
+        double active_s;
+        long p50_us;
+        long p99_us;
+        long heap_peak_bytes;
+        String server;
+    }
+
+    public static void main(String[] args) throws Exception {
+        SyntheticWeb.Options web = web_options();
+        List<Integer> thread_counts = new ArrayList<>();
+        for (String t : System.getProperty("harness.threads", "1,4,16").split(",")) {
+            thread_counts.add(Integer.parseInt(t.trim()));
+        }
+
+        SyntheticWeb site = new SyntheticWeb(web);
+        site.start();
+        System.out.println("[Harness] synthetic web at " + site.get_base_url() + ": " + web.sites + " sites of "
+                + web.pages + " pages, fan-out " + web.fan_out + ", robots " + web.robots);
+        List<RunResult> results = new ArrayList<>();
+        try {
+            for (int threads : thread_counts) {
+                results.add(run(site, threads));
+            }
+        } finally {
+            site.stop();
+        }
+        System.out.println();
+        System.out.println(String.format("%8s %8s %10s %10s %10s %10s %10s %10s  %s", "threads", "pages",
+                "pages/s", "active_s", "total_s", "p50_ms", "p99_ms", "heap_MiB", "server"));
+        for (RunResult r : results) {
+            System.out.println(String.format(Locale.ROOT, "%8d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10d  %s",
+                    r.threads, r.pages, r.pages / Math.max(r.active_s, 0.001), r.active_s, r.completion_s,
+                    r.p50_us / 1000.0, r.p99_us / 1000.0, r.heap_peak_bytes >> 20, r.server));
+        }
+        System.exit(0);
+    }
+
+    // The harness.* settings of the synthetic web, shared with ClusterHarness
+    static SyntheticWeb.Options web_options() {
+        SyntheticWeb.Options web = new SyntheticWeb.Options();
+        web.pages = Integer.getInteger("harness.pages", web.pages);
+        web.fan_out = Integer.getInteger("harness.fan_out", web.fan_out);
+        web.min_page_bytes = Integer.getInteger("harness.min_page_bytes", web.min_page_bytes);
+        web.max_page_bytes = Integer.getInteger("harness.max_page_bytes", web.max_page_bytes);
+        web.latency_median_ms = double_property("harness.latency_ms", web.latency_median_ms);
+        web.latency_sigma = double_property("harness.latency_sigma", web.latency_sigma);
+        web.rate_429 = double_property("harness.rate_429", web.rate_429);
+        web.rate_5xx = double_property("harness.rate_5xx", web.rate_5xx);
+        web.redirect_rate = double_property("harness.redirect_rate", web.redirect_rate);
+        web.redirect_hops = Integer.getInteger("harness.redirect_hops", web.redirect_hops);
+        web.private_rate = double_property("harness.private_rate", web.private_rate);
+        web.crawl_delay_s = Long.getLong("harness.crawl_delay_s", web.crawl_delay_s);
+        web.server_threads = Integer.getInteger("harness.server_threads", web.server_threads);
+        String robots = System.getProperty("harness.robots");
+        if (robots != null) {
+            web.robots = SyntheticWeb.RobotsVariant.valueOf(robots.trim().toUpperCase(Locale.ROOT));
+        }
+        web.sites = Integer.getInteger("harness.sites", web.sites);
+        web.cross_site_rate = double_property("harness.cross_site_rate", web.cross_site_rate);
+        String encoding = System.getProperty("harness.content_encoding");
+        if (encoding != null) {
+            web.content_encoding = encoding.isBlank() || encoding.equals("none") ? null : encoding.trim();
+        }
+        web.sitemap_urls_per_file = Integer.getInteger("harness.sitemap_urls_per_file", web.sitemap_urls_per_file);
+        return web;
+    }
+
+    // One crawl of the whole site; the crawl ends when the controller sees an empty
+    // frontier for a few monitor ticks, so active_s (up to the last stored page) is
+    // the figure to compare, total_s includes that idle detection
+    private static RunResult run(SyntheticWeb site, int threads) throws Exception {
+        Path output = Files.createTempDirectory("harness-crawl");
+        CrawlerConfig config = CrawlerConfig.from_system_properties();
+        config.num_threads = threads;
+        config.max_pages = Integer.getInteger("harness.max_pages", Integer.MAX_VALUE);
+        config.output_dir = output.toString();
+        config.validator_cache_path = null;
+        config.checkpoint_dir = null;
+        config.default_host_delay_ms = Long.getLong("harness.host_delay_ms", 0);
+        // A site that serves sitemaps is meant to be crawled with them
+        config.sitemaps |= Integer.getInteger("harness.sitemap_urls_per_file", 0) > 0;
+
+        site.reset_counters();
+        System.gc();
+        List<MemoryPoolMXBean> heap_pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap_pools.add(pool);
+            }
+        }
+        CrawlerController controller = new CrawlerController(site.get_seed_urls(), config);
+        long start_ns = System.nanoTime();
+        long[] last_change_ns = { start_ns };
+        int[] last_pages = { 0 };
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "harness-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            int pages = controller.get_pages_stored();
+            if (pages != last_pages[0]) {
+                last_pages[0] = pages;
+                last_change_ns[0] = System.nanoTime();
+            }
+        }, 20, 20, TimeUnit.MILLISECONDS);
+        controller.start();
+        controller.await_termination(1, TimeUnit.HOURS);
+        long end_ns = System.nanoTime();
+        sampler.shutdownNow();
+        sampler.awaitTermination(1, TimeUnit.SECONDS);
+
+        RunResult r = new RunResult();
+        r.threads = threads;
+        r.pages = controller.get_pages_stored();
+        r.completion_s = (end_ns - start_ns) / 1e9;
+        r.active_s = (last_change_ns[0] - start_ns) / 1e9;
+        LatencyHistogram latency = controller.get_fetch_latency_us();
+        r.p50_us = latency.get_percentile(0.50);
+        r.p99_us = latency.get_percentile(0.99);
+        for (MemoryPoolMXBean pool : heap_pools) {
+            r.heap_peak_bytes += pool.getPeakUsage().getUsed();
+        }
+        r.server = site.get_summary();
+        System.out.println("[Harness] threads=" + threads + " pages=" + r.pages + " " + r.server);
+        delete_tree(output);
+        return r;
+    }
+
+    static double double_property(String name, double def) {
+        String v = System.getProperty(name);
+        return v != null ? Double.parseDouble(v.trim()) : def;
+    }
+
+    static void delete_tree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package group.work.harness;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Generated web site served on loopback by the JDK HttpServer, so the whole crawler
+// can be load-tested without network access
+// Page i lives at /p/i and always links to page i+1, so every page is reachable from
+// /p/0; the other links go to random pages, some through redirect chains (/r/hops/i)
+// and some under /private/. Pages are rebuilt from (seed, i) on every request, so
+// the graph is the same for every run and costs no memory
+// With sites > 1 there is one server per site, site k on 127.0.0.(k+1) (Linux routes
+// all of 127/8 to loopback), and cross_site_rate of the links point to other sites,
+// which gives several hosts to spread over cluster nodes
+public class SyntheticWeb {
+    public enum RobotsVariant {
+        // robots.txt answers 404
+        NONE,
+        ALLOW_ALL,
+        // Disallow: /private/
+        DISALLOW_PRIVATE,
+        // Allow everything but ask for crawl_delay_s between requests
+        CRAWL_DELAY
+    }
+
+    public static class Options {
+        public int pages = 1000;
+        public int fan_out = 10;
+        public int min_page_bytes = 8 * 1024;
+        public int max_page_bytes = 64 * 1024;
+        // Server-side delay before each answer, log-normal with this median; 0 disables it
+        public double latency_median_ms = 5;
+        public double latency_sigma = 0.8;
+        // Share of page requests answered with 429 (Retry-After: 1) or 503
+        public double rate_429 = 0;
+        public double rate_5xx = 0;
+        // Share of links that go through a chain of redirect_hops redirects
+        public double redirect_rate = 0.05;
+        public int redirect_hops = 2;
+        // Share of links that point under /private/
+        public double private_rate = 0.05;
+        public RobotsVariant robots = RobotsVariant.ALLOW_ALL;
+        public long crawl_delay_s = 1;
+        public int server_threads = 64;
+        public long seed = 42;
+        public int sites = 1;
+        // Share of links that point to a page of another site
+        public double cross_site_rate = 0.2;
+        // gzip or deflate for pages when the request accepts it, null sends them as is
+        public String content_encoding = "gzip";
+        // > 0 lists every /p/ page in gzipped sitemaps of this many URLs, behind a
+        // sitemap index named by robots.txt (not with robots NONE)
+        public int sitemap_urls_per_file = 0;
+    }
+
+    private static final String[] WORDS = ("crawler frontier politeness robots sitemap fetch parse link anchor "
+            + "page host domain queue worker thread latency throughput budget backoff retry redirect cache "
+            + "header body charset encoding token stream buffer segment record index shard replica vector "
+            + "graph node edge rank score query answer table column market river mountain garden library "
+            + "window harbor station village forest island bridge castle desert valley ocean planet signal")
+            .split(" ");
+
+    private final Options options;
+    private final List<HttpServer> servers = new ArrayList<>();
+    private ExecutorService pool;
+    // Times each /p/ page of each site was served, to count repeated fetches
+    private AtomicIntegerArray[] hits;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder pages_served = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder server_errors = new LongAdder();
+    private final LongAdder not_found = new LongAdder();
+    private final LongAdder bytes_served = new LongAdder();
+    private final LongAdder repeats = new LongAdder();
+    private final LongAdder sitemaps_served = new LongAdder();
+
+    public SyntheticWeb(Options options) {
+        this.options = options;
+    }
+
+    public void start() throws IOException {
+        AtomicInteger idx = new AtomicInteger(1);
+        this.pool = Executors.newFixedThreadPool(this.options.server_threads, r -> {
+            Thread t = new Thread(r, "synthetic-web-" + idx.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        int sites = Math.max(1, this.options.sites);
+        this.hits = new AtomicIntegerArray[sites];
+        for (int k = 0; k < sites; k++) {
+            this.hits[k] = new AtomicIntegerArray(this.options.pages);
+            InetAddress address = k == 0 ? InetAddress.getLoopbackAddress()
+                    : InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) (k + 1) });
+            HttpServer server = HttpServer.create(new InetSocketAddress(address, 0), 1024);
+            final int site = k;
+            server.createContext("/", ex -> this.handle(ex, site));
+            server.setExecutor(this.pool);
+            this.servers.add(server);
+        }
+        // All ports are known before the first page links across sites
+        for (HttpServer server : this.servers) {
+            server.start();
+        }
+    }
+
+    public void stop() {
+        for (HttpServer server : this.servers) {
+            server.stop(0);
+        }
+        if (this.pool != null) {
+            this.pool.shutdownNow();
+        }
+    }
+
+    public String get_base_url() {
+        return this.get_base_url(0);
+    }
+
+    public String get_base_url(int site) {
+        return "http://127.0.0." + (site + 1) + ":" + this.servers.get(site).getAddress().getPort();
+    }
+
+    public String get_seed_url() {
+        return this.get_base_url() + "/p/0";
+    }
+
+    public List<String> get_seed_urls() {
+        List<String> seeds = new ArrayList<>();
+        for (int k = 0; k < this.servers.size(); k++) {
+            seeds.add(this.get_base_url(k) + "/p/0");
+        }
+        return seeds;
+    }
+
+    // Page fetches beyond the first of each page, summed over all sites
+    public long get_repeats() {
+        return this.repeats.sum();
+    }
+
+    public void reset_counters() {
+        this.requests.reset();
+        this.pages_served.reset();
+        this.redirects.reset();
+        this.throttled.reset();
+        this.server_errors.reset();
+        this.not_found.reset();
+        this.bytes_served.reset();
+        this.repeats.reset();
+        for (AtomicIntegerArray site : this.hits) {
+            for (int i = 0; i < site.length(); i++) {
+                site.set(i, 0);
+            }
+        }
+    }
+
+    public String get_summary() {
+        return "requests=" + this.requests.sum() + " pages=" + this.pages_served.sum()
+                + " redirects=" + this.redirects.sum() + " 429=" + this.throttled.sum()
+                + " 5xx=" + this.server_errors.sum() + " 404=" + this.not_found.sum()
+                + " repeats=" + this.repeats.sum() + " sitemaps=" + this.sitemaps_served.sum()
+                + " served=" + (this.bytes_served.sum() >> 20) + "MiB";
+    }
+
+    private void handle(HttpExchange ex, int site) throws IOException {
+        try {
+            this.requests.increment();
+            String path = ex.getRequestURI().getRawPath();
+            if (path.equals("/robots.txt")) {
+                this.serve_robots(ex, site);
+                return;
+            }
+            if (this.options.sitemap_urls_per_file > 0
+                    && (path.equals("/sitemap_index.xml") || path.startsWith("/sitemaps/"))) {
+                this.serve_sitemap(ex, site, path);
+                return;
+            }
+            this.simulate_latency();
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            double r = rnd.nextDouble();
+            if (r < this.options.rate_429) {
+                this.throttled.increment();
+                ex.getResponseHeaders().set("Retry-After", "1");
+                this.send(ex, 429, "text/plain", "slow down");
+                return;
+            }
+            if (r < this.options.rate_429 + this.options.rate_5xx) {
+                this.server_errors.increment();
+                this.send(ex, 503, "text/plain", "unavailable");
+                return;
+            }
+            String[] parts = path.split("/");
+            int page = parts.length > 0 ? parse_int(parts[parts.length - 1]) : -1;
+            if (page < 0 || page >= this.options.pages) {
+                this.not_found.increment();
+                this.send(ex, 404, "text/plain", "not found");
+                return;
+            }
+            if (parts.length == 4 && parts[1].equals("r")) {
+                int hops = parse_int(parts[2]);
+                this.redirects.increment();
+                ex.getResponseHeaders().set("Location", hops > 1 ? "/r/" + (hops - 1) + "/" + page : "/p/" + page);
+                ex.sendResponseHeaders(302, -1);
+                return;
+            }
+            if (parts.length == 3 && (parts[1].equals("p") || parts[1].equals("private"))) {
+                this.pages_served.increment();
+                if (parts[1].equals("p") && this.hits[site].getAndIncrement(page) > 0) {
+                    this.repeats.increment();
+                }
+                this.send(ex, 200, "text/html; charset=utf-8", this.render(site, page));
+                return;
+            }
+            this.not_found.increment();
+            this.send(ex, 404, "text/plain", "not found");
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void serve_robots(HttpExchange ex, int site) throws IOException {
+        String sitemap = this.options.sitemap_urls_per_file > 0
+                ? "Sitemap: " + this.get_base_url(site) + "/sitemap_index.xml\n"
+                : "";
+        switch (this.options.robots) {
+            case NONE -> this.send(ex, 404, "text/plain", "not found");
+            case ALLOW_ALL -> this.send(ex, 200, "text/plain", "User-agent: *\nAllow: /\n" + sitemap);
+            case DISALLOW_PRIVATE -> this.send(ex, 200, "text/plain",
+                    "User-agent: *\nDisallow: /private/\n" + sitemap);
+            case CRAWL_DELAY -> this.send(ex, 200, "text/plain",
+                    "User-agent: *\nAllow: /\nCrawl-delay: " + this.options.crawl_delay_s + "\n" + sitemap);
+        }
+    }
+
+    // /sitemap_index.xml lists /sitemaps/k.xml.gz, which list pages [k * n, (k + 1) * n)
+    // Sent gzipped as application/gzip without Content-Encoding, like most .xml.gz files
+    private void serve_sitemap(HttpExchange ex, int site, String path) throws IOException {
+        int per_file = this.options.sitemap_urls_per_file;
+        int files = (this.options.pages + per_file - 1) / per_file;
+        String base = this.get_base_url(site);
+        StringBuilder sb = new StringBuilder(per_file * 96);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        if (path.equals("/sitemap_index.xml")) {
+            sb.append("<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+            for (int k = 0; k < files; k++) {
+                sb.append("<sitemap><loc>").append(base).append("/sitemaps/").append(k)
+                        .append(".xml.gz</loc><lastmod>2025-01-01</lastmod></sitemap>\n");
+            }
+            sb.append("</sitemapindex>\n");
+            this.sitemaps_served.increment();
+            this.send(ex, 200, "application/xml", sb.toString());
+            return;
+        }
+        int k = path.endsWith(".xml.gz") ? parse_int(path.substring(10, path.length() - 7)) : -1;
+        if (k < 0 || k >= files) {
+            this.not_found.increment();
+            this.send(ex, 404, "text/plain", "not found");
+            return;
+        }
+        sb.append("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        for (int page = k * per_file; page < Math.min(this.options.pages, (k + 1) * per_file); page++) {
+            sb.append("<url><loc>").append(base).append("/p/").append(page)
+                    .append("</loc><lastmod>2025-01-01T00:00:00+00:00</lastmod></url>\n");
+        }
+        sb.append("</urlset>\n");
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(sb.length() / 8);
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] bytes = compressed.toByteArray();
+        this.sitemaps_served.increment();
+        ex.getResponseHeaders().set("Content-Type", "application/gzip");
+        ex.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+        this.bytes_served.add(bytes.length);
+    }
+
+    private void simulate_latency() throws InterruptedException {
+        if (this.options.latency_median_ms <= 0) {
+            return;
+        }
+        double g = ThreadLocalRandom.current().nextGaussian();
+        long ms = (long) Math.min(10_000, this.options.latency_median_ms * Math.exp(this.options.latency_sigma * g));
+        if (ms > 0) {
+            Thread.sleep(ms);
+        }
+    }
+
+    // Same (seed, page) gives the same text and links on every request
+    private String render(int site, int page) {
+        Random rnd = new Random((this.options.seed + site * 7919L) * 1_000_003L + page);
+        int size = this.options.min_page_bytes
+                + rnd.nextInt(Math.max(1, this.options.max_page_bytes - this.options.min_page_bytes + 1));
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Page ").append(page)
+                .append("</title></head>\n<body><h1>Page ").append(page).append("</h1>\n<ul>\n");
+        this.append_link(sb, (page + 1) % this.options.pages, "next", false);
+        for (int i = 0; i < this.options.fan_out; i++) {
+            int target = rnd.nextInt(this.options.pages);
+            double kind = rnd.nextDouble();
+            if (this.servers.size() > 1 && rnd.nextDouble() < this.options.cross_site_rate) {
+                int other = rnd.nextInt(this.servers.size());
+                sb.append("<li><a href=\"").append(this.get_base_url(other)).append("/p/").append(target)
+                        .append("\">site ").append(other).append(" page ").append(target).append("</a></li>\n");
+            } else if (kind < this.options.private_rate) {
+                sb.append("<li><a href=\"/private/").append(target).append("\">private ").append(target)
+                        .append("</a></li>\n");
+            } else {
+                this.append_link(sb, target, "page " + target, kind < this.options.private_rate
+                        + this.options.redirect_rate);
+            }
+        }
+        sb.append("</ul>\n");
+        while (sb.length() < size) {
+            sb.append("<p>");
+            for (int i = 0; i < 60; i++) {
+                sb.append(WORDS[rnd.nextInt(WORDS.length)]).append(' ');
+            }
+            sb.append("</p>\n");
+        }
+        return sb.append("</body></html>\n").toString();
+    }
+
+    private void append_link(StringBuilder sb, int target, String text, boolean redirect) {
+        sb.append("<li><a href=\"");
+        if (redirect && this.options.redirect_hops > 0) {
+            sb.append("/r/").append(this.options.redirect_hops).append('/');
+        } else {
+            sb.append("/p/");
+        }
+        sb.append(target).append("\">").append(text).append("</a></li>\n");
+    }
+
+    private void send(HttpExchange ex, int status, String content_type, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String encoding = this.options.content_encoding;
+        if (status == 200 && encoding != null && content_type.startsWith("text/html")
+                && accepts_encoding(ex.getRequestHeaders().getFirst("Accept-Encoding"), encoding)) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+            try (OutputStream out = encoding.equals("gzip") ? new GZIPOutputStream(compressed)
+                    : new DeflaterOutputStream(compressed)) {
+                out.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            ex.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        ex.getResponseHeaders().set("Content-Type", content_type);
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+        this.bytes_served.add(bytes.length);
+    }
+
+    private static boolean accepts_encoding(String accept_encoding, String encoding) {
+        if (accept_encoding == null) {
+            return false;
+        }
+        for (String part : accept_encoding.split(",")) {
+            if (part.trim().startsWith(encoding)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int parse_int(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException err) {
+            return -1;
+        }
+    }
+}
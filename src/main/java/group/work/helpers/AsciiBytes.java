@@ -0,0 +1,79 @@
+package group.work.helpers;
+
+// Scanning helpers over raw page bytes in an ASCII-compatible charset, so the markup
+// can be found without decoding anything. Trail bytes of multi-byte characters go down
+// to 0x40 in Shift_JIS, Big5 and GBK, but the delimiters searched for here (<>"'= and
+// whitespace) are all below 0x40. Letters are only compared right after such a
+// delimiter; never start a match on a letter or '\'. Search ranges are [from, to)
+final class AsciiBytes {
+    private AsciiBytes() {
+    }
+
+    static int index_of(byte[] b, int c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int index_of(byte[] b, String needle, int from, int to) {
+        int last = to - needle.length();
+        char first = needle.charAt(0);
+        for (int i = index_of(b, first, from, to); i >= 0 && i <= last; i = index_of(b, first, i + 1, to)) {
+            if (starts_with(b, i, to, needle)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean starts_with(byte[] b, int at, int to, String prefix) {
+        if (at + prefix.length() > to) {
+            return false;
+        }
+        for (int k = 0; k < prefix.length(); k++) {
+            if (b[at + k] != prefix.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // prefix is lowercase ASCII
+    static boolean starts_with_ignore_case(byte[] b, int at, int to, String prefix) {
+        if (at + prefix.length() > to) {
+            return false;
+        }
+        for (int k = 0; k < prefix.length(); k++) {
+            if (to_lower(b[at + k]) != prefix.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Start of the next tag matching the lowercase tag_prefix (e.g. "</script"), -1 when none
+    static int index_of_tag(byte[] b, String tag_prefix, int from, int to) {
+        for (int i = index_of(b, '<', from, to); i >= 0; i = index_of(b, '<', i + 1, to)) {
+            if (starts_with_ignore_case(b, i, to, tag_prefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int to_lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    static boolean is_letter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    // HTML whitespace
+    static boolean is_space(int c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+    }
+}
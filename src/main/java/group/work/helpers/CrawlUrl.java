@@ -0,0 +1,66 @@
+package group.work.helpers;
+
+// Canonical URL parsed once by UrlNormalizer and passed through the whole pipeline
+// (frontier, visited set, scope, robots, politeness, storage) so that no stage has
+// to parse the string again
+// Two CrawlUrl are equal when their canonical strings are equal
+public final class CrawlUrl {
+    private static final UrlNormalizer.Options AS_CANONICAL = new UrlNormalizer.Options();
+
+    static {
+        AS_CANONICAL.strip_tracking = false;
+        AS_CANONICAL.sort_query = false;
+    }
+
+    public final String url;
+    public final String scheme;
+    // Interned, so hosts can be compared and used as map keys cheaply
+    public final String host;
+    // -1 for the default port of the scheme
+    public final int port;
+    public final String path;
+    // Raw query without '?', null when there is none
+    public final String query;
+    public final long hash64;
+
+    CrawlUrl(String url, String scheme, String host, int port, String path, String query) {
+        this.url = url;
+        this.scheme = scheme;
+        this.host = host.intern();
+        this.port = port;
+        this.path = path;
+        this.query = query;
+        this.hash64 = Hashing.hash64(url);
+    }
+
+    // Parses a URL that is already canonical (frontier spill files, checkpoints, cluster
+    // messages, cached links), null when it is not crawlable. Nothing is stripped or
+    // reordered, so the URL keeps the options it was canonicalized with
+    public static CrawlUrl parse(String url) {
+        return UrlNormalizer.canonicalize(url, AS_CANONICAL);
+    }
+
+    // host[:port], what robots.txt and politeness are keyed on
+    public String authority() {
+        return this.port < 0 ? this.host : this.host + ":" + this.port;
+    }
+
+    public String path_and_query() {
+        return this.query == null ? this.path : this.path + "?" + this.query;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CrawlUrl other && this.hash64 == other.hash64 && this.url.equals(other.url);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (this.hash64 ^ (this.hash64 >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return this.url;
+    }
+}
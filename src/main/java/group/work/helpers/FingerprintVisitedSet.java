@@ -0,0 +1,210 @@
+package group.work.helpers;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Visited set that keeps a 64-bit fingerprint per URL instead of the URL itself
+// Fingerprints live in striped open-addressing tables of primitive longs (about
+// 11 bytes per URL at the maximum load factor), on or off the heap
+// Two different URLs with the same fingerprint are treated as one, the chance of
+// that is about size / 2^64 per lookup
+// An optional Bloom filter in front lets a new URL skip the probe comparisons
+// A stripe stops growing at 2^28 slots (2^27 off the heap, the most one direct
+// buffer holds); it then fills up to MAX_FULL_LOAD and add() fails with an
+// IllegalStateException, expected_urls or the stripe count has to be raised
+public class FingerprintVisitedSet implements VisitedSet {
+    private static final long EMPTY = 0L;
+    private static final double MAX_LOAD = 0.7;
+    private static final double MAX_FULL_LOAD = 0.9;
+    private static final int MAX_CAPACITY = 1 << 28;
+    private static final int MAX_OFF_HEAP_CAPACITY = 1 << 27;
+
+    private static class Stripe {
+        LongBuffer table;
+        int mask;
+        int count = 0;
+    }
+
+    private static class BloomFilter {
+        private final AtomicLongArray bits;
+        private final long num_bits;
+        private final int num_hashes;
+
+        BloomFilter(long expected, int bits_per_entry) {
+            long words = Math.max(1, (expected * bits_per_entry + 63) / 64);
+            this.bits = new AtomicLongArray((int) Math.min(words, Integer.MAX_VALUE - 8));
+            this.num_bits = this.bits.length() * 64L;
+            this.num_hashes = Math.max(1, (int) Math.round(bits_per_entry * Math.log(2)));
+        }
+
+        boolean might_contain(long fp) {
+            long h1 = fp;
+            long h2 = Long.rotateLeft(fp, 32) | 1L;
+            for (int i = 0; i < this.num_hashes; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, this.num_bits);
+                if ((this.bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(long fp) {
+            long h1 = fp;
+            long h2 = Long.rotateLeft(fp, 32) | 1L;
+            for (int i = 0; i < this.num_hashes; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, this.num_bits);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                do {
+                    old = this.bits.get(word);
+                } while ((old & mask) == 0 && !this.bits.compareAndSet(word, old, old | mask));
+            }
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int stripe_shift;
+    private final boolean off_heap;
+    private final BloomFilter bloom;
+    private final AtomicLong size = new AtomicLong(0);
+    private final int max_capacity;
+    private final AtomicLong bloom_negatives = new AtomicLong(0);
+    private final AtomicLong bloom_false_positives = new AtomicLong(0);
+
+    public FingerprintVisitedSet(long expected_urls) {
+        this(expected_urls, 64, false, false);
+    }
+
+    // num_stripes is rounded up to a power of two
+    public FingerprintVisitedSet(long expected_urls, int num_stripes, boolean off_heap, boolean use_bloom) {
+        int n = Integer.highestOneBit(Math.max(1, num_stripes - 1) << 1);
+        this.stripes = new Stripe[n];
+        this.stripe_shift = 64 - Integer.numberOfTrailingZeros(n);
+        this.off_heap = off_heap;
+        this.max_capacity = off_heap ? MAX_OFF_HEAP_CAPACITY : MAX_CAPACITY;
+        int per_stripe = (int) Math.min(this.max_capacity, Math.max(16, expected_urls / n / MAX_LOAD + 1));
+        int capacity = Integer.highestOneBit(per_stripe - 1) << 1;
+        for (int i = 0; i < n; i++) {
+            Stripe s = new Stripe();
+            s.table = this.allocate(capacity);
+            s.mask = capacity - 1;
+            this.stripes[i] = s;
+        }
+        this.bloom = use_bloom ? new BloomFilter(Math.max(expected_urls, 1024), 10) : null;
+    }
+
+    @Override
+    public boolean add(CrawlUrl url) {
+        long fp = fingerprint(url.hash64);
+        Stripe s = this.stripes[stripe_index(fp)];
+        synchronized (s) {
+            // The Bloom bits of this fingerprint are only set under this stripe lock,
+            // so a negative answer here is reliable
+            boolean maybe_seen = this.bloom == null || this.bloom.might_contain(fp);
+            if (!maybe_seen) {
+                this.bloom_negatives.incrementAndGet();
+            }
+            int idx = slot(fp) & s.mask;
+            while (true) {
+                long cur = s.table.get(idx);
+                if (cur == EMPTY) {
+                    break;
+                }
+                if (maybe_seen && cur == fp) {
+                    return false;
+                }
+                idx = (idx + 1) & s.mask;
+            }
+            // A full table would leave the probe loop above without an empty slot
+            if (s.count >= (s.mask + 1) * MAX_FULL_LOAD) {
+                throw new IllegalStateException("visited set stripe is full at " + s.count
+                        + " fingerprints, raise expected_urls or the number of stripes");
+            }
+            if (this.bloom != null) {
+                if (maybe_seen) {
+                    this.bloom_false_positives.incrementAndGet();
+                }
+                this.bloom.put(fp);
+            }
+            s.table.put(idx, fp);
+            s.count++;
+            if (s.count > (s.mask + 1) * MAX_LOAD && s.mask + 1 < this.max_capacity) {
+                this.grow(s);
+            }
+        }
+        this.size.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public long size() {
+        return this.size.get();
+    }
+
+    // Share of new URLs the Bloom filter answered "maybe" for, fp / (fp + tn)
+    public double get_bloom_false_positive_rate() {
+        long false_positives = this.bloom_false_positives.get();
+        long new_urls = false_positives + this.bloom_negatives.get();
+        return new_urls == 0 ? 0.0 : (double) false_positives / new_urls;
+    }
+
+    // Chance that the next new URL is wrongly reported as seen because its
+    // fingerprint collides with one already stored
+    public double get_fingerprint_false_positive_rate() {
+        return this.size.get() / Math.pow(2, 64);
+    }
+
+    public long get_table_bytes() {
+        long bytes = 0;
+        for (Stripe s : this.stripes) {
+            synchronized (s) {
+                bytes += (s.mask + 1L) * Long.BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    private int stripe_index(long fp) {
+        return this.stripes.length == 1 ? 0 : (int) (fp >>> this.stripe_shift);
+    }
+
+    private void grow(Stripe s) {
+        int capacity = (s.mask + 1) << 1;
+        LongBuffer table = this.allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i <= s.mask; i++) {
+            long fp = s.table.get(i);
+            if (fp == EMPTY) {
+                continue;
+            }
+            int idx = slot(fp) & mask;
+            while (table.get(idx) != EMPTY) {
+                idx = (idx + 1) & mask;
+            }
+            table.put(idx, fp);
+        }
+        s.table = table;
+        s.mask = mask;
+    }
+
+    private LongBuffer allocate(int capacity) {
+        if (this.off_heap) {
+            return ByteBuffer.allocateDirect(Math.toIntExact((long) capacity * Long.BYTES)).asLongBuffer();
+        }
+        return LongBuffer.wrap(new long[capacity]);
+    }
+
+    // The high bits choose the stripe, the low bits the slot
+    private static int slot(long fp) {
+        return (int) fp;
+    }
+
+    // The hash is computed once per URL by CrawlUrl
+    static long fingerprint(long hash64) {
+        return hash64 == EMPTY ? 1L : hash64;
+    }
+}
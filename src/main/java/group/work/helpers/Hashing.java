@@ -0,0 +1,33 @@
+package group.work.helpers;
+
+public class Hashing {
+    // FNV-1a over the UTF-16 code units followed by the MurmurHash3 finalizer, so
+    // that every output bit depends on every input char
+    public static long hash64(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix64(h);
+    }
+
+    // The same over raw bytes, e.g. the body of a page as received
+    public static long hash64(byte[] b, int off, int len) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = off; i < off + len; i++) {
+            h ^= b[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix64(h);
+    }
+
+    public static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,783 @@
+package group.work.helpers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import group.work.metrics.MetricsRegistry;
+
+// Frontier partitioned by host: one FIFO per host plus a set of hosts ordered by
+// the time they may be fetched again
+// A worker only receives a URL whose host slot is already open, so politeness is
+// enforced by the scheduling order instead of by sleeping worker threads
+// A slot opens delay_ms after the previous dispatch of the host, and only while fewer
+// than max_in_flight of its URLs are being worked on; consumers hand every polled URL
+// back with release() once they are done with it
+// Only max_in_memory URLs are kept on the heap, and at most max_host_in_memory of them
+// for one host; the overflow goes to one SpillStore shared by all hosts, each host
+// keeping the positions of its records, and is moved back round-robin by host as
+// memory frees up, so one flooding host cannot push the URLs of every other host out
+// to disk
+// Hosts that drained are forgotten once their delay is over, unless they have limits
+// of their own
+public class HostFrontier extends AbstractQueue<CrawlUrl> implements BlockingQueue<CrawlUrl> {
+    // FIFO of longs: enqueue times (us) of the URLs of a host, or positions of its
+    // spilled records
+    private static class LongRing {
+        long[] values = new long[4];
+        int head = 0;
+        int size = 0;
+
+        void add(long t) {
+            if (this.size == this.values.length) {
+                long[] bigger = new long[this.values.length * 2];
+                for (int i = 0; i < this.size; i++) {
+                    bigger[i] = this.values[(this.head + i) & (this.values.length - 1)];
+                }
+                this.values = bigger;
+                this.head = 0;
+            }
+            this.values[(this.head + this.size) & (this.values.length - 1)] = t;
+            this.size++;
+        }
+
+        long poll() {
+            long t = this.values[this.head];
+            this.head = (this.head + 1) & (this.values.length - 1);
+            this.size--;
+            return t;
+        }
+
+        void clear() {
+            this.head = 0;
+            this.size = 0;
+        }
+
+        long[] to_array() {
+            long[] copy = new long[this.size];
+            for (int i = 0; i < this.size; i++) {
+                copy[i] = this.values[(this.head + i) & (this.values.length - 1)];
+            }
+            return copy;
+        }
+    }
+
+    private static class HostQueue {
+        final String host;
+        final long seq;
+        final ArrayDeque<CrawlUrl> urls = new ArrayDeque<>();
+        final LongRing enqueued_us = new LongRing();
+        long delay_ms;
+        int max_in_flight = Integer.MAX_VALUE;
+        int in_flight = 0;
+        long next_allowed_ms = 0;
+        long last_dispatch_ms = -1;
+        long paused_until_ms = 0;
+        // Positions in the spill store of the URLs of the host that did not fit in
+        // memory, in order after urls; null when there are none
+        LongRing spilled;
+        // Whether the host is in the refill queue
+        boolean in_refill = false;
+        // Whether the host is in the ready set, which only holds hosts that have
+        // pending URLs and a free in-flight slot
+        boolean in_ready = false;
+        // Whether the host is in the drained queue, since drained_ms
+        boolean in_drained = false;
+        long drained_ms;
+
+        HostQueue(String host, long seq, long delay_ms) {
+            this.host = host;
+            this.seq = seq;
+            this.delay_ms = delay_ms;
+        }
+    }
+
+    // Pending URLs at one point in time, taken under the lock and read without it
+    public static class Snapshot {
+        // In-memory URLs, and dispatched ones nobody called finish() for yet
+        public final List<String> urls = new ArrayList<>();
+        // Spilled URLs, null when nothing is spilled
+        public SpillStore.Snapshot spilled;
+        public final Map<String, Long> host_delays = new HashMap<>();
+    }
+
+    // Spill segments are shared by all hosts, so a few big ones are enough
+    private static final int SPILL_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final HashMap<String, HostQueue> hosts = new HashMap<>();
+    // The key (next_allowed_ms) must not be modified while a host is inside the set
+    private final TreeSet<HostQueue> ready = new TreeSet<>(
+            Comparator.<HostQueue>comparingLong(h -> h.next_allowed_ms).thenComparingLong(h -> h.seq));
+    private final long default_delay_ms;
+    private int default_max_in_flight = Integer.MAX_VALUE;
+    private final int max_in_memory;
+    private final int max_host_in_memory;
+    private final Path spill_dir;
+    private Path spill_root;
+    private SpillStore spill_store;
+    // Hosts with spilled URLs and room in memory, served round-robin by refill()
+    private final ArrayDeque<HostQueue> refill_queue = new ArrayDeque<>();
+    // Hosts without URLs and in-flight work, oldest first, see prune()
+    private final ArrayDeque<HostQueue> drained = new ArrayDeque<>();
+    private volatile Consumer<CrawlUrl> new_host_listener;
+    private boolean spill_failed = false;
+    private long host_seq = 0;
+    private int in_memory = 0;
+    private int size = 0;
+    // Dispatched URLs whose processing is not over, null unless track_taken() was called
+    private HashSet<String> taken;
+    // Spilled URLs count their wait from the moment they are read back from disk
+    private final LatencyHistogram queue_wait_us = new LatencyHistogram();
+    // Time poll() callers slept while URLs were pending but no host slot was open,
+    // and while the frontier was empty; summed over all waiting workers
+    private final LongAdder politeness_wait_ns = new LongAdder();
+    private final LongAdder idle_wait_ns = new LongAdder();
+
+    public HostFrontier(long default_delay_ms) {
+        this(default_delay_ms, 100_000, null);
+    }
+
+    // spill_dir may be null, a temporary directory is then created on first spill
+    public HostFrontier(long default_delay_ms, int max_in_memory, Path spill_dir) {
+        this(default_delay_ms, max_in_memory, Math.max(1, max_in_memory / 100), spill_dir);
+    }
+
+    public HostFrontier(long default_delay_ms, int max_in_memory, int max_host_in_memory, Path spill_dir) {
+        this.default_delay_ms = default_delay_ms;
+        this.max_in_memory = max_in_memory;
+        this.max_host_in_memory = Math.max(1, max_host_in_memory);
+        this.spill_dir = spill_dir;
+    }
+
+    @Override
+    public boolean offer(CrawlUrl url) {
+        if (url == null) {
+            throw new NullPointerException();
+        }
+        boolean new_host = false;
+        this.lock.lock();
+        try {
+            HostQueue hq = this.hosts.get(url.host);
+            if (hq == null) {
+                new_host = true;
+                hq = this.host_queue(url.host);
+            }
+            // Once a host has spilled, its new URLs queue behind the spilled ones
+            boolean spilling = this.in_memory >= this.max_in_memory || hq.urls.size() >= this.max_host_in_memory
+                    || hq.spilled != null;
+            if (!spilling || !this.spill(hq, url)) {
+                this.add_in_memory(hq, url);
+            }
+            this.size++;
+            this.changed.signal();
+        } finally {
+            this.lock.unlock();
+        }
+        // Outside the lock, the listener may block or take its own locks
+        Consumer<CrawlUrl> listener = this.new_host_listener;
+        if (new_host && listener != null) {
+            listener.accept(url);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean offer(CrawlUrl url, long timeout, TimeUnit unit) {
+        return this.offer(url);
+    }
+
+    @Override
+    public void put(CrawlUrl url) {
+        this.offer(url);
+    }
+
+    @Override
+    public CrawlUrl poll() {
+        this.lock.lock();
+        try {
+            return this.dispatch(now_ms());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Waits until some host becomes fetchable, never longer than the timeout
+    @Override
+    public CrawlUrl poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = now_ms();
+                CrawlUrl url = this.dispatch(now);
+                if (url != null) {
+                    return url;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                long wait = remaining;
+                boolean pending = this.in_memory > 0;
+                if (!this.ready.isEmpty()) {
+                    long until_ready = TimeUnit.MILLISECONDS.toNanos(this.ready.first().next_allowed_ms - now);
+                    wait = Math.max(1, Math.min(wait, until_ready));
+                }
+                long slept = wait - this.changed.awaitNanos(wait);
+                (pending ? this.politeness_wait_ns : this.idle_wait_ns).add(Math.max(0, slept));
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public CrawlUrl take() throws InterruptedException {
+        CrawlUrl url;
+        do {
+            url = this.poll(1, TimeUnit.SECONDS);
+        } while (url == null);
+        return url;
+    }
+
+    @Override
+    public CrawlUrl peek() {
+        this.lock.lock();
+        try {
+            if (this.ready.isEmpty()) {
+                return null;
+            }
+            HostQueue first = this.ready.first();
+            return first.next_allowed_ms <= now_ms() ? first.urls.peekFirst() : null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Called once the robots Crawl-delay for the host is known
+    // The next slot of the host is recomputed from its last dispatch
+    public void set_host_delay(CrawlUrl url, long delay_ms) {
+        this.lock.lock();
+        try {
+            HostQueue hq = this.host_queue(url.host);
+            this.set_host_limits(url.host, delay_ms, hq.max_in_flight);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Delay between dispatches and number of URLs of the host that may be out at once
+    public void set_host_limits(String host, long delay_ms, int max_in_flight) {
+        this.lock.lock();
+        try {
+            HostQueue hq = this.host_queue(host);
+            if (hq.delay_ms == delay_ms && hq.max_in_flight == max_in_flight) {
+                return;
+            }
+            this.unready(hq);
+            hq.delay_ms = delay_ms;
+            hq.max_in_flight = Math.max(1, max_in_flight);
+            this.schedule(hq);
+            this.make_ready(hq);
+            this.changed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // No dispatch for the host before pause_ms from now, e.g. for a Retry-After
+    public void pause_host(String host, long pause_ms) {
+        this.lock.lock();
+        try {
+            HostQueue hq = this.host_queue(host);
+            this.unready(hq);
+            hq.paused_until_ms = Math.max(hq.paused_until_ms, now_ms() + pause_ms);
+            this.schedule(hq);
+            this.make_ready(hq);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Gives back the slot taken by a URL returned from poll()
+    public void release(CrawlUrl url) {
+        this.lock.lock();
+        try {
+            HostQueue hq = this.hosts.get(url.host);
+            if (hq == null || hq.in_flight == 0) {
+                return;
+            }
+            hq.in_flight--;
+            if (!hq.in_ready && this.make_ready(hq)) {
+                this.changed.signal();
+            }
+            this.want_prune(hq);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int get_host_in_flight(String host) {
+        this.lock.lock();
+        try {
+            HostQueue hq = this.hosts.get(host);
+            return hq != null ? hq.in_flight : 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Used when restoring a checkpoint, before any URL of the host was dispatched
+    public void restore_host_delay(String host, long delay_ms) {
+        this.lock.lock();
+        try {
+            HostQueue hq = this.host_queue(host);
+            this.unready(hq);
+            hq.delay_ms = delay_ms;
+            this.make_ready(hq);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Current delay of the host, the default one for a host not seen yet
+    public long get_host_delay(String host) {
+        this.lock.lock();
+        try {
+            HostQueue hq = this.hosts.get(host);
+            return hq != null ? hq.delay_ms : this.default_delay_ms;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public Map<String, Long> get_host_delays() {
+        this.lock.lock();
+        try {
+            Map<String, Long> delays = new HashMap<>();
+            for (HostQueue hq : this.hosts.values()) {
+                delays.put(hq.host, hq.delay_ms);
+            }
+            return delays;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // From now on dispatched URLs stay in snapshot() until finish() is called for them,
+    // so a checkpoint also covers the URLs workers are busy with
+    public void track_taken() {
+        this.lock.lock();
+        try {
+            if (this.taken == null) {
+                this.taken = new HashSet<>();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // The URL, dispatched earlier, needs no further work
+    public void finish(String url) {
+        this.lock.lock();
+        try {
+            if (this.taken != null) {
+                this.taken.remove(url);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Only copies references under the lock, spilled URLs are not read back; the
+    // caller writes the snapshot out while the workers go on
+    public Snapshot snapshot() {
+        this.lock.lock();
+        try {
+            Snapshot snap = new Snapshot();
+            List<long[]> spilled = new ArrayList<>();
+            for (HostQueue hq : this.hosts.values()) {
+                for (CrawlUrl url : hq.urls) {
+                    snap.urls.add(url.url);
+                }
+                if (hq.spilled != null) {
+                    spilled.add(hq.spilled.to_array());
+                }
+                snap.host_delays.put(hq.host, hq.delay_ms);
+            }
+            if (!spilled.isEmpty()) {
+                snap.spilled = this.spill_store.snapshot(spilled);
+            }
+            if (this.taken != null) {
+                snap.urls.addAll(this.taken);
+            }
+            return snap;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Visits every pending URL, in memory and spilled, while holding the lock
+    // Spilled URLs are only stored as strings, so they are visited in that form
+    public void for_each(Consumer<String> action) {
+        this.lock.lock();
+        try {
+            for (HostQueue hq : this.hosts.values()) {
+                for (CrawlUrl url : hq.urls) {
+                    action.accept(url.url);
+                }
+                if (hq.spilled != null) {
+                    for (long pos : hq.spilled.to_array()) {
+                        action.accept(this.spill_store.read(pos));
+                    }
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Takes the queued URLs, in memory and spilled, of every host accepted by filter
+    // out of the frontier, e.g. for hosts now owned by another cluster node
+    public List<CrawlUrl> remove_hosts(Predicate<String> filter) {
+        this.lock.lock();
+        try {
+            List<CrawlUrl> removed = new ArrayList<>();
+            for (HostQueue hq : this.hosts.values()) {
+                if ((hq.urls.isEmpty() && hq.spilled == null) || !filter.test(hq.host)) {
+                    continue;
+                }
+                this.unready(hq);
+                int n = hq.urls.size();
+                removed.addAll(hq.urls);
+                hq.urls.clear();
+                hq.enqueued_us.clear();
+                this.in_memory -= n;
+                this.size -= n;
+                while (hq.spilled != null) {
+                    CrawlUrl url = this.unspill(hq);
+                    if (url != null) {
+                        removed.add(url);
+                    }
+                    this.size--;
+                }
+                this.want_prune(hq);
+            }
+            return removed;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int get_host_count() {
+        this.lock.lock();
+        try {
+            return this.hosts.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super CrawlUrl> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super CrawlUrl> c, int max_elements) {
+        int n = 0;
+        CrawlUrl url;
+        while (n < max_elements && (url = this.poll()) != null) {
+            c.add(url);
+            n++;
+        }
+        return n;
+    }
+
+    // Weakly consistent snapshot, it does not reflect later changes
+    @Override
+    public Iterator<CrawlUrl> iterator() {
+        this.lock.lock();
+        try {
+            List<CrawlUrl> copy = new ArrayList<>(this.size);
+            for (HostQueue hq : this.hosts.values()) {
+                copy.addAll(hq.urls);
+                if (hq.spilled != null) {
+                    for (long pos : hq.spilled.to_array()) {
+                        CrawlUrl parsed = CrawlUrl.parse(this.spill_store.read(pos));
+                        if (parsed != null) {
+                            copy.add(parsed);
+                        }
+                    }
+                }
+            }
+            return copy.iterator();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Frees the segment files, and the spill directory if the frontier created it;
+    // the frontier must not be used afterwards
+    public void close() {
+        this.lock.lock();
+        try {
+            for (HostQueue hq : this.hosts.values()) {
+                if (hq.spilled != null) {
+                    this.size -= hq.spilled.size;
+                    hq.spilled = null;
+                }
+            }
+            this.refill_queue.clear();
+            if (this.spill_store != null) {
+                this.spill_store.close();
+            }
+            if (this.spill_root != null && this.spill_dir == null) {
+                Files.deleteIfExists(this.spill_root);
+            }
+        } catch (IOException err) {
+            System.err.println("[HostFrontier] failed to delete " + this.spill_root + ": " + err.getMessage());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void register_metrics(MetricsRegistry registry) {
+        registry.register_histogram("frontier_queue_wait_seconds", "Time from enqueue to dispatch of a URL",
+                this.queue_wait_us);
+        registry.register_counter("frontier_politeness_wait_seconds_total",
+                "Worker time spent waiting for a host delay to expire", () -> this.politeness_wait_ns.sum() / 1e9);
+        registry.register_counter("frontier_idle_wait_seconds_total", "Worker time spent waiting on an empty frontier",
+                () -> this.idle_wait_ns.sum() / 1e9);
+        registry.register_gauge("frontier_urls", "URLs waiting in the frontier", this::size);
+        registry.register_gauge("frontier_hosts", "Hosts known to the frontier", this::get_host_count);
+        registry.register_gauge("frontier_spill_segments", "Spill segment files in use", this::get_spill_segment_count);
+    }
+
+    // In-flight limit of hosts not seen yet, unlimited by default
+    public void set_default_max_in_flight(int max_in_flight) {
+        this.default_max_in_flight = Math.max(1, max_in_flight);
+    }
+
+    // Called with the first URL offered for each host, after the frontier lock is released
+    public void set_new_host_listener(Consumer<CrawlUrl> listener) {
+        this.new_host_listener = listener;
+    }
+
+    private void add_in_memory(HostQueue hq, CrawlUrl url) {
+        hq.urls.addLast(url);
+        hq.enqueued_us.add(now_us());
+        this.in_memory++;
+        this.make_ready(hq);
+    }
+
+    public int get_spill_segment_count() {
+        this.lock.lock();
+        try {
+            return this.spill_store != null ? this.spill_store.get_segment_count() : 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean spill(HostQueue hq, CrawlUrl url) {
+        if (this.spill_failed) {
+            return false;
+        }
+        try {
+            if (this.spill_store == null) {
+                this.spill_root = this.spill_dir != null ? this.spill_dir : Files.createTempDirectory("frontier-spill");
+                this.spill_store = new SpillStore(this.spill_root, SPILL_SEGMENT_BYTES);
+            }
+            long pos = this.spill_store.append(url.url);
+            if (hq.spilled == null) {
+                hq.spilled = new LongRing();
+            }
+            hq.spilled.add(pos);
+            this.want_refill(hq);
+            return true;
+        } catch (IOException err) {
+            // Keep crawling with an in-heap frontier rather than losing URLs
+            System.err.println("[HostFrontier] spilling to disk failed, keeping frontier in memory: "
+                    + err.getMessage());
+            this.spill_failed = true;
+            return false;
+        }
+    }
+
+    // Moves spilled URLs back one per host in turn, so every host with spilled URLs
+    // gets some into memory before any host gets more
+    private void refill() {
+        while (this.in_memory < this.max_in_memory && !this.refill_queue.isEmpty()) {
+            HostQueue hq = this.refill_queue.pollFirst();
+            hq.in_refill = false;
+            if (hq.spilled == null || hq.urls.size() >= this.max_host_in_memory) {
+                continue;
+            }
+            CrawlUrl url = this.unspill(hq);
+            if (url != null) {
+                this.add_in_memory(hq, url);
+            } else {
+                this.size--;
+            }
+            this.want_refill(hq);
+        }
+    }
+
+    // Takes the oldest spilled URL of the host off disk
+    private CrawlUrl unspill(HostQueue hq) {
+        long pos = hq.spilled.poll();
+        if (hq.spilled.size == 0) {
+            hq.spilled = null;
+        }
+        String url = this.spill_store.read(pos);
+        this.spill_store.release(pos);
+        // Spilled strings are already canonical, parsing them again only splits them
+        return CrawlUrl.parse(url);
+    }
+
+    // Queues the host for refill() while it has spilled URLs and room in memory; a host
+    // with nothing in memory goes first, it cannot be dispatched until refilled
+    private void want_refill(HostQueue hq) {
+        if (hq.in_refill || hq.spilled == null || hq.urls.size() >= this.max_host_in_memory) {
+            return;
+        }
+        if (hq.urls.isEmpty()) {
+            this.refill_queue.addFirst(hq);
+        } else {
+            this.refill_queue.addLast(hq);
+        }
+        hq.in_refill = true;
+    }
+
+    // Queues a host that has nothing left to do for prune()
+    private void want_prune(HostQueue hq) {
+        if (hq.in_drained || !hq.urls.isEmpty() || hq.spilled != null || hq.in_flight > 0) {
+            return;
+        }
+        hq.in_drained = true;
+        hq.drained_ms = now_ms();
+        this.drained.addLast(hq);
+    }
+
+    // Forgets hosts that stayed drained for a default delay; their politeness state is
+    // then the one of a new host. Hosts with a delay or limit of their own, e.g. a
+    // Crawl-delay or a Retry-After pause, are kept and only leave the drained queue
+    private void prune(long now) {
+        HostQueue hq;
+        while ((hq = this.drained.peekFirst()) != null && hq.drained_ms + this.default_delay_ms <= now) {
+            this.drained.pollFirst();
+            hq.in_drained = false;
+            boolean idle = hq.urls.isEmpty() && hq.spilled == null && hq.in_flight == 0;
+            boolean defaults = hq.delay_ms == this.default_delay_ms && hq.max_in_flight == this.default_max_in_flight;
+            if (idle && defaults && hq.next_allowed_ms <= now && this.hosts.get(hq.host) == hq) {
+                this.hosts.remove(hq.host);
+            }
+        }
+    }
+
+    private CrawlUrl dispatch(long now) {
+        this.prune(now);
+        this.refill();
+        if (this.ready.isEmpty()) {
+            return null;
+        }
+        HostQueue hq = this.ready.first();
+        if (hq.next_allowed_ms > now) {
+            return null;
+        }
+        this.ready.pollFirst();
+        hq.in_ready = false;
+        CrawlUrl url = hq.urls.pollFirst();
+        this.queue_wait_us.record(now_us() - hq.enqueued_us.poll());
+        this.in_memory--;
+        this.size--;
+        hq.in_flight++;
+        if (this.taken != null) {
+            this.taken.add(url.url);
+        }
+        hq.last_dispatch_ms = now;
+        this.want_refill(hq);
+        this.schedule(hq);
+        this.make_ready(hq);
+        if (!this.ready.isEmpty()) {
+            this.changed.signal();
+        }
+        return url;
+    }
+
+    // Only for a host outside the ready set
+    private void schedule(HostQueue hq) {
+        long after_last = hq.last_dispatch_ms >= 0 ? hq.last_dispatch_ms + hq.delay_ms : 0;
+        hq.next_allowed_ms = Math.max(after_last, hq.paused_until_ms);
+    }
+
+    private boolean make_ready(HostQueue hq) {
+        if (hq.in_ready || hq.urls.isEmpty() || hq.in_flight >= hq.max_in_flight) {
+            return false;
+        }
+        this.ready.add(hq);
+        hq.in_ready = true;
+        return true;
+    }
+
+    private void unready(HostQueue hq) {
+        if (hq.in_ready) {
+            this.ready.remove(hq);
+            hq.in_ready = false;
+        }
+    }
+
+    private HostQueue host_queue(String host) {
+        HostQueue hq = this.hosts.get(host);
+        if (hq == null) {
+            hq = new HostQueue(host, this.host_seq++, this.default_delay_ms);
+            hq.max_in_flight = this.default_max_in_flight;
+            this.hosts.put(host, hq);
+        }
+        return hq;
+    }
+
+    private static long now_ms() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static long now_us() {
+        return System.nanoTime() / 1000;
+    }
+}
@@ -0,0 +1,92 @@
+package group.work.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free histogram of non-negative values (latencies in any unit) with HDR-style
+// log-linear buckets: exact below 64, then 32 buckets per power of two, so every
+// recorded value is known within about 3% while the whole range of long fits in
+// 1920 counters
+// record() is one atomic add per counter and never allocates
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 32;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = (64 - 6 + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(index(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        long cur;
+        while (value > (cur = this.max.get()) && !this.max.compareAndSet(cur, value)) {
+        }
+    }
+
+    public long get_count() {
+        return this.count.get();
+    }
+
+    public long get_sum() {
+        return this.sum.get();
+    }
+
+    public long get_max() {
+        return this.max.get();
+    }
+
+    // Upper bound of the bucket holding the given quantile (0..1), 0 when empty
+    // Concurrent records may be partly seen, which is fine for monitoring
+    public long get_percentile(double quantile) {
+        long total = this.count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upper_bound(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    // Number of recorded values <= limit, rounded to bucket precision
+    public long count_at_or_below(long limit) {
+        if (limit < 0) {
+            return 0;
+        }
+        int last = index(limit);
+        long n = 0;
+        for (int i = 0; i <= last; i++) {
+            n += this.counts.get(i);
+        }
+        return n;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long upper_bound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
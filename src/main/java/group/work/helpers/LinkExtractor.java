@@ -0,0 +1,221 @@
+package group.work.helpers;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pulls <a href> links out of HTML with a single forward scan, without building a DOM
+// Comments, doctype and the content of <script>/<style> are skipped, and the first
+// <base href> is honoured for every link like a browser does
+// Malformed markup is tolerated, the scan just moves on to the next '<'
+// The scan runs over the page bytes as received (see AsciiBytes) and decodes only
+// the href values, with the page charset
+public class LinkExtractor {
+    public static List<String> extract(String html, String page_url) {
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        return extract(bytes, bytes.length, StandardCharsets.UTF_8, page_url);
+    }
+
+    public static List<String> extract(byte[] html, int len, Charset charset, String page_url) {
+        if (!PageCharsets.is_ascii_compatible(charset)) {
+            // UTF-16 pages are rare enough to transcode
+            byte[] utf8 = PageCharsets.decode(html, len, charset).getBytes(StandardCharsets.UTF_8);
+            return extract(utf8, utf8.length, StandardCharsets.UTF_8, page_url);
+        }
+        List<String> hrefs = new ArrayList<>();
+        String base_href = null;
+        int n = len;
+        int i = 0;
+        while (i < n) {
+            int lt = AsciiBytes.index_of(html, '<', i, n);
+            if (lt < 0 || lt + 1 >= n) {
+                break;
+            }
+            int c = html[lt + 1];
+            if (c == '!') {
+                if (AsciiBytes.starts_with(html, lt, n, "<!--")) {
+                    int end = AsciiBytes.index_of(html, "-->", lt + 4, n);
+                    i = end < 0 ? n : end + 3;
+                } else {
+                    i = skip_to_gt(html, lt + 2, n);
+                }
+                continue;
+            }
+            if (c == '/' || c == '?') {
+                i = skip_to_gt(html, lt + 2, n);
+                continue;
+            }
+            if (!AsciiBytes.is_letter(c)) {
+                i = lt + 1;
+                continue;
+            }
+            int name_end = lt + 1;
+            while (name_end < n && is_name_char(html[name_end])) {
+                name_end++;
+            }
+            int name_len = name_end - lt - 1;
+            boolean is_a = name_len == 1 && (c == 'a' || c == 'A');
+            boolean is_base = name_len == 4 && AsciiBytes.starts_with_ignore_case(html, lt + 1, n, "base");
+            i = name_end;
+            // Attributes: name, optionally followed by = and a quoted or bare value
+            String href = null;
+            while (i < n) {
+                int ch = html[i];
+                if (ch == '>') {
+                    i++;
+                    break;
+                }
+                if (ch == '/' || AsciiBytes.is_space(ch)) {
+                    i++;
+                    continue;
+                }
+                int attr_start = i;
+                while (i < n && !is_attr_name_end(html[i])) {
+                    i++;
+                }
+                int attr_end = i;
+                while (i < n && AsciiBytes.is_space(html[i])) {
+                    i++;
+                }
+                if (i >= n || html[i] != '=') {
+                    continue;
+                }
+                i++;
+                while (i < n && AsciiBytes.is_space(html[i])) {
+                    i++;
+                }
+                int value_start;
+                int value_end;
+                if (i < n && (html[i] == '"' || html[i] == '\'')) {
+                    value_start = i + 1;
+                    value_end = AsciiBytes.index_of(html, html[i], value_start, n);
+                    if (value_end < 0) {
+                        value_end = n;
+                    }
+                    i = Math.min(n, value_end + 1);
+                } else {
+                    value_start = i;
+                    while (i < n && !AsciiBytes.is_space(html[i]) && html[i] != '>') {
+                        i++;
+                    }
+                    value_end = i;
+                }
+                if (href == null && (is_a || is_base) && attr_end - attr_start == 4
+                        && AsciiBytes.starts_with_ignore_case(html, attr_start, n, "href")) {
+                    href = new String(html, value_start, value_end - value_start, charset);
+                }
+            }
+            if (href != null) {
+                if (is_a) {
+                    hrefs.add(href);
+                } else if (base_href == null) {
+                    base_href = href;
+                }
+            }
+            if (name_len == 6 && AsciiBytes.starts_with_ignore_case(html, lt + 1, n, "script")) {
+                i = skip_raw_text(html, i, n, "</script");
+            } else if (name_len == 5 && AsciiBytes.starts_with_ignore_case(html, lt + 1, n, "style")) {
+                i = skip_raw_text(html, i, n, "</style");
+            }
+        }
+        return resolve_all(hrefs, base_href, page_url);
+    }
+
+    private static List<String> resolve_all(List<String> hrefs, String base_href, String page_url) {
+        List<String> out = new ArrayList<>(hrefs.size());
+        URL base;
+        try {
+            base = new URL(page_url);
+            if (base_href != null) {
+                base = new URL(base, clean(base_href));
+            }
+        } catch (MalformedURLException err) {
+            return out;
+        }
+        for (String href : hrefs) {
+            try {
+                out.add(new URL(base, clean(href)).toExternalForm());
+            } catch (MalformedURLException err) {
+            }
+        }
+        return out;
+    }
+
+    // Decodes the character references that show up in URLs and drops the tabs and
+    // newlines that browsers ignore inside attribute values
+    static String clean(String raw) {
+        String s = raw.trim();
+        if (s.indexOf('&') < 0 && s.indexOf('\n') < 0 && s.indexOf('\t') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\n' || c == '\t' || c == '\r') {
+                continue;
+            }
+            if (c == '&') {
+                int semi = s.indexOf(';', i);
+                if (semi > i + 1 && semi - i <= 10) {
+                    String ref = s.substring(i + 1, semi);
+                    int decoded = decode_reference(ref);
+                    if (decoded >= 0) {
+                        sb.appendCodePoint(decoded);
+                        i = semi;
+                        continue;
+                    }
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static int decode_reference(String ref) {
+        try {
+            if (ref.startsWith("#x") || ref.startsWith("#X")) {
+                return Integer.parseInt(ref.substring(2), 16);
+            }
+            if (ref.startsWith("#")) {
+                return Integer.parseInt(ref.substring(1));
+            }
+        } catch (NumberFormatException err) {
+            return -1;
+        }
+        switch (ref) {
+            case "amp":
+                return '&';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            default:
+                return -1;
+        }
+    }
+
+    private static int skip_to_gt(byte[] html, int from, int n) {
+        int gt = AsciiBytes.index_of(html, '>', from, n);
+        return gt < 0 ? n : gt + 1;
+    }
+
+    private static int skip_raw_text(byte[] html, int from, int n, String end_tag) {
+        int lt = AsciiBytes.index_of_tag(html, end_tag, from, n);
+        return lt < 0 ? n : lt;
+    }
+
+    private static boolean is_name_char(int c) {
+        return AsciiBytes.is_letter(c) || (c >= '0' && c <= '9') || c == '-' || c == ':';
+    }
+
+    private static boolean is_attr_name_end(int c) {
+        return c == '=' || c == '>' || c == '/' || AsciiBytes.is_space(c);
+    }
+}
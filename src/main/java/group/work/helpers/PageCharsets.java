@@ -0,0 +1,261 @@
+package group.work.helpers;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Works out the charset of a page from its raw bytes, the way browsers do:
+// a byte order mark wins, then the charset of the Content-Type header, then a
+// <meta charset> or <meta http-equiv="Content-Type"> in the first 1024 bytes
+// Pages stay bytes until some code needs their text; decode() is that step
+public class PageCharsets {
+    // Browsers guess windows-1252 for legacy pages, but nearly every page without a
+    // declaration today is UTF-8, and so was every page the crawler decoded before
+    public static final Charset DEFAULT = StandardCharsets.UTF_8;
+    private static final int PRESCAN_BYTES = 1024;
+    private static final Charset WINDOWS_1252 = lookup("windows-1252");
+    // Markup characters that have to come out as the same single bytes
+    private static final String ASCII_PROBE = "<a href='x'/> \t\r\n\"=!-";
+
+    private static final ConcurrentHashMap<Charset, Boolean> ASCII_COMPATIBLE = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Charset, char[]> SINGLE_BYTE_TABLES = new ConcurrentHashMap<>();
+    private static final char[] NOT_SINGLE_BYTE = new char[0];
+
+    public static Charset detect(byte[] b, int len, String content_type) {
+        Charset cs = from_bom(b, len);
+        if (cs == null) {
+            cs = from_content_type(content_type);
+        }
+        if (cs == null) {
+            cs = from_meta(b, len);
+        }
+        return cs == null ? DEFAULT : cs;
+    }
+
+    public static Charset from_bom(byte[] b, int len) {
+        if (len >= 3 && (b[0] & 0xff) == 0xef && (b[1] & 0xff) == 0xbb && (b[2] & 0xff) == 0xbf) {
+            return StandardCharsets.UTF_8;
+        }
+        if (len >= 2 && (b[0] & 0xff) == 0xfe && (b[1] & 0xff) == 0xff) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (len >= 2 && (b[0] & 0xff) == 0xff && (b[1] & 0xff) == 0xfe) {
+            return StandardCharsets.UTF_16LE;
+        }
+        return null;
+    }
+
+    public static int bom_length(byte[] b, int len) {
+        Charset bom = from_bom(b, len);
+        if (bom == null) {
+            return 0;
+        }
+        return bom == StandardCharsets.UTF_8 ? 3 : 2;
+    }
+
+    // null when the header has no charset parameter or names an unknown charset
+    public static Charset from_content_type(String content_type) {
+        return content_type == null ? null : for_label(charset_param(content_type));
+    }
+
+    // The HTML prescan over the first 1024 bytes, comments and other tags skipped
+    public static Charset from_meta(byte[] b, int len) {
+        int to = Math.min(len, PRESCAN_BYTES);
+        int i = 0;
+        while (i < to) {
+            int lt = AsciiBytes.index_of(b, '<', i, to);
+            if (lt < 0) {
+                return null;
+            }
+            if (AsciiBytes.starts_with(b, lt, to, "<!--")) {
+                int end = AsciiBytes.index_of(b, "-->", lt + 4, to);
+                if (end < 0) {
+                    return null;
+                }
+                i = end + 3;
+                continue;
+            }
+            if (AsciiBytes.starts_with_ignore_case(b, lt, to, "<meta") && lt + 5 < to
+                    && (AsciiBytes.is_space(b[lt + 5]) || b[lt + 5] == '/')) {
+                Charset cs = meta_charset(b, lt + 5, to);
+                if (cs != null) {
+                    return cs;
+                }
+            }
+            int gt = AsciiBytes.index_of(b, '>', lt + 1, to);
+            if (gt < 0) {
+                return null;
+            }
+            i = gt + 1;
+        }
+        return null;
+    }
+
+    // Decodes the page text, without the byte order mark
+    public static String decode(byte[] b, int len, Charset charset) {
+        int skip = charset.equals(from_bom(b, len)) ? bom_length(b, len) : 0;
+        return new String(b, skip, len - skip, charset);
+    }
+
+    // Whether markup can be scanned in the raw bytes (see AsciiBytes); false for
+    // UTF-16 and UTF-32, whose pages have to be decoded first
+    public static boolean is_ascii_compatible(Charset charset) {
+        return ASCII_COMPATIBLE.computeIfAbsent(charset, cs -> {
+            if (!cs.canEncode()) {
+                return false;
+            }
+            byte[] probe = ASCII_PROBE.getBytes(cs);
+            return Arrays.equals(probe, ASCII_PROBE.getBytes(StandardCharsets.US_ASCII));
+        });
+    }
+
+    // The char of every byte for single-byte charsets (windows-1252, ISO-8859-x,
+    // KOI8-R, ...), null for multi-byte ones
+    public static char[] single_byte_table(Charset charset) {
+        char[] table = SINGLE_BYTE_TABLES.computeIfAbsent(charset, cs -> {
+            if (!cs.canEncode()) {
+                return NOT_SINGLE_BYTE;
+            }
+            CharsetEncoder enc = cs.newEncoder();
+            if (enc.maxBytesPerChar() != 1.0f) {
+                return NOT_SINGLE_BYTE;
+            }
+            byte[] all = new byte[256];
+            for (int k = 0; k < 256; k++) {
+                all[k] = (byte) k;
+            }
+            String chars = new String(all, cs);
+            return chars.length() == 256 ? chars.toCharArray() : NOT_SINGLE_BYTE;
+        });
+        return table == NOT_SINGLE_BYTE ? null : table;
+    }
+
+    // Attributes of one <meta> tag, from after its name to the closing '>'
+    private static Charset meta_charset(byte[] b, int from, int to) {
+        String http_equiv = null;
+        String content = null;
+        String charset = null;
+        int i = from;
+        while (i < to) {
+            int c = b[i];
+            if (c == '>') {
+                break;
+            }
+            if (c == '/' || AsciiBytes.is_space(c)) {
+                i++;
+                continue;
+            }
+            int name_start = i;
+            while (i < to && b[i] != '=' && b[i] != '>' && b[i] != '/' && !AsciiBytes.is_space(b[i])) {
+                i++;
+            }
+            String name = ascii(b, name_start, i).toLowerCase(Locale.ROOT);
+            while (i < to && AsciiBytes.is_space(b[i])) {
+                i++;
+            }
+            if (i >= to || b[i] != '=') {
+                continue;
+            }
+            i++;
+            while (i < to && AsciiBytes.is_space(b[i])) {
+                i++;
+            }
+            int value_start;
+            int value_end;
+            if (i < to && (b[i] == '"' || b[i] == '\'')) {
+                value_start = i + 1;
+                value_end = AsciiBytes.index_of(b, b[i], value_start, to);
+                if (value_end < 0) {
+                    return null;
+                }
+                i = value_end + 1;
+            } else {
+                value_start = i;
+                while (i < to && !AsciiBytes.is_space(b[i]) && b[i] != '>') {
+                    i++;
+                }
+                value_end = i;
+            }
+            String value = ascii(b, value_start, value_end);
+            if (name.equals("http-equiv") && http_equiv == null) {
+                http_equiv = value;
+            } else if (name.equals("content") && content == null) {
+                content = value;
+            } else if (name.equals("charset") && charset == null) {
+                charset = value;
+            }
+        }
+        if (charset == null && content != null && "content-type".equalsIgnoreCase(strip(http_equiv))) {
+            charset = charset_param(content);
+        }
+        Charset cs = for_label(charset);
+        if (cs == null) {
+            return null;
+        }
+        // A page whose <meta> could be read as ASCII is not UTF-16, whatever it says
+        if (cs.equals(StandardCharsets.UTF_16) || cs.equals(StandardCharsets.UTF_16BE)
+                || cs.equals(StandardCharsets.UTF_16LE)) {
+            return StandardCharsets.UTF_8;
+        }
+        return cs;
+    }
+
+    // The charset parameter of a Content-Type value, null when absent
+    static String charset_param(String content_type) {
+        String lower = content_type.toLowerCase(Locale.ROOT);
+        int idx = lower.indexOf("charset");
+        while (idx >= 0) {
+            int i = idx + 7;
+            while (i < lower.length() && lower.charAt(i) == ' ') {
+                i++;
+            }
+            if (i < lower.length() && lower.charAt(i) == '=') {
+                String name = content_type.substring(i + 1).trim();
+                int end = 0;
+                while (end < name.length() && name.charAt(end) != ';' && name.charAt(end) != ' ') {
+                    end++;
+                }
+                name = name.substring(0, end).replace("\"", "").replace("'", "");
+                return name.isEmpty() ? null : name;
+            }
+            idx = lower.indexOf("charset", idx + 7);
+        }
+        return null;
+    }
+
+    // Like browsers, latin1 and ascii labels mean windows-1252, which only differs in
+    // the 0x80-0x9f range that ISO-8859-1 leaves to control characters
+    private static Charset for_label(String label) {
+        String name = strip(label);
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        if (name.equalsIgnoreCase("x-user-defined")) {
+            return WINDOWS_1252;
+        }
+        Charset cs = lookup(name);
+        if ((StandardCharsets.ISO_8859_1.equals(cs) || StandardCharsets.US_ASCII.equals(cs)) && WINDOWS_1252 != null) {
+            return WINDOWS_1252;
+        }
+        return cs;
+    }
+
+    private static Charset lookup(String name) {
+        try {
+            return Charset.forName(name);
+        } catch (RuntimeException err) {
+            return null;
+        }
+    }
+
+    private static String strip(String s) {
+        return s == null ? null : s.strip();
+    }
+
+    private static String ascii(byte[] b, int from, int to) {
+        return new String(b, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+}
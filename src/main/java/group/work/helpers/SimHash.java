@@ -0,0 +1,135 @@
+package group.work.helpers;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+// 64-bit SimHash over the visible text of an HTML page
+// Markup, comments and <script>/<style> content are skipped, the text is split into
+// lowercase alphanumeric words and every run of 3 consecutive words is one feature
+// Pages that differ in a few words end up a few bits apart
+// Works on the page bytes: markup is found as in LinkExtractor, and the text is read
+// a character at a time, decoding UTF-8 in place and single-byte charsets through a
+// table; other charsets are transcoded to UTF-8 first
+public class SimHash {
+    // Returned for pages with too little text to fingerprint reliably
+    public static final long NONE = 0L;
+    private static final int SHINGLE = 3;
+    private static final int MIN_FEATURES = 8;
+
+    public static long of_html(String html) {
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        return of_html(bytes, bytes.length, StandardCharsets.UTF_8);
+    }
+
+    public static long of_html(byte[] html, int len, Charset charset) {
+        boolean utf8 = charset.equals(StandardCharsets.UTF_8);
+        char[] table = utf8 ? null : PageCharsets.single_byte_table(charset);
+        if (!utf8 && (table == null || !PageCharsets.is_ascii_compatible(charset))) {
+            byte[] bytes = PageCharsets.decode(html, len, charset).getBytes(StandardCharsets.UTF_8);
+            return of_html(bytes, bytes.length, StandardCharsets.UTF_8);
+        }
+        int[] weights = new int[64];
+        long[] window = new long[SHINGLE];
+        int words = 0;
+        int features = 0;
+        long word_hash = 0;
+        int word_len = 0;
+        int n = len;
+        int i = PageCharsets.bom_length(html, len);
+        while (i <= n) {
+            int c;
+            if (i == n) {
+                c = ' ';
+                i++;
+            } else if (html[i] == '<') {
+                i = skip_markup(html, i, n);
+                c = ' ';
+            } else if (html[i] >= 0) {
+                c = html[i++];
+            } else if (table != null) {
+                c = table[html[i++] & 0xff];
+            } else {
+                // Multi-byte UTF-8 sequence, i moves past it
+                int lead = html[i] & 0xff;
+                int extra = lead >= 0xf0 ? 3 : lead >= 0xe0 ? 2 : lead >= 0xc0 ? 1 : 0;
+                c = lead & (0x3f >> extra);
+                int k = 1;
+                while (k <= extra && i + k < n && (html[i + k] & 0xc0) == 0x80) {
+                    c = (c << 6) | (html[i + k] & 0x3f);
+                    k++;
+                }
+                if (extra == 0 || k <= extra) {
+                    // Stray continuation byte or cut-off sequence
+                    c = 0xfffd;
+                }
+                i += k;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                word_hash = (word_hash ^ Character.toLowerCase(c)) * 0x100000001b3L;
+                word_len++;
+                continue;
+            }
+            if (c == '&') {
+                // Character references separate words like punctuation would
+                int semi = AsciiBytes.index_of(html, ';', i, Math.min(n, i + 9));
+                if (semi > 0) {
+                    i = semi + 1;
+                }
+            }
+            if (word_len == 0) {
+                continue;
+            }
+            window[words % SHINGLE] = Hashing.mix64(word_hash);
+            words++;
+            word_hash = 0;
+            word_len = 0;
+            if (words < SHINGLE) {
+                continue;
+            }
+            long feature = 0;
+            for (int k = 0; k < SHINGLE; k++) {
+                feature = Long.rotateLeft(feature, 21) ^ window[(words - SHINGLE + k) % SHINGLE];
+            }
+            feature = Hashing.mix64(feature);
+            for (int b = 0; b < 64; b++) {
+                weights[b] += ((feature >>> b) & 1L) != 0 ? 1 : -1;
+            }
+            features++;
+        }
+        if (features < MIN_FEATURES) {
+            return NONE;
+        }
+        long fp = 0;
+        for (int b = 0; b < 64; b++) {
+            if (weights[b] > 0) {
+                fp |= 1L << b;
+            }
+        }
+        return fp == NONE ? 1L : fp;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    // Returns the index right after the tag, comment or raw-text element at from
+    private static int skip_markup(byte[] html, int from, int n) {
+        if (AsciiBytes.starts_with(html, from, n, "<!--")) {
+            int end = AsciiBytes.index_of(html, "-->", from + 4, n);
+            return end < 0 ? n : end + 3;
+        }
+        int gt = AsciiBytes.index_of(html, '>', from, n);
+        if (gt < 0) {
+            return n;
+        }
+        if (AsciiBytes.starts_with_ignore_case(html, from, n, "<script")) {
+            int end = AsciiBytes.index_of_tag(html, "</script", gt, n);
+            return end < 0 ? n : end;
+        }
+        if (AsciiBytes.starts_with_ignore_case(html, from, n, "<style")) {
+            int end = AsciiBytes.index_of_tag(html, "</style", gt, n);
+            return end < 0 ? n : end;
+        }
+        return gt + 1;
+    }
+}
@@ -0,0 +1,72 @@
+package group.work.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Set of SimHash fingerprints searchable by Hamming distance
+// Each fingerprint is filed under its four 16-bit bands; two fingerprints at most 3
+// bits apart share at least one band exactly, so a query only scans the 4 buckets
+// of its own bands instead of the whole set
+public class SimHashIndex {
+    private static final int BANDS = 4;
+    private static final int BUCKETS = 1 << 16;
+
+    private final long[][][] tables = new long[BANDS][BUCKETS][];
+    private final int[][] counts = new int[BANDS][BUCKETS];
+    private final int max_distance;
+    private final AtomicLong size = new AtomicLong(0);
+    private final AtomicLong duplicates = new AtomicLong(0);
+
+    // max_distance is capped at 3, the most the band layout can guarantee to find
+    public SimHashIndex(int max_distance) {
+        this.max_distance = Math.min(max_distance, BANDS - 1);
+    }
+
+    // Distance to a stored fingerprint within max_distance, or -1 when the page is new
+    // Nothing is added; the caller adds the fingerprint once the page is kept
+    public synchronized int find(long fp) {
+        for (int band = 0; band < BANDS; band++) {
+            int key = band_key(fp, band);
+            long[] bucket = this.tables[band][key];
+            int n = this.counts[band][key];
+            for (int i = 0; i < n; i++) {
+                int d = Long.bitCount(bucket[i] ^ fp);
+                if (d <= this.max_distance) {
+                    this.duplicates.incrementAndGet();
+                    return d;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public synchronized void add(long fp) {
+        for (int band = 0; band < BANDS; band++) {
+            int key = band_key(fp, band);
+            long[] bucket = this.tables[band][key];
+            int n = this.counts[band][key];
+            if (bucket == null) {
+                bucket = new long[4];
+            } else if (n == bucket.length) {
+                long[] bigger = new long[n * 2];
+                System.arraycopy(bucket, 0, bigger, 0, n);
+                bucket = bigger;
+            }
+            bucket[n] = fp;
+            this.tables[band][key] = bucket;
+            this.counts[band][key] = n + 1;
+        }
+        this.size.incrementAndGet();
+    }
+
+    public long size() {
+        return this.size.get();
+    }
+
+    public long get_duplicates() {
+        return this.duplicates.get();
+    }
+
+    private static int band_key(long fp, int band) {
+        return (int) (fp >>> (band * 16)) & (BUCKETS - 1);
+    }
+}
@@ -0,0 +1,169 @@
+package group.work.helpers;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Strings kept in append-only memory-mapped segment files shared by all their owners
+// Records are [int length][UTF-8 bytes]; append() returns the position of a record
+// (segment id << 32 | offset) and the owner keeps the positions in its own order, so
+// any number of FIFOs share a few large mappings instead of one file each
+// A segment is deleted once every record in it was released; written bytes are never
+// overwritten, so a snapshot() stays valid after the owner moves on
+// Not thread safe, the owner serializes access
+public class SpillStore {
+    private static class Segment {
+        final int id;
+        final Path path;
+        final MappedByteBuffer buf;
+        int write_pos = 0;
+        // Records appended and not released yet
+        int live = 0;
+
+        Segment(int id, Path path, MappedByteBuffer buf) {
+            this.id = id;
+            this.path = path;
+            this.buf = buf;
+        }
+    }
+
+    // Records at given positions, read without the owner's lock
+    public static class Snapshot {
+        private final Map<Integer, ByteBuffer> segments;
+        private final List<long[]> positions;
+
+        Snapshot(Map<Integer, ByteBuffer> segments, List<long[]> positions) {
+            this.segments = segments;
+            this.positions = positions;
+        }
+
+        // Writes each record as [int length][UTF-8 bytes], returns the number written
+        public long write_records(DataOutput out) throws IOException {
+            byte[] chunk = new byte[1 << 16];
+            long count = 0;
+            for (long[] list : this.positions) {
+                for (long pos : list) {
+                    ByteBuffer buf = this.segments.get(segment_id(pos));
+                    int offset = offset(pos);
+                    int len = buf.getInt(offset);
+                    out.writeInt(len);
+                    for (int done = 0; done < len;) {
+                        int n = Math.min(len - done, chunk.length);
+                        buf.get(offset + 4 + done, chunk, 0, n);
+                        out.write(chunk, 0, n);
+                        done += n;
+                    }
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private final Path dir;
+    private final int segment_bytes;
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private Segment tail;
+    private int segment_seq = 0;
+
+    public SpillStore(Path dir, int segment_bytes) {
+        this.dir = dir;
+        this.segment_bytes = segment_bytes;
+    }
+
+    public long append(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int need = 4 + bytes.length;
+        if (this.tail == null || this.tail.buf.capacity() - this.tail.write_pos < need) {
+            this.open_segment(Math.max(this.segment_bytes, need));
+        }
+        Segment s = this.tail;
+        s.buf.putInt(s.write_pos, bytes.length);
+        s.buf.put(s.write_pos + 4, bytes);
+        long pos = (long) s.id << 32 | s.write_pos;
+        s.write_pos += need;
+        s.live++;
+        return pos;
+    }
+
+    public String read(long pos) {
+        Segment s = this.segments.get(segment_id(pos));
+        int offset = offset(pos);
+        byte[] bytes = new byte[s.buf.getInt(offset)];
+        s.buf.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The record at pos is not needed any more
+    public void release(long pos) {
+        Segment s = this.segments.get(segment_id(pos));
+        if (--s.live == 0 && s != this.tail) {
+            this.delete_segment(s);
+        }
+    }
+
+    // Only copies the position lists and references to the mappings
+    public Snapshot snapshot(List<long[]> positions) {
+        Map<Integer, ByteBuffer> views = new HashMap<>();
+        for (Segment s : this.segments.values()) {
+            views.put(s.id, s.buf.asReadOnlyBuffer());
+        }
+        return new Snapshot(views, positions);
+    }
+
+    public int get_segment_count() {
+        return this.segments.size();
+    }
+
+    public void close() {
+        for (Segment s : List.copyOf(this.segments.values())) {
+            this.delete_segment(s);
+        }
+        this.tail = null;
+    }
+
+    private void open_segment(int bytes) throws IOException {
+        Files.createDirectories(this.dir);
+        int id = this.segment_seq++;
+        Path path = this.dir.resolve(String.format("frontier-%08d.seg", id));
+        // The mapping stays valid after the channel is closed
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            Segment s = new Segment(id, path, ch.map(FileChannel.MapMode.READ_WRITE, 0, bytes));
+            Segment old = this.tail;
+            this.segments.put(id, s);
+            this.tail = s;
+            if (old != null && old.live == 0) {
+                this.delete_segment(old);
+            }
+        }
+    }
+
+    // The pages of the mapping are released when the buffer is collected, the file
+    // itself disappears from the directory right away
+    private void delete_segment(Segment s) {
+        this.segments.remove(s.id);
+        try {
+            Files.deleteIfExists(s.path);
+        } catch (IOException err) {
+            System.err.println("[SpillStore] failed to delete segment " + s.path + ": " + err.getMessage());
+        }
+    }
+
+    private static int segment_id(long pos) {
+        return (int) (pos >>> 32);
+    }
+
+    private static int offset(long pos) {
+        return (int) pos;
+    }
+}
@@ -0,0 +1,19 @@
+package group.work.helpers;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Exact set of normalized URLs, simple but costs a full String per entry
+public class StringVisitedSet implements VisitedSet {
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public boolean add(CrawlUrl url) {
+        return this.seen.add(url.url);
+    }
+
+    @Override
+    public long size() {
+        return this.seen.size();
+    }
+}
@@ -1,50 +1,374 @@
 package group.work.helpers;
 
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
+// Single-pass URL canonicalizer for http(s) links
+// The input is split into offsets (scheme, userinfo, host, port, path, query) without
+// building intermediate URI objects, then rebuilt in canonical form:
+// - lowercase scheme and host, default port and fragment dropped
+// - percent-encoding normalized: unreserved chars decoded, hex digits uppercased,
+// chars that must be escaped (spaces, non-ASCII, ...) encoded as UTF-8
+// - repeated slashes collapsed and dot segments removed (RFC 3986 5.2.4)
+// - tracking parameters stripped and, optionally, query parameters sorted
 public class UrlNormalizer {
+    public static class Options {
+        public boolean sort_query = false;
+        public boolean strip_tracking = true;
+        // Exact parameter names, compared lowercase; any utm_* parameter is stripped too
+        public Set<String> tracking_params = Set.of("gclid", "fbclid", "msclkid", "dclid", "yclid", "mc_cid",
+                "mc_eid", "_ga", "igshid");
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final Options DEFAULTS = new Options();
+
+    // The crawler passes its own Options to canonicalize(url, options), these two
+    // use the defaults (benchmarks and tests)
     public static String normalize(String url) {
+        CrawlUrl r = canonicalize(url, DEFAULTS);
+        return r != null ? r.url : null;
+    }
+
+    public static CrawlUrl canonicalize(String url) {
+        return canonicalize(url, DEFAULTS);
+    }
+
+    public static CrawlUrl canonicalize(String url, Options options) {
         if (url == null) {
             return null;
         }
-        url = url.trim();
-        if (url.isEmpty()) {
+        int start = 0;
+        int end = url.length();
+        while (start < end && url.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && url.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end) {
             return null;
         }
-        String lower = url.toLowerCase(Locale.ROOT);
-        if (lower.startsWith("mailto:") || lower.startsWith("javascript:") || lower.startsWith("tel:")) {
+        // Scheme: only http and https are crawled, this also rejects mailto:, tel:, ...
+        String scheme;
+        int i;
+        if (url.regionMatches(true, start, "http://", 0, 7)) {
+            scheme = "http";
+            i = start + 7;
+        } else if (url.regionMatches(true, start, "https://", 0, 8)) {
+            scheme = "https";
+            i = start + 8;
+        } else {
             return null;
         }
-        try {
-            URI u = new URI(url);
-            String scheme = u.getScheme();
-            if (scheme == null) {
-                return null;
+        // Authority
+        int auth_end = i;
+        while (auth_end < end) {
+            char c = url.charAt(auth_end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
             }
-            scheme = scheme.toLowerCase(Locale.ROOT);
-            if (!scheme.equals("http") && !scheme.equals("https")) {
+            auth_end++;
+        }
+        int host_start = i;
+        int at = url.lastIndexOf('@', auth_end - 1);
+        String userinfo = null;
+        if (at >= i) {
+            userinfo = url.substring(i, at);
+            host_start = at + 1;
+        }
+        int host_end = auth_end;
+        int port = -1;
+        int colon = -1;
+        if (host_start < auth_end && url.charAt(host_start) == '[') {
+            int close = url.indexOf(']', host_start);
+            if (close < 0 || close >= auth_end) {
                 return null;
             }
-            String host = u.getHost();
-            if (host == null) {
+            if (close + 1 < auth_end) {
+                if (url.charAt(close + 1) != ':') {
+                    return null;
+                }
+                colon = close + 1;
+            }
+            host_end = close + 1;
+        } else {
+            colon = url.indexOf(':', host_start);
+            if (colon >= auth_end) {
+                colon = -1;
+            }
+            if (colon >= 0) {
+                host_end = colon;
+            }
+        }
+        if (colon >= 0) {
+            port = parse_port(url, colon + 1, auth_end);
+            if (port == -2) {
                 return null;
             }
-            host = host.toLowerCase();
-            int port = u.getPort();
-            if ((scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443)) {
-                port = -1;
+        }
+        String host = canonical_host(url, host_start, host_end);
+        if (host == null) {
+            return null;
+        }
+        if ((scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443)) {
+            port = -1;
+        }
+        // Path, query, fragment
+        int path_end = auth_end;
+        while (path_end < end && url.charAt(path_end) != '?' && url.charAt(path_end) != '#') {
+            path_end++;
+        }
+        int query_start = -1;
+        int query_end = path_end;
+        if (path_end < end && url.charAt(path_end) == '?') {
+            query_start = path_end + 1;
+            query_end = url.indexOf('#', query_start);
+            if (query_end < 0 || query_end > end) {
+                query_end = end;
             }
-            String path = u.getRawPath();
-            if (path == null || path.isEmpty()) {
-                path = "/";
+        }
+
+        StringBuilder out = new StringBuilder(end - start + 8);
+        out.append(scheme).append("://");
+        if (userinfo != null) {
+            append_encoded(out, userinfo, 0, userinfo.length(), false, false);
+            out.append('@');
+        }
+        out.append(host);
+        if (port >= 0) {
+            out.append(':').append(port);
+        }
+        int path_start = out.length();
+        if (auth_end == path_end) {
+            out.append('/');
+        } else {
+            append_encoded(out, url, auth_end, path_end, true, false);
+            remove_dot_segments(out, path_start);
+        }
+        int q = out.length();
+        if (query_start >= 0) {
+            out.append('?');
+            append_encoded(out, url, query_start, query_end, false, true);
+            if (options.sort_query || (options.strip_tracking && has_tracking(out, q + 1, options))) {
+                String query = clean_query(out.substring(q + 1), options);
+                out.setLength(q);
+                if (!query.isEmpty()) {
+                    out.append('?').append(query);
+                }
+            } else if (out.length() == q + 1) {
+                out.setLength(q);
+            }
+        }
+        String canonical = out.toString();
+        String path = canonical.substring(path_start, Math.min(q, canonical.length()));
+        String query = canonical.length() > q ? canonical.substring(q + 1) : null;
+        return new CrawlUrl(canonical, scheme, host, port, path, query);
+    }
+
+    // -1 when the port is empty, -2 when it is invalid
+    private static int parse_port(String url, int from, int to) {
+        if (from == to) {
+            return -1;
+        }
+        if (to - from > 5) {
+            return -2;
+        }
+        int port = 0;
+        for (int i = from; i < to; i++) {
+            char c = url.charAt(i);
+            if (c < '0' || c > '9') {
+                return -2;
             }
-            String query = u.getRawQuery();
-            URI normalized = new URI(scheme, u.getRawUserInfo(), host, port, path, query, null);
-            return normalized.toString();
-        } catch (URISyntaxException err) {
+            port = port * 10 + (c - '0');
+        }
+        return port <= 65535 ? port : -2;
+    }
+
+    private static String canonical_host(String url, int from, int to) {
+        if (from >= to) {
             return null;
         }
+        if (url.charAt(to - 1) == '.') {
+            to--;
+        }
+        boolean ascii = true;
+        boolean lower = true;
+        for (int i = from; i < to; i++) {
+            char c = url.charAt(i);
+            if (c >= 0x80) {
+                ascii = false;
+            } else if (c >= 'A' && c <= 'Z') {
+                lower = false;
+            } else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_'
+                    || c == '[' || c == ']' || c == ':')) {
+                return null;
+            }
+        }
+        String host = url.substring(from, to);
+        if (!ascii) {
+            try {
+                host = IDN.toASCII(host, IDN.ALLOW_UNASSIGNED);
+            } catch (IllegalArgumentException err) {
+                return null;
+            }
+        }
+        if (!lower || !ascii) {
+            host = host.toLowerCase(Locale.ROOT);
+        }
+        return host.isEmpty() ? null : host;
+    }
+
+    // Copies url[from, to) in canonical percent-encoding
+    // In paths a run of slashes becomes one slash
+    private static void append_encoded(StringBuilder out, String url, int from, int to, boolean path,
+            boolean query) {
+        for (int i = from; i < to; i++) {
+            char c = url.charAt(i);
+            if (c == '%') {
+                int hi = i + 2 < to ? hex_value(url.charAt(i + 1)) : -1;
+                int lo = hi >= 0 ? hex_value(url.charAt(i + 2)) : -1;
+                if (lo < 0) {
+                    out.append("%25");
+                    continue;
+                }
+                char decoded = (char) (hi * 16 + lo);
+                if (is_unreserved(decoded)) {
+                    out.append(decoded);
+                } else {
+                    out.append('%').append(HEX[hi]).append(HEX[lo]);
+                }
+                i += 2;
+                continue;
+            }
+            if (path && c == '/' && out.length() > 0 && out.charAt(out.length() - 1) == '/') {
+                continue;
+            }
+            if (is_unreserved(c) || is_sub_delim(c) || c == ':' || c == '@' || c == '/'
+                    || (query && c == '?')) {
+                out.append(c);
+                continue;
+            }
+            int cp = url.codePointAt(i);
+            if (Character.charCount(cp) == 2) {
+                i++;
+            }
+            for (byte b : new String(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8)) {
+                out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+        }
+    }
+
+    // RFC 3986 5.2.4 on out[from..], which starts with '/'
+    private static void remove_dot_segments(StringBuilder out, int from) {
+        if (out.indexOf("/.", from) < 0) {
+            return;
+        }
+        String path = out.substring(from);
+        String[] segments = path.substring(1).split("/", -1);
+        List<String> kept = new ArrayList<>(segments.length);
+        boolean trailing_slash = false;
+        for (int i = 0; i < segments.length; i++) {
+            String seg = segments[i];
+            boolean last = i == segments.length - 1;
+            if (seg.equals(".") || seg.equals("..")) {
+                if (seg.equals("..") && !kept.isEmpty()) {
+                    kept.remove(kept.size() - 1);
+                }
+                trailing_slash = last;
+                continue;
+            }
+            kept.add(seg);
+        }
+        out.setLength(from);
+        out.append('/').append(String.join("/", kept));
+        if (trailing_slash && !kept.isEmpty()) {
+            out.append('/');
+        }
+    }
+
+    private static String clean_query(String query, Options options) {
+        List<String> params = new ArrayList<>();
+        int i = 0;
+        while (i <= query.length()) {
+            int amp = query.indexOf('&', i);
+            if (amp < 0) {
+                amp = query.length();
+            }
+            String param = query.substring(i, amp);
+            if (!param.isEmpty() && !(options.strip_tracking && is_tracking(param, options))) {
+                params.add(param);
+            }
+            i = amp + 1;
+        }
+        if (options.sort_query) {
+            // Stable, so repeated keys keep their relative order
+            params.sort(Comparator.comparing(UrlNormalizer::param_name));
+        }
+        return String.join("&", params);
+    }
+
+    // Scans the parameter names in place so that the common query without tracking
+    // parameters is left untouched
+    private static boolean has_tracking(StringBuilder out, int from, Options options) {
+        String query = out.substring(from);
+        int i = 0;
+        int n = query.length();
+        while (i < n) {
+            int name_end = i;
+            while (name_end < n && query.charAt(name_end) != '=' && query.charAt(name_end) != '&') {
+                name_end++;
+            }
+            int len = name_end - i;
+            if (len >= 4 && query.regionMatches(true, i, "utm_", 0, 4)) {
+                return true;
+            }
+            for (String name : options.tracking_params) {
+                if (name.length() == len && query.regionMatches(true, i, name, 0, len)) {
+                    return true;
+                }
+            }
+            int amp = query.indexOf('&', name_end);
+            i = amp < 0 ? n : amp + 1;
+        }
+        return false;
+    }
+
+    private static boolean is_tracking(String param, Options options) {
+        String name = param_name(param).toLowerCase(Locale.ROOT);
+        return name.startsWith("utm_") || options.tracking_params.contains(name);
+    }
+
+    private static String param_name(String param) {
+        int eq = param.indexOf('=');
+        return eq < 0 ? param : param.substring(0, eq);
+    }
+
+    private static int hex_value(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static boolean is_unreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+
+    private static boolean is_sub_delim(char c) {
+        return c == '!' || c == '$' || c == '&' || c == '\'' || c == '(' || c == ')' || c == '*' || c == '+'
+                || c == ',' || c == ';' || c == '=';
     }
 }
@@ -1,24 +1,61 @@
 package group.work.helpers;
 
-import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 public class VisitedManager {
-    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+    private final VisitedSet seen;
+    private volatile Consumer<String> journal;
 
-    public boolean enqueue_if_new(String url, BlockingQueue<String> queue) {
+    public VisitedManager() {
+        this(new StringVisitedSet());
+    }
+
+    public VisitedManager(VisitedSet seen) {
+        this.seen = seen;
+    }
+
+    public boolean enqueue_if_new(CrawlUrl url, BlockingQueue<CrawlUrl> queue) {
+        return this.enqueue_if_new(url, queue::offer);
+    }
+
+    // Same check, with the new URL handed to sink, e.g. to forward it to another node
+    public boolean enqueue_if_new(CrawlUrl url, Consumer<CrawlUrl> sink) {
         if (url == null) {
             return false;
         }
         if (seen.add(url)) {
-            queue.offer(url);
+            sink.accept(url);
             return true;
         }
         return false;
     }
 
+    // Called once nothing more is to be done for a URL taken from the queue, and its
+    // links were queued
+    public void complete(CrawlUrl url) {
+        Consumer<String> j = this.journal;
+        if (j != null) {
+            j.accept(url.url);
+        }
+    }
+
+    // Receives every URL passed to complete(), used for checkpoints
+    public void set_journal(Consumer<String> journal) {
+        this.journal = journal;
+    }
+
+    // Restores a URL into the visited set without enqueueing or journaling it,
+    // false when it was already there
+    public boolean mark_seen(CrawlUrl url) {
+        return this.seen.add(url);
+    }
+
     public int get_seen_count() {
-        return seen.size();
+        return (int) Math.min(seen.size(), Integer.MAX_VALUE);
+    }
+
+    public VisitedSet get_visited_set() {
+        return this.seen;
     }
 }
@@ -0,0 +1,9 @@
+package group.work.helpers;
+
+// Membership structure behind VisitedManager
+// add must be atomic: it returns true for exactly one caller per URL
+public interface VisitedSet {
+    boolean add(CrawlUrl url);
+
+    long size();
+}
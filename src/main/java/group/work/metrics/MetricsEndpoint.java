@@ -0,0 +1,64 @@
+package group.work.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Serves the registry as Prometheus text on http://127.0.0.1:port/metrics
+// Scrapes are rare, so one daemon thread handles them all; only the loopback
+// address is bound, put a proxy in front to scrape from another machine
+public class MetricsEndpoint {
+    private final MetricsRegistry registry;
+    private HttpServer server;
+
+    public MetricsEndpoint(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    // Port 0 picks a free port, see get_port()
+    public void start(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+        this.server.createContext("/metrics", this::handle);
+        this.server.setExecutor(null);
+        this.server.start();
+    }
+
+    public int get_port() {
+        return this.server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+            this.server = null;
+        }
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            if (!ex.getRequestMethod().equals("GET") && !ex.getRequestMethod().equals("HEAD")) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder sb = new StringBuilder(16 * 1024);
+            this.registry.write_prometheus(sb);
+            byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if (ex.getRequestMethod().equals("HEAD")) {
+                ex.sendResponseHeaders(200, -1);
+                return;
+            }
+            ex.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            ex.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package group.work.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import group.work.helpers.LatencyHistogram;
+
+// Read-only view of a MetricsRegistry for JConsole / VisualVM / JMX exporters
+// Every counter and gauge is one attribute, every histogram becomes .count, .p50,
+// .p99 and .max attributes (in microseconds); labels are folded into the name, so
+// fetch_duration_seconds{class="2xx"} is read as fetch_duration_seconds.class_2xx.p99
+// The attribute list is built again on every getMBeanInfo(), metrics registered
+// later (new hosts, ...) show up on the next refresh
+public class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+    private ObjectName registered_name;
+
+    public MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    // A name already taken (a second crawler in the same JVM) gets a numeric suffix
+    public void register(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName object_name = new ObjectName(name);
+            for (int i = 2; server.isRegistered(object_name); i++) {
+                object_name = new ObjectName(name + ",instance=" + i);
+            }
+            server.registerMBean(this, object_name);
+            this.registered_name = object_name;
+        } catch (JMException err) {
+            System.err.println("[Metrics] could not register JMX bean " + name + ": " + err.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (this.registered_name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registered_name);
+        } catch (JMException err) {
+        }
+        this.registered_name = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = this.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = this.snapshot();
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            Object v = values.get(a);
+            if (v != null) {
+                list.add(new Attribute(a, v));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) {
+        return null;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (MetricsRegistry.Metric m : this.registry.get_metrics()) {
+            String base = attribute_name(m);
+            if (m.kind != MetricsRegistry.Kind.SUMMARY) {
+                infos.add(new MBeanAttributeInfo(base, "java.lang.Double", m.help, true, false, false));
+                continue;
+            }
+            for (String part : new String[] { "count", "p50", "p99", "max" }) {
+                infos.add(new MBeanAttributeInfo(base + "." + part, "java.lang.Long", m.help, true, false,
+                        false));
+            }
+        }
+        return new MBeanInfo(MetricsMBean.class.getName(), "Crawler metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (MetricsRegistry.Metric m : this.registry.get_metrics()) {
+            String base = attribute_name(m);
+            if (m.kind != MetricsRegistry.Kind.SUMMARY) {
+                values.put(base, m.get_value());
+                continue;
+            }
+            LatencyHistogram h = m.get_histogram();
+            values.put(base + ".count", h.get_count());
+            values.put(base + ".p50", h.get_percentile(0.50));
+            values.put(base + ".p99", h.get_percentile(0.99));
+            values.put(base + ".max", h.get_max());
+        }
+        return values;
+    }
+
+    // fetch_duration_seconds{class="2xx",host="a"} -> fetch_duration_seconds.class_2xx.host_a
+    private static String attribute_name(MetricsRegistry.Metric m) {
+        if (m.labels.isEmpty()) {
+            return m.family;
+        }
+        StringBuilder sb = new StringBuilder(m.family);
+        for (String label : m.labels.split(",")) {
+            int eq = label.indexOf('=');
+            sb.append('.').append(label, 0, eq).append('_').append(label.substring(eq + 1).replace("\"", ""));
+        }
+        return sb.toString();
+    }
+}
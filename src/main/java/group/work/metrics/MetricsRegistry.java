@@ -0,0 +1,163 @@
+package group.work.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import group.work.helpers.LatencyHistogram;
+
+// Named counters, gauges and histograms of one crawl, read by the JMX bean and the
+// Prometheus endpoint
+// A series name is a Prometheus metric name with optional labels, for example
+// fetch_duration_seconds{class="2xx"}; series sharing the part before '{' form one family
+// Updating a metric never touches the registry: callers keep the LongAdder or
+// LatencyHistogram they got back, only registration and export take the lock
+// Histograms record microseconds and are exported in seconds
+public class MetricsRegistry {
+    public enum Kind {
+        COUNTER,
+        GAUGE,
+        SUMMARY
+    }
+
+    public static class Metric {
+        public final String name;
+        public final String family;
+        // Label part without braces, empty when the series has no labels
+        public final String labels;
+        public final String help;
+        public final Kind kind;
+        // Set for counters and gauges
+        final DoubleSupplier value;
+        // Set for summaries
+        final LatencyHistogram histogram;
+
+        Metric(String name, String help, Kind kind, DoubleSupplier value, LatencyHistogram histogram) {
+            int brace = name.indexOf('{');
+            this.name = name;
+            this.family = brace < 0 ? name : name.substring(0, brace);
+            this.labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+            this.help = help;
+            this.kind = kind;
+            this.value = value;
+            this.histogram = histogram;
+        }
+
+        public double get_value() {
+            return this.value.getAsDouble();
+        }
+
+        public LatencyHistogram get_histogram() {
+            return this.histogram;
+        }
+    }
+
+    static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+    private final Map<String, LongAdder> adders = new LinkedHashMap<>();
+
+    // Same name, same counter: workers can each ask for it
+    public synchronized LongAdder counter(String name, String help) {
+        LongAdder adder = this.adders.get(name);
+        if (adder == null) {
+            LongAdder created = new LongAdder();
+            this.add(new Metric(name, help, Kind.COUNTER, created::sum, null));
+            this.adders.put(name, created);
+            adder = created;
+        }
+        return adder;
+    }
+
+    public synchronized LatencyHistogram histogram(String name, String help) {
+        Metric m = this.metrics.get(name);
+        if (m != null && m.kind == Kind.SUMMARY) {
+            return m.histogram;
+        }
+        LatencyHistogram h = new LatencyHistogram();
+        this.add(new Metric(name, help, Kind.SUMMARY, null, h));
+        return h;
+    }
+
+    // For counters kept by a component itself, scaled on export (1e-9 turns ns into s)
+    public synchronized void register_counter(String name, String help, DoubleSupplier value) {
+        this.add(new Metric(name, help, Kind.COUNTER, value, null));
+    }
+
+    public synchronized void register_gauge(String name, String help, DoubleSupplier value) {
+        this.add(new Metric(name, help, Kind.GAUGE, value, null));
+    }
+
+    public synchronized void register_histogram(String name, String help, LatencyHistogram histogram) {
+        this.add(new Metric(name, help, Kind.SUMMARY, null, histogram));
+    }
+
+    public synchronized List<Metric> get_metrics() {
+        return new ArrayList<>(this.metrics.values());
+    }
+
+    // Prometheus text exposition format 0.0.4, histograms as summaries
+    public void write_prometheus(Appendable out) throws IOException {
+        String family = null;
+        for (Metric m : this.get_metrics()) {
+            if (!m.family.equals(family)) {
+                family = m.family;
+                out.append("# HELP ").append(family).append(' ').append(m.help).append('\n');
+                out.append("# TYPE ").append(family).append(' ')
+                        .append(m.kind.name().toLowerCase(Locale.ROOT)).append('\n');
+            }
+            if (m.kind != Kind.SUMMARY) {
+                out.append(m.name).append(' ').append(format(m.value.getAsDouble())).append('\n');
+                continue;
+            }
+            LatencyHistogram h = m.histogram;
+            String sep = m.labels.isEmpty() ? "" : ",";
+            for (double q : QUANTILES) {
+                out.append(m.family).append('{').append(m.labels).append(sep).append("quantile=\"")
+                        .append(String.valueOf(q)).append("\"} ").append(format(h.get_percentile(q) / 1e6))
+                        .append('\n');
+            }
+            String labels = m.labels.isEmpty() ? "" : "{" + m.labels + "}";
+            out.append(m.family).append("_sum").append(labels).append(' ').append(format(h.get_sum() / 1e6))
+                    .append('\n');
+            out.append(m.family).append("_count").append(labels).append(' ').append(format(h.get_count()))
+                    .append('\n');
+        }
+    }
+
+    // Series of one family must stay together in the output, so a new series is
+    // inserted after the last one of its family
+    private void add(Metric metric) {
+        if (this.metrics.containsKey(metric.name)) {
+            throw new IllegalArgumentException("metric already registered: " + metric.name);
+        }
+        List<Metric> ordered = new ArrayList<>(this.metrics.values());
+        int insert_at = ordered.size();
+        for (int i = 0; i < ordered.size(); i++) {
+            if (ordered.get(i).family.equals(metric.family)) {
+                insert_at = i + 1;
+            }
+        }
+        if (insert_at == ordered.size()) {
+            this.metrics.put(metric.name, metric);
+            return;
+        }
+        ordered.add(insert_at, metric);
+        this.metrics.clear();
+        for (Metric m : ordered) {
+            this.metrics.put(m.name, m);
+        }
+    }
+
+    private static String format(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            return Long.toString((long) v);
+        }
+        return Double.toString(v);
+    }
+}
@@ -0,0 +1,248 @@
+package group.work.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import group.work.helpers.CrawlUrl;
+import group.work.helpers.HostFrontier;
+import group.work.helpers.VisitedManager;
+
+// Periodic crawl checkpoints in a small binary format
+// visited.log.gz is an append-only journal of URLs whose processing is over (stored,
+// failed, disallowed...): each checkpoint appends one gzip member with the URLs that
+// finished since the previous one, and a resume rewrites it without duplicates
+// frontier.bin holds the queued URLs plus the ones workers had taken, and state.bin
+// the stored page count and host delays; both are rewritten as a whole and swapped
+// in atomically
+// All strings are stored as [int length][UTF-8 bytes]
+public class CheckpointService {
+    private static final int MAGIC = 0x43524b50; // "CRKP"
+    private static final int VERSION = 2;
+
+    private final Path dir;
+    private final Path visited_log;
+    private final Path frontier_file;
+    private final Path state_file;
+    private final ConcurrentLinkedQueue<String> pending_completed = new ConcurrentLinkedQueue<>();
+    // Pages on disk, counted when storage reports them durable
+    private final AtomicInteger pages_stored = new AtomicInteger(0);
+
+    public CheckpointService(Path dir) {
+        this.dir = dir;
+        this.visited_log = dir.resolve("visited.log.gz");
+        this.frontier_file = dir.resolve("frontier.bin");
+        this.state_file = dir.resolve("state.bin");
+    }
+
+    public boolean exists() {
+        return Files.exists(this.state_file) && Files.exists(this.frontier_file);
+    }
+
+    // Called once a URL needs no further work, after the links it produced were
+    // queued; only queues the URL in memory
+    public void journal_completed(String url) {
+        this.pending_completed.offer(url);
+    }
+
+    // Called by storage once the page of url is durably on disk
+    public void journal_stored(String url) {
+        this.pages_stored.incrementAndGet();
+        this.pending_completed.offer(url);
+    }
+
+    // The completed URLs are drained before the frontier snapshot is taken, so each
+    // one's links are either in the snapshot or finished themselves; the journal is
+    // written after frontier.bin, a crash in between only repeats some fetches
+    // The frontier lock is only held to copy references, all I/O happens without it
+    public synchronized void write(HostFrontier frontier) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(this.dir);
+        List<String> completed = new ArrayList<>();
+        String done;
+        while ((done = this.pending_completed.poll()) != null) {
+            completed.add(done);
+        }
+        int pages_stored = this.pages_stored.get();
+        HostFrontier.Snapshot snap = frontier.snapshot();
+
+        Path tmp = this.frontier_file.resolveSibling("frontier.bin.tmp");
+        long frontier_count = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (String url : snap.urls) {
+                write_string(out, url);
+                frontier_count++;
+            }
+            // Spilled records already have the [length][UTF-8] layout of this file
+            if (snap.spilled != null) {
+                frontier_count += snap.spilled.write_records(out);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp, this.frontier_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        tmp = this.state_file.resolveSibling("state.bin.tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pages_stored);
+            out.writeInt(snap.host_delays.size());
+            for (Map.Entry<String, Long> e : snap.host_delays.entrySet()) {
+                write_string(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp, this.state_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (!completed.isEmpty()) {
+            try (FileOutputStream fos = new FileOutputStream(this.visited_log.toFile(), true)) {
+                GZIPOutputStream gz = new GZIPOutputStream(new BufferedOutputStream(fos, 1 << 16));
+                DataOutputStream out = new DataOutputStream(gz);
+                for (String url : completed) {
+                    write_string(out, url);
+                }
+                finish_member(gz, fos);
+            }
+        }
+        System.out.println("[Checkpoint] wrote " + frontier_count + " frontier URLs, +" + completed.size()
+                + " completed URLs in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // Loads the last checkpoint into the given structures and returns pages_stored
+    // Completed URLs only go into the visited set, the frontier ones are queued again;
+    // the journal is compacted on the way, keeping the first entry of each URL
+    public synchronized int restore(VisitedManager visited_manager, HostFrontier frontier) throws IOException {
+        long start = System.nanoTime();
+        int pages_stored;
+        try (DataInputStream in = open(this.state_file)) {
+            check_header(in, this.state_file);
+            pages_stored = in.readInt();
+            int hosts = in.readInt();
+            for (int i = 0; i < hosts; i++) {
+                String host = read_string(in);
+                frontier.restore_host_delay(host, in.readLong());
+            }
+        }
+        this.pages_stored.set(pages_stored);
+        int visited = 0;
+        if (Files.exists(this.visited_log)) {
+            visited = this.compact_visited_log(visited_manager);
+        }
+        int queued;
+        try (DataInputStream in = open(this.frontier_file)) {
+            check_header(in, this.frontier_file);
+            queued = read_all(in, url -> visited_manager.enqueue_if_new(url, frontier));
+        }
+        System.out.println("[Checkpoint] restored " + queued + " frontier URLs, " + visited
+                + " completed URLs, " + pages_stored + " stored pages in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return pages_stored;
+    }
+
+    // Marks the journal entries as seen and writes the new ones back as one gzip member
+    private int compact_visited_log(VisitedManager visited_manager) throws IOException {
+        Path tmp = this.visited_log.resolveSibling("visited.log.gz.tmp");
+        int[] kept = { 0 };
+        try (DataInputStream in = new DataInputStream(
+                new GZIPInputStream(new BufferedInputStream(Files.newInputStream(this.visited_log), 1 << 16)));
+                FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            GZIPOutputStream gz = new GZIPOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            DataOutputStream out = new DataOutputStream(gz);
+            try {
+                read_all(in, url -> {
+                    if (visited_manager.mark_seen(url)) {
+                        try {
+                            write_string(out, url.url);
+                        } catch (IOException err) {
+                            throw new UncheckedIOException(err);
+                        }
+                        kept[0]++;
+                    }
+                });
+            } catch (ZipException err) {
+                // The member of a checkpoint cut short by a crash, the entries before it count
+            } catch (UncheckedIOException err) {
+                throw err.getCause();
+            }
+            finish_member(gz, fos);
+        }
+        Files.move(tmp, this.visited_log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return kept[0];
+    }
+
+    private static void finish_member(GZIPOutputStream gz, FileOutputStream fos) throws IOException {
+        gz.finish();
+        gz.flush();
+        fos.getFD().sync();
+        gz.close();
+    }
+
+    private static DataInputStream open(Path path) throws IOException {
+        InputStream in = Files.newInputStream(path);
+        return new DataInputStream(new BufferedInputStream(in, 1 << 16));
+    }
+
+    private static void check_header(DataInputStream in, Path path) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not a checkpoint file: " + path);
+        }
+    }
+
+    // A record cut short by a crash ends the journal
+    // The stored URLs are canonical, parsing them back cannot change them
+    private static int read_all(DataInputStream in, Consumer<CrawlUrl> action) throws IOException {
+        int n = 0;
+        while (true) {
+            String s;
+            try {
+                s = read_string(in);
+            } catch (EOFException err) {
+                return n;
+            }
+            CrawlUrl url = CrawlUrl.parse(s);
+            if (url != null) {
+                action.accept(url);
+                n++;
+            }
+        }
+    }
+
+    private static void write_string(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String read_string(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,14 +1,46 @@
 package group.work.storage;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import group.work.helpers.PageCharsets;
+
 public class PageRecord {
     public final String url;
     public final long timestamp_ms;
-    public final String content;
+    public final int status_code;
+    // Response headers worth keeping (content-type, etag, ...), lower-case names
+    public final Map<String, String> headers;
+    // The body as it was received, and the charset it was detected to be in
+    public final byte[] body;
+    public final Charset charset;
+    // When StorageService queued the record, for its store latency
+    long queued_ns;
 
     public PageRecord(String url, long timestamp_ms, String content) {
+        this(url, timestamp_ms, 200, Collections.emptyMap(), content);
+    }
+
+    public PageRecord(String url, long timestamp_ms, int status_code, Map<String, String> headers,
+            String content) {
+        this(url, timestamp_ms, status_code, headers, content.getBytes(StandardCharsets.UTF_8),
+                StandardCharsets.UTF_8);
+    }
+
+    public PageRecord(String url, long timestamp_ms, int status_code, Map<String, String> headers, byte[] body,
+            Charset charset) {
         this.url = url;
         this.timestamp_ms = timestamp_ms;
-        this.content = content;
+        this.status_code = status_code;
+        this.headers = headers;
+        this.body = body;
+        this.charset = charset;
+    }
+
+    public String text() {
+        return PageCharsets.decode(this.body, this.body.length, this.charset);
     }
 
     // Special record to signal the writer thread to stop
@@ -0,0 +1,146 @@
+package group.work.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Binary layout of one stored page, shared by StorageService and RecordReader
+//
+// [int magic][int compressed_len][int raw_len][int crc32 of compressed bytes]
+// [compressed_len bytes: deflate of
+// [long timestamp_ms][int status][int n_headers][(string name, string value) * n]
+// [string url][string charset][int body_len][body bytes as received]]
+//
+// Strings are [int length][UTF-8 bytes]; every record is compressed on its own so a
+// reader can start at any record boundary, and the body can contain anything
+// WCR1 records (still readable) had no charset and the body re-encoded as a UTF-8 string
+// Not thread safe, each thread uses its own codec
+public class RecordCodec {
+    public static final int MAGIC = 0x57435232; // "WCR2"
+    public static final int MAGIC_V1 = 0x57435231; // "WCR1"
+    public static final int HEADER_BYTES = 16;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final ByteArrayOutputStream raw = new ByteArrayOutputStream(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private byte[] compressed = new byte[64 * 1024];
+
+    // The returned buffer is freshly allocated and owned by the caller
+    public ByteBuffer encode(PageRecord r) throws IOException {
+        this.raw.reset();
+        DataOutputStream out = new DataOutputStream(this.raw);
+        out.writeLong(r.timestamp_ms);
+        out.writeInt(r.status_code);
+        out.writeInt(r.headers.size());
+        for (Map.Entry<String, String> h : r.headers.entrySet()) {
+            write_string(out, h.getKey());
+            write_string(out, h.getValue());
+        }
+        write_string(out, r.url);
+        write_string(out, r.charset.name());
+        out.writeInt(r.body.length);
+        out.write(r.body);
+        out.flush();
+
+        byte[] input = this.raw.toByteArray();
+        this.deflater.reset();
+        this.deflater.setInput(input);
+        this.deflater.finish();
+        int len = 0;
+        while (!this.deflater.finished()) {
+            if (len == this.compressed.length) {
+                byte[] bigger = new byte[this.compressed.length * 2];
+                System.arraycopy(this.compressed, 0, bigger, 0, len);
+                this.compressed = bigger;
+            }
+            len += this.deflater.deflate(this.compressed, len, this.compressed.length - len);
+        }
+        this.crc.reset();
+        this.crc.update(this.compressed, 0, len);
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + len);
+        buf.putInt(MAGIC);
+        buf.putInt(len);
+        buf.putInt(input.length);
+        buf.putInt((int) this.crc.getValue());
+        buf.put(this.compressed, 0, len);
+        buf.flip();
+        return buf;
+    }
+
+    public PageRecord decode(int magic, byte[] compressed, int len, int raw_len, int crc32) throws IOException {
+        this.crc.reset();
+        this.crc.update(compressed, 0, len);
+        if ((int) this.crc.getValue() != crc32) {
+            throw new IOException("record checksum mismatch");
+        }
+        // raw_len is outside the checksum; deflate never expands more than about 1032:1
+        if (raw_len < 0 || raw_len > 1032L * len + 64) {
+            throw new IOException("corrupt record: raw length " + raw_len + " for " + len + " compressed bytes");
+        }
+        byte[] raw = new byte[raw_len];
+        this.inflater.reset();
+        this.inflater.setInput(compressed, 0, len);
+        try {
+            int n = 0;
+            while (n < raw_len && !this.inflater.finished()) {
+                int k = this.inflater.inflate(raw, n, raw_len - n);
+                if (k == 0 && this.inflater.needsInput()) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != raw_len) {
+                throw new IOException("truncated record");
+            }
+        } catch (DataFormatException err) {
+            throw new IOException("corrupt record: " + err.getMessage());
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        long ts = in.readLong();
+        int status = in.readInt();
+        int n_headers = in.readInt();
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < n_headers; i++) {
+            headers.put(read_string(in), read_string(in));
+        }
+        String url = read_string(in);
+        Charset charset = magic == MAGIC_V1 ? StandardCharsets.UTF_8 : charset_for(read_string(in));
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new PageRecord(url, ts, status, headers, body, charset);
+    }
+
+    // A charset this JVM does not know still leaves the bytes readable as UTF-8
+    private static Charset charset_for(String name) {
+        try {
+            return Charset.forName(name);
+        } catch (RuntimeException err) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    private static void write_string(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String read_string(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
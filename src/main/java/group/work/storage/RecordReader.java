@@ -0,0 +1,91 @@
+package group.work.storage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Streams the records written by StorageService, segment by segment in order
+// Only one record is held in memory at a time; a record cut short at the end of a
+// segment (crash while writing) ends that segment
+// A negative length field is reported as a corrupt record, one that runs past the
+// end of the segment is logged and ends the segment; neither is allocated
+public class RecordReader implements Closeable {
+    private final List<Path> segments;
+    private final RecordCodec codec = new RecordCodec();
+    private int segment_idx = 0;
+    private DataInputStream in;
+    // Size of the open segment and bytes read from it so far
+    private long segment_size;
+    private long offset;
+    private byte[] buf = new byte[64 * 1024];
+
+    public RecordReader(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            this.segments = new ArrayList<>(files
+                    .filter(p -> p.getFileName().toString().endsWith(StorageService.SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList());
+        }
+    }
+
+    // Returns null once every segment has been read
+    public PageRecord next() throws IOException {
+        while (true) {
+            if (this.in == null) {
+                if (this.segment_idx >= this.segments.size()) {
+                    return null;
+                }
+                Path segment = this.segments.get(this.segment_idx++);
+                this.segment_size = Files.size(segment);
+                this.offset = 0;
+                this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 1 << 16));
+            }
+            try {
+                int magic = this.in.readInt();
+                if (magic != RecordCodec.MAGIC && magic != RecordCodec.MAGIC_V1) {
+                    throw new IOException("bad record magic in " + this.segments.get(this.segment_idx - 1));
+                }
+                int len = this.in.readInt();
+                int raw_len = this.in.readInt();
+                int crc = this.in.readInt();
+                long remaining = this.segment_size - this.offset - 16;
+                if (len < 0) {
+                    throw new IOException("corrupt record length " + len + " at offset " + this.offset + " in "
+                            + this.segments.get(this.segment_idx - 1));
+                }
+                if (len > remaining) {
+                    // Cut short by a crash while writing, or a corrupt length: nothing
+                    // after it can be trusted, so the segment ends here either way
+                    System.err.println("[RecordReader] record at offset " + this.offset + " in "
+                            + this.segments.get(this.segment_idx - 1) + " claims " + len + " bytes but only "
+                            + Math.max(0, remaining) + " remain, skipping the rest of the segment");
+                    throw new EOFException();
+                }
+                if (len > this.buf.length) {
+                    this.buf = new byte[len];
+                }
+                this.in.readFully(this.buf, 0, len);
+                this.offset += 16 + len;
+                return this.codec.decode(magic, this.buf, len, raw_len, crc);
+            } catch (EOFException err) {
+                this.in.close();
+                this.in = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.in != null) {
+            this.in.close();
+            this.in = null;
+        }
+    }
+}
@@ -1,45 +1,413 @@
 package group.work.storage;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
+import group.work.helpers.LatencyHistogram;
+import group.work.metrics.MetricsRegistry;
+
+// Pages are written as compressed, length-prefixed records (see RecordCodec) into
+// numbered segment files that roll over at segment_max_bytes
+// The writer drains whatever is queued into one batch and writes it with a single
+// gathering write; the segment is forced to disk every sync_interval_ms or sync_bytes,
+// whichever comes first, and on roll-over and stop (group commit)
+// A record counts as written, and the durable listener hears of it, only once forced
+// The queue is bounded by the bytes it holds: past max_pending_bytes producers either
+// wait for the writer (BLOCK) or have their page rejected (SHED)
 public class StorageService {
-    private final String output_path;
+    public enum OverflowPolicy {
+        BLOCK,
+        SHED
+    }
+
+    static final String SEGMENT_SUFFIX = ".rec";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("crawled-(\\d+)\\.rec");
+    private static final int MAX_BATCH = 256;
+
+    private final Path output_dir;
+    private final long segment_max_bytes;
+    private final long max_pending_bytes;
+    private final OverflowPolicy overflow_policy;
+    private final long sync_interval_ns;
+    private final long sync_bytes;
     private BlockingQueue<PageRecord> write_queue = new LinkedBlockingQueue<>();
+    private final ReentrantLock budget_lock = new ReentrantLock();
+    private final Condition budget_freed = budget_lock.newCondition();
+    private final AtomicLong pending_bytes = new AtomicLong(0);
+    private final AtomicLong records_written = new AtomicLong(0);
+    private final AtomicLong bytes_written = new AtomicLong(0);
+    private final AtomicLong blocked_ns = new AtomicLong(0);
+    private final AtomicLong records_shed = new AtomicLong(0);
+    private final AtomicLong records_dropped = new AtomicLong(0);
+    // store_async() to record written, the write of each batch and each force, in microseconds
+    private final LatencyHistogram store_latency_us = new LatencyHistogram();
+    private final LatencyHistogram batch_write_us = new LatencyHistogram();
+    private final LatencyHistogram sync_us = new LatencyHistogram();
+    // Told the URL of every record once it is forced to disk
+    private volatile Consumer<String> durable_listener;
+    // Told the URL of every accepted record that will not reach the disk
+    private volatile Consumer<String> drop_listener;
+    // Set once the writer failed, later pages are refused
+    private volatile boolean failed = false;
     private Thread writer_thread;
+    private FileChannel channel;
+    private int segment_seq = -1;
+    private long segment_bytes;
+    // Written since the last force, only touched by the writer thread
+    private final List<String> unsynced_urls = new ArrayList<>();
+    private long unsynced_bytes;
+    private long last_sync_ns;
+
+    public StorageService(String output_dir) {
+        this(output_dir, 256L * 1024 * 1024);
+    }
+
+    public StorageService(String output_dir, long segment_max_bytes) {
+        this(output_dir, segment_max_bytes, 64L * 1024 * 1024, OverflowPolicy.BLOCK);
+    }
+
+    public StorageService(String output_dir, long segment_max_bytes, long max_pending_bytes,
+            OverflowPolicy overflow_policy) {
+        this(output_dir, segment_max_bytes, max_pending_bytes, overflow_policy, 1000, 16L * 1024 * 1024);
+    }
+
+    public StorageService(String output_dir, long segment_max_bytes, long max_pending_bytes,
+            OverflowPolicy overflow_policy, long sync_interval_ms, long sync_bytes) {
+        this.output_dir = Path.of(output_dir);
+        this.segment_max_bytes = segment_max_bytes;
+        this.max_pending_bytes = max_pending_bytes;
+        this.overflow_policy = overflow_policy;
+        this.sync_interval_ns = TimeUnit.MILLISECONDS.toNanos(Math.max(0, sync_interval_ms));
+        this.sync_bytes = sync_bytes;
+    }
+
+    public boolean store_async(String url, String content) {
+        return this.store_async(url, 200, Map.of(), content);
+    }
+
+    // Returns false when the page was not queued: shed under SHED, interrupted while
+    // waiting under BLOCK, or refused after the writer failed
+    public boolean store_async(String url, int status_code, Map<String, String> headers, String content) {
+        return this.enqueue(new PageRecord(url, System.currentTimeMillis(), status_code, headers, content));
+    }
+
+    // The body is written as given, e.g. the bytes a page was received as
+    public boolean store_async(String url, int status_code, Map<String, String> headers, byte[] body,
+            Charset charset) {
+        return this.enqueue(new PageRecord(url, System.currentTimeMillis(), status_code, headers, body, charset));
+    }
+
+    private boolean enqueue(PageRecord r) {
+        if (this.failed) {
+            this.records_dropped.incrementAndGet();
+            return false;
+        }
+        if (!this.reserve(estimate_bytes(r))) {
+            return false;
+        }
+        r.queued_ns = System.nanoTime();
+        this.write_queue.offer(r);
+        return true;
+    }
+
+    // Called on the writer thread, e.g. to journal stored pages in a checkpoint
+    public void set_durable_listener(Consumer<String> listener) {
+        this.durable_listener = listener;
+    }
+
+    // Called for pages store_async() accepted but that were lost to a write error or
+    // the stop deadline, so callers can take them back out of their counts
+    public void set_drop_listener(Consumer<String> listener) {
+        this.drop_listener = listener;
+    }
+
+    public int get_queue_depth() {
+        return this.write_queue.size();
+    }
+
+    public long get_pending_bytes() {
+        return this.pending_bytes.get();
+    }
+
+    public long get_records_written() {
+        return this.records_written.get();
+    }
 
-    public StorageService(String output_path) {
-        this.output_path = output_path;
+    // Compressed bytes on disk
+    public long get_bytes_written() {
+        return this.bytes_written.get();
     }
 
-    public void store_async(String url, String content) {
-        long ts = System.currentTimeMillis();
-        this.write_queue.offer(new PageRecord(url, ts, content));
+    public long get_blocked_ms() {
+        return TimeUnit.NANOSECONDS.toMillis(this.blocked_ns.get());
+    }
+
+    public long get_records_shed() {
+        return this.records_shed.get();
+    }
+
+    public long get_records_dropped() {
+        return this.records_dropped.get();
+    }
+
+    public void register_metrics(MetricsRegistry registry) {
+        registry.register_histogram("storage_store_latency_seconds", "Time from store_async() to the record on disk",
+                this.store_latency_us);
+        registry.register_histogram("storage_batch_write_seconds", "Write time of one batch",
+                this.batch_write_us);
+        registry.register_histogram("storage_sync_seconds", "Time to force a segment to disk", this.sync_us);
+        registry.register_counter("storage_records_written_total", "Records written and forced to disk",
+                this.records_written::get);
+        registry.register_counter("storage_bytes_written_total", "Compressed bytes written",
+                this.bytes_written::get);
+        registry.register_counter("storage_records_shed_total", "Records rejected by the byte budget",
+                this.records_shed::get);
+        registry.register_counter("storage_records_dropped_total",
+                "Records lost to a write error or the stop deadline, or refused after one",
+                this.records_dropped::get);
+        registry.register_counter("storage_blocked_seconds_total", "Time producers waited for the byte budget",
+                () -> this.blocked_ns.get() / 1e9);
+        registry.register_gauge("storage_queue_records", "Records waiting for the writer", this::get_queue_depth);
+        registry.register_gauge("storage_queue_bytes", "Estimated bytes waiting for the writer",
+                this.pending_bytes::get);
+    }
+
+    // A record larger than the whole budget is still accepted once the queue is empty
+    private boolean reserve(long size) {
+        while (true) {
+            long cur = this.pending_bytes.get();
+            if (cur == 0 || cur + size <= this.max_pending_bytes) {
+                if (this.pending_bytes.compareAndSet(cur, cur + size)) {
+                    return true;
+                }
+                continue;
+            }
+            // Nobody will free the budget once the writer has died
+            boolean writer_dead = this.writer_thread != null && !this.writer_thread.isAlive();
+            if (this.overflow_policy == OverflowPolicy.SHED || writer_dead) {
+                this.records_shed.incrementAndGet();
+                return false;
+            }
+            long start = System.nanoTime();
+            this.budget_lock.lock();
+            try {
+                long now = this.pending_bytes.get();
+                if (now != 0 && now + size > this.max_pending_bytes) {
+                    this.budget_freed.await(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                this.budget_lock.unlock();
+                this.blocked_ns.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void release(long size) {
+        this.pending_bytes.addAndGet(-size);
+        this.budget_lock.lock();
+        try {
+            this.budget_freed.signalAll();
+        } finally {
+            this.budget_lock.unlock();
+        }
+    }
+
+    private static long estimate_bytes(PageRecord r) {
+        return 64 + 2L * r.url.length() + r.body.length;
     }
 
     private void writer_loop() {
-        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(this.output_path, true)))) {
-            while (true) {
-                PageRecord r = this.write_queue.take();
-                if (r == PageRecord.POISON) {
-                    break;
+        RecordCodec codec = new RecordCodec();
+        List<PageRecord> batch = new ArrayList<>(MAX_BATCH);
+        ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+        try {
+            this.open_next_segment();
+            this.last_sync_ns = System.nanoTime();
+            boolean stopping = false;
+            while (!stopping) {
+                // Written records wait at most until the next sync is due
+                PageRecord first = this.unsynced_urls.isEmpty()
+                        ? this.write_queue.take()
+                        : this.write_queue.poll(Math.max(0, this.last_sync_ns + this.sync_interval_ns
+                                - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    this.write_queue.drainTo(batch, MAX_BATCH - 1);
+                }
+                int n = 0;
+                long batch_bytes = 0;
+                long queued_bytes = 0;
+                for (PageRecord r : batch) {
+                    // Records queued after the stop request in the same batch are still written
+                    if (r == PageRecord.POISON) {
+                        stopping = true;
+                        continue;
+                    }
+                    buffers[n] = codec.encode(r);
+                    batch_bytes += buffers[n].remaining();
+                    queued_bytes += estimate_bytes(r);
+                    n++;
+                }
+                if (n > 0) {
+                    if (this.segment_bytes > 0 && this.segment_bytes + batch_bytes > this.segment_max_bytes) {
+                        this.sync();
+                        this.open_next_segment();
+                    }
+                    long write_start = System.nanoTime();
+                    this.write_fully(buffers, n);
+                    long written_ns = System.nanoTime();
+                    this.batch_write_us.record((written_ns - write_start) / 1000);
+                    for (PageRecord r : batch) {
+                        if (r != PageRecord.POISON) {
+                            this.store_latency_us.record((written_ns - r.queued_ns) / 1000);
+                            this.unsynced_urls.add(r.url);
+                        }
+                    }
+                    this.segment_bytes += batch_bytes;
+                    this.unsynced_bytes += batch_bytes;
+                    this.release(queued_bytes);
+                }
+                batch.clear();
+                if (stopping || this.unsynced_bytes >= this.sync_bytes
+                        || System.nanoTime() - this.last_sync_ns >= this.sync_interval_ns) {
+                    this.sync();
                 }
-                out.println("############## " + r.url + " # " + r.timestamp_ms + " #########");
-                out.println(r.content);
-                out.println();
-                out.flush();
             }
         } catch (IOException err) {
             System.err.println("[StorageService] failed to write to storage: " + err.getMessage());
+            this.fail(batch);
         } catch (InterruptedException err) {
+            // Stop deadline: force what is already written, a channel refuses I/O on an interrupted thread
+            Thread.interrupted();
+            try {
+                this.sync();
+            } catch (IOException sync_err) {
+                System.err.println("[StorageService] failed to write to storage: " + sync_err.getMessage());
+                this.fail(batch);
+            }
             Thread.currentThread().interrupt();
+        } finally {
+            this.close_segment();
         }
     }
 
+    // Forces the segment and reports everything written since the last force as durable
+    private void sync() throws IOException {
+        this.last_sync_ns = System.nanoTime();
+        if (this.unsynced_urls.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        this.channel.force(false);
+        this.sync_us.record((System.nanoTime() - start) / 1000);
+        this.records_written.addAndGet(this.unsynced_urls.size());
+        this.bytes_written.addAndGet(this.unsynced_bytes);
+        Consumer<String> listener = this.durable_listener;
+        if (listener != null) {
+            for (String url : this.unsynced_urls) {
+                listener.accept(url);
+            }
+        }
+        this.unsynced_urls.clear();
+        this.unsynced_bytes = 0;
+    }
+
+    // After a write error nothing written since the last force is known to be on disk;
+    // those records, the failed batch and everything still queued are dropped
+    private void fail(List<PageRecord> batch) {
+        this.failed = true;
+        List<PageRecord> lost = new ArrayList<>(batch);
+        this.write_queue.drainTo(lost);
+        for (String url : this.unsynced_urls) {
+            this.drop(url);
+        }
+        this.unsynced_urls.clear();
+        this.unsynced_bytes = 0;
+        long lost_bytes = 0;
+        for (PageRecord r : lost) {
+            if (r != PageRecord.POISON) {
+                this.drop(r.url);
+                lost_bytes += estimate_bytes(r);
+            }
+        }
+        // The batch's budget is only released after a successful write
+        this.release(lost_bytes);
+    }
+
+    private void drop(String url) {
+        this.records_dropped.incrementAndGet();
+        Consumer<String> listener = this.drop_listener;
+        if (listener != null) {
+            listener.accept(url);
+        }
+    }
+
+    private void write_fully(ByteBuffer[] buffers, int n) throws IOException {
+        int first = 0;
+        while (first < n) {
+            this.channel.write(buffers, first, n - first);
+            while (first < n && !buffers[first].hasRemaining()) {
+                buffers[first++] = null;
+            }
+        }
+    }
+
+    // Every run starts a fresh segment after the highest-numbered one in the directory,
+    // so a deleted segment in between is never reused
+    private void open_next_segment() throws IOException {
+        this.close_segment();
+        Files.createDirectories(this.output_dir);
+        if (this.segment_seq < 0) {
+            int next = 0;
+            try (Stream<Path> files = Files.list(this.output_dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    Matcher m = SEGMENT_NAME.matcher(p.getFileName().toString());
+                    if (m.matches()) {
+                        next = Math.max(next, Integer.parseInt(m.group(1)) + 1);
+                    }
+                }
+            }
+            this.segment_seq = next;
+        }
+        Path path = this.output_dir.resolve(String.format("crawled-%05d%s", this.segment_seq++, SEGMENT_SUFFIX));
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.segment_bytes = this.channel.size();
+    }
+
+    private void close_segment() {
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } catch (IOException err) {
+            System.err.println("[StorageService] failed to close segment: " + err.getMessage());
+        }
+        this.channel = null;
+    }
+
     public void start() {
         this.writer_thread = new Thread(this::writer_loop, "storage-writer");
         this.writer_thread.setDaemon(true);
@@ -47,13 +415,38 @@ public class StorageService {
     }
 
     public void stop() {
+        this.stop(10_000);
+    }
+
+    // Lets the writer drain everything queued before the call, waiting at most
+    // deadline_ms; whatever is left after that is reported as dropped
+    public void stop(long deadline_ms) {
         try {
             this.write_queue.offer(PageRecord.POISON);
             if (this.writer_thread != null) {
-                this.writer_thread.join(3000);
+                this.writer_thread.join(deadline_ms);
+                if (this.writer_thread.isAlive()) {
+                    this.writer_thread.interrupt();
+                    this.writer_thread.join(1000);
+                }
             }
         } catch (InterruptedException err) {
             Thread.currentThread().interrupt();
         }
+        List<PageRecord> left = new ArrayList<>();
+        this.write_queue.drainTo(left);
+        int dropped = 0;
+        for (PageRecord r : left) {
+            if (r != PageRecord.POISON) {
+                this.drop(r.url);
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            System.err.println("[StorageService] shutdown deadline reached, dropped " + dropped + " queued pages");
+        }
+        System.out.println("[StorageService] wrote " + this.records_written.get() + " records, "
+                + (this.bytes_written.get() >> 10) + " KiB, blocked " + this.get_blocked_ms() + " ms, shed "
+                + this.records_shed.get() + ", dropped " + this.records_dropped.get());
     }
 }
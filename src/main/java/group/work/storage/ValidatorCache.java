@@ -0,0 +1,231 @@
+package group.work.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Validators from the last successful fetch of each normalized URL, kept across runs
+// They turn refetches into conditional requests, and the cached links let a
+// 304 Not Modified page still feed link discovery without being parsed again
+// The links of an entry are kept deflated in one array, they are only unpacked for
+// the few pages that come back unchanged
+public class ValidatorCache {
+    private static final int MAGIC = 0x56414c43; // "VALC"
+    private static final int VERSION = 2;
+    // Lengths above these in a cache file can only come from corruption
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+    private static final int MAX_PACKED_LINKS_BYTES = 16 * 1024 * 1024;
+
+    public static class Entry {
+        public final String etag;
+        public final String last_modified;
+        public final long content_hash;
+        public final long fetched_at_ms;
+        // Deflated UTF-8 of the links, separated by '\n'
+        private final byte[] packed_links;
+
+        public Entry(String etag, String last_modified, long content_hash, long fetched_at_ms, List<String> links) {
+            this(etag, last_modified, content_hash, fetched_at_ms, pack(links));
+        }
+
+        // New validators for a page whose links did not change
+        public Entry(String etag, String last_modified, long content_hash, long fetched_at_ms, Entry previous) {
+            this(etag, last_modified, content_hash, fetched_at_ms, previous.packed_links);
+        }
+
+        private Entry(String etag, String last_modified, long content_hash, long fetched_at_ms,
+                byte[] packed_links) {
+            this.etag = etag;
+            this.last_modified = last_modified;
+            this.content_hash = content_hash;
+            this.fetched_at_ms = fetched_at_ms;
+            this.packed_links = packed_links;
+        }
+
+        public List<String> links() {
+            return unpack(this.packed_links);
+        }
+    }
+
+    private final Path path;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public ValidatorCache(Path path) {
+        this.path = path;
+    }
+
+    public Entry get(String url) {
+        return this.entries.get(url);
+    }
+
+    public void put(String url, Entry entry) {
+        this.entries.put(url, entry);
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public void load() {
+        if (!Files.exists(this.path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(this.path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                // Version 1 kept the links as separate strings; a cache is cheap to lose
+                System.err.println("[ValidatorCache] ignoring unknown cache file " + this.path);
+                return;
+            }
+            while (true) {
+                String url;
+                try {
+                    url = read_string(in);
+                } catch (EOFException err) {
+                    break;
+                }
+                if (url == null) {
+                    throw new IOException("entry without a URL");
+                }
+                String etag = read_string(in);
+                String last_modified = read_string(in);
+                long content_hash = in.readLong();
+                long fetched_at_ms = in.readLong();
+                byte[] packed = new byte[read_length(in, MAX_PACKED_LINKS_BYTES)];
+                in.readFully(packed);
+                this.entries.put(url, new Entry(etag, last_modified, content_hash, fetched_at_ms, packed));
+            }
+            System.out.println("[ValidatorCache] loaded " + this.entries.size() + " validators");
+        } catch (IOException err) {
+            // Entries read before the damage may be garbage too; a cache is cheap to lose
+            this.entries.clear();
+            System.err.println("[ValidatorCache] failed to load " + this.path + ", starting empty: "
+                    + err.getMessage());
+        }
+    }
+
+    // Called with every checkpoint and at shutdown, so a crash loses at most one
+    // checkpoint interval of validators
+    public synchronized void save() {
+        Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+                Entry v = e.getValue();
+                write_string(out, e.getKey());
+                write_string(out, v.etag);
+                write_string(out, v.last_modified);
+                out.writeLong(v.content_hash);
+                out.writeLong(v.fetched_at_ms);
+                out.writeInt(v.packed_links.length);
+                out.write(v.packed_links);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException err) {
+            System.err.println("[ValidatorCache] failed to save " + this.path + ": " + err.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException err) {
+            System.err.println("[ValidatorCache] failed to save " + this.path + ": " + err.getMessage());
+        }
+    }
+
+    private static byte[] pack(List<String> links) {
+        if (links.isEmpty()) {
+            return new byte[0];
+        }
+        byte[] raw = String.join("\n", links).getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 16);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static List<String> unpack(byte[] packed) {
+        if (packed.length == 0) {
+            return new ArrayList<>();
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(packed.length * 4);
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                out.write(chunk, 0, n);
+            }
+            return new ArrayList<>(Arrays.asList(out.toString(StandardCharsets.UTF_8).split("\n")));
+        } catch (DataFormatException err) {
+            System.err.println("[ValidatorCache] dropping corrupt cached links: " + err.getMessage());
+            return new ArrayList<>();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // null is stored as length -1
+    private static void write_string(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String read_string(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len == -1) {
+            return null;
+        }
+        if (len < 0 || len > MAX_STRING_BYTES) {
+            throw new IOException("corrupt string length " + len);
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int read_length(DataInputStream in, int max) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > max) {
+            throw new IOException("corrupt length " + len);
+        }
+        return len;
+    }
+}
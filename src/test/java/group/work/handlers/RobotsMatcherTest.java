@@ -0,0 +1,96 @@
+package group.work.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class RobotsMatcherTest {
+    @Test
+    void no_rules_allow_everything() {
+        RobotsMatcher m = new RobotsMatcher(List.of(), List.of());
+        assertTrue(m.is_allowed("/"));
+        assertTrue(m.is_allowed("/any/path?q=1"));
+    }
+
+    @Test
+    void rules_are_path_prefixes() {
+        RobotsMatcher m = new RobotsMatcher(List.of(), List.of("/private"));
+        assertFalse(m.is_allowed("/private"));
+        assertFalse(m.is_allowed("/private/x.html"));
+        assertFalse(m.is_allowed("/privateer"));
+        assertTrue(m.is_allowed("/public"));
+        assertTrue(m.is_allowed("/Private"));
+    }
+
+    @Test
+    void longest_match_wins() {
+        // RFC 9309 2.2.2: the most specific (longest) matching rule applies
+        RobotsMatcher m = new RobotsMatcher(List.of("/folder/page"), List.of("/folder"));
+        assertFalse(m.is_allowed("/folder/other"));
+        assertTrue(m.is_allowed("/folder/page"));
+        assertTrue(m.is_allowed("/folder/page2"));
+
+        m = new RobotsMatcher(List.of("/a"), List.of("/a/b"));
+        assertTrue(m.is_allowed("/a/c"));
+        assertFalse(m.is_allowed("/a/b/c"));
+    }
+
+    @Test
+    void allow_wins_a_tie() {
+        RobotsMatcher m = new RobotsMatcher(List.of("/page"), List.of("/page"));
+        assertTrue(m.is_allowed("/page"));
+
+        // Same length with wildcards on both sides
+        m = new RobotsMatcher(List.of("/*.htm"), List.of("/*.php"));
+        assertTrue(m.is_allowed("/x.htm"));
+        m = new RobotsMatcher(List.of("/p*"), List.of("/*p"));
+        assertTrue(m.is_allowed("/pp"));
+    }
+
+    @Test
+    void wildcard_matches_any_sequence() {
+        RobotsMatcher m = new RobotsMatcher(List.of(), List.of("/*.php"));
+        assertFalse(m.is_allowed("/index.php"));
+        assertFalse(m.is_allowed("/dir/index.php?x=1"));
+        assertFalse(m.is_allowed("/.php"));
+        assertTrue(m.is_allowed("/index.html"));
+
+        m = new RobotsMatcher(List.of(), List.of("/a*b*c"));
+        assertFalse(m.is_allowed("/abc"));
+        assertFalse(m.is_allowed("/a-x-b-y-c-z"));
+        assertTrue(m.is_allowed("/a-c-b"));
+    }
+
+    @Test
+    void dollar_anchors_the_end() {
+        RobotsMatcher m = new RobotsMatcher(List.of(), List.of("/*.pdf$"));
+        assertFalse(m.is_allowed("/doc.pdf"));
+        assertTrue(m.is_allowed("/doc.pdf?download=1"));
+        assertTrue(m.is_allowed("/doc.pdf.html"));
+
+        m = new RobotsMatcher(List.of("/$"), List.of("/"));
+        assertTrue(m.is_allowed("/"));
+        assertFalse(m.is_allowed("/page"));
+    }
+
+    @Test
+    void longer_wildcard_rule_beats_shorter_prefix() {
+        RobotsMatcher m = new RobotsMatcher(List.of("/shop/*/public"), List.of("/shop"));
+        assertTrue(m.is_allowed("/shop/item/public"));
+        assertFalse(m.is_allowed("/shop/item/private"));
+
+        // And the other way round: a longer prefix beats a shorter wildcard rule
+        m = new RobotsMatcher(List.of("/*.html"), List.of("/archive/old/"));
+        assertFalse(m.is_allowed("/archive/old/a.html"));
+        assertTrue(m.is_allowed("/archive/new/a.html"));
+    }
+
+    @Test
+    void empty_disallow_allows_everything() {
+        RobotsMatcher m = new RobotsMatcher(List.of(), List.of(""));
+        assertTrue(m.is_allowed("/anything"));
+    }
+}
@@ -0,0 +1,117 @@
+package group.work.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HostFrontierTest {
+    @TempDir
+    Path spill_dir;
+
+    @Test
+    void flooding_host_does_not_push_other_hosts_to_disk() {
+        // 1 s between dispatches of a host, 10 URLs in memory, at most 4 of one host
+        HostFrontier frontier = new HostFrontier(1000, 10, 4, this.spill_dir);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                frontier.offer(CrawlUrl.parse("http://flood.example/p/" + i));
+            }
+            frontier.offer(CrawlUrl.parse("http://other.example/"));
+            assertEquals(1001, frontier.size());
+
+            // The flooding host gets one slot per second, the other host is due right away
+            Set<String> hosts = new HashSet<>();
+            for (int i = 0; i < 2; i++) {
+                CrawlUrl url = frontier.poll();
+                assertNotNull(url);
+                hosts.add(url.host);
+            }
+            assertEquals(Set.of("flood.example", "other.example"), hosts);
+        } finally {
+            frontier.close();
+        }
+    }
+
+    @Test
+    void host_spilled_while_memory_is_full_is_refilled_first() {
+        HostFrontier frontier = new HostFrontier(0, 4, 2, this.spill_dir);
+        try {
+            for (String host : new String[] { "a.example", "b.example" }) {
+                for (int i = 0; i < 5; i++) {
+                    frontier.offer(CrawlUrl.parse("http://" + host + "/p/" + i));
+                }
+            }
+            // Memory is full with two URLs of each host, c has to start on disk
+            frontier.offer(CrawlUrl.parse("http://c.example/"));
+
+            Set<String> hosts = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                CrawlUrl url = frontier.poll();
+                assertNotNull(url);
+                hosts.add(url.host);
+                frontier.release(url);
+            }
+            assertEquals(Set.of("a.example", "b.example", "c.example"), hosts);
+        } finally {
+            frontier.close();
+        }
+    }
+
+    @Test
+    void spilling_hosts_share_segment_files() throws IOException {
+        HostFrontier frontier = new HostFrontier(0, 10, 2, this.spill_dir);
+        try {
+            for (int h = 0; h < 500; h++) {
+                for (int i = 0; i < 3; i++) {
+                    frontier.offer(CrawlUrl.parse("http://h" + h + ".example/p/" + i));
+                }
+            }
+            assertEquals(1, frontier.get_spill_segment_count());
+            try (Stream<Path> files = Files.list(this.spill_dir)) {
+                assertEquals(1, files.count());
+            }
+
+            Set<String> seen = new HashSet<>();
+            CrawlUrl url;
+            while ((url = frontier.poll()) != null) {
+                seen.add(url.url);
+                frontier.release(url);
+            }
+            assertEquals(1500, seen.size());
+            assertEquals(0, frontier.size());
+        } finally {
+            frontier.close();
+        }
+    }
+
+    @Test
+    void drained_hosts_are_forgotten() {
+        HostFrontier frontier = new HostFrontier(0, 10, 4, this.spill_dir);
+        try {
+            frontier.offer(CrawlUrl.parse("http://a.example/"));
+            frontier.set_host_limits("b.example", 5000, 1);
+            frontier.offer(CrawlUrl.parse("http://b.example/"));
+            for (int i = 0; i < 2; i++) {
+                CrawlUrl url = frontier.poll();
+                assertNotNull(url);
+                frontier.release(url);
+            }
+            assertNull(frontier.poll());
+            // b keeps its own delay, a had the defaults
+            assertEquals(1, frontier.get_host_count());
+            assertEquals(5000, frontier.get_host_delay("b.example"));
+        } finally {
+            frontier.close();
+        }
+    }
+}
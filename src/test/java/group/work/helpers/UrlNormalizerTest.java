@@ -0,0 +1,93 @@
+package group.work.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class UrlNormalizerTest {
+    @Test
+    void scheme_and_host_are_lowercased_and_fragment_dropped() {
+        assertEquals("http://example.com/Path", UrlNormalizer.normalize("HTTP://Example.COM/Path#section"));
+        assertEquals("https://example.com/", UrlNormalizer.normalize("https://example.com"));
+        assertEquals("https://example.com/", UrlNormalizer.normalize("  https://example.com./  "));
+    }
+
+    @Test
+    void default_ports_are_dropped() {
+        assertEquals("http://example.com/", UrlNormalizer.normalize("http://example.com:80/"));
+        assertEquals("https://example.com/", UrlNormalizer.normalize("https://example.com:443/"));
+        assertEquals("http://example.com:443/", UrlNormalizer.normalize("http://example.com:443/"));
+        assertEquals("https://example.com:8443/a", UrlNormalizer.normalize("https://example.com:8443/a"));
+        assertEquals("http://example.com/", UrlNormalizer.normalize("http://example.com:/"));
+    }
+
+    @Test
+    void dot_segments_are_removed() {
+        assertEquals("http://example.com/a/c", UrlNormalizer.normalize("http://example.com/a/b/../c"));
+        assertEquals("http://example.com/a/b/", UrlNormalizer.normalize("http://example.com/a/./b/."));
+        assertEquals("http://example.com/", UrlNormalizer.normalize("http://example.com/../../"));
+        assertEquals("http://example.com/a/", UrlNormalizer.normalize("http://example.com/a/b/.."));
+        assertEquals("http://example.com/a/b", UrlNormalizer.normalize("http://example.com//a///b"));
+    }
+
+    @Test
+    void percent_encoding_is_normalized() {
+        // Unreserved characters are decoded, other escapes get uppercase hex
+        assertEquals("http://example.com/~user/a-b", UrlNormalizer.normalize("http://example.com/%7Euser/a%2db"));
+        assertEquals("http://example.com/a%2Fb", UrlNormalizer.normalize("http://example.com/a%2fb"));
+        // Characters that must be escaped are encoded as UTF-8
+        assertEquals("http://example.com/a%20b", UrlNormalizer.normalize("http://example.com/a b"));
+        assertEquals("http://example.com/caf%C3%A9", UrlNormalizer.normalize("http://example.com/caf\u00e9"));
+        // A '%' that starts no escape is escaped itself
+        assertEquals("http://example.com/100%25", UrlNormalizer.normalize("http://example.com/100%"));
+        assertEquals("http://example.com/%25zz", UrlNormalizer.normalize("http://example.com/%zz"));
+    }
+
+    @Test
+    void tracking_params_are_stripped() {
+        assertEquals("http://example.com/p?id=3",
+                UrlNormalizer.normalize("http://example.com/p?utm_source=x&id=3&UTM_Medium=y&gclid=z"));
+        assertEquals("http://example.com/p", UrlNormalizer.normalize("http://example.com/p?fbclid=abc"));
+        assertEquals("http://example.com/p?b=2&a=1", UrlNormalizer.normalize("http://example.com/p?b=2&a=1"));
+    }
+
+    @Test
+    void options_control_query_handling() {
+        UrlNormalizer.Options options = new UrlNormalizer.Options();
+        options.sort_query = true;
+        options.strip_tracking = false;
+        assertEquals("http://example.com/p?a=1&b=2&utm_source=x",
+                UrlNormalizer.canonicalize("http://example.com/p?utm_source=x&b=2&a=1", options).url);
+    }
+
+    @Test
+    void idn_hosts_become_punycode() {
+        assertEquals("http://xn--bcher-kva.example/", UrlNormalizer.normalize("http://B\u00fccher.example/"));
+    }
+
+    @Test
+    void invalid_urls_are_rejected() {
+        assertNull(UrlNormalizer.normalize(null));
+        assertNull(UrlNormalizer.normalize("   "));
+        assertNull(UrlNormalizer.normalize("mailto:someone@example.com"));
+        assertNull(UrlNormalizer.normalize("ftp://example.com/"));
+        assertNull(UrlNormalizer.normalize("http://"));
+        assertNull(UrlNormalizer.normalize("http:///path"));
+        assertNull(UrlNormalizer.normalize("http://exa mple.com/"));
+        assertNull(UrlNormalizer.normalize("http://example.com:99999/"));
+        assertNull(UrlNormalizer.normalize("http://example.com:8o/"));
+        assertNull(UrlNormalizer.normalize("http://[::1/"));
+    }
+
+    @Test
+    void parts_are_split_out() {
+        CrawlUrl url = UrlNormalizer.canonicalize("https://user@Example.com:8080/a/../b?q=1#f");
+        assertEquals("https://user@example.com:8080/b?q=1", url.url);
+        assertEquals("https", url.scheme);
+        assertEquals("example.com", url.host);
+        assertEquals(8080, url.port);
+        assertEquals("/b", url.path);
+        assertEquals("q=1", url.query);
+    }
+}